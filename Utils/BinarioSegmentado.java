@@ -0,0 +1,463 @@
+package Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Registro binario de solo añadir repartido en varios archivos (segmentos).
+ * Cuando el segmento activo alcanza el peso o la cantidad de datos máxima se
+ * cierra y se empieza uno nuevo. Así, para descartar los datos antiguos basta
+ * con borrar segmentos enteros, sin reescribir nada.
+ *
+ * Cada dato tiene un ordinal global, de 1 en adelante, que no cambia al
+ * eliminar segmentos antiguos. Los segmentos son archivos de BinaryFilesUtils
+ * con la ruta base terminada en ".000001", ".000002"... y la lista de
+ * segmentos con su primer y último ordinal se guarda en un manifiesto con la
+ * ruta base terminada en ".manifest".
+ *
+ * @author Roberto Santos Cordeiro
+ */
+public class BinarioSegmentado implements Closeable {
+
+    static final String EXTENSION_MANIFIESTO = ".manifest";
+
+    private final String ruta;
+    private final File archivoManifiesto;
+    private final long pesoMaximo;
+    private final int datosMaximos;
+    private final List<Segmento> segmentos;
+    private int formato;
+    /**
+     * Escritor abierto sobre el último segmento. Es null hasta la primera
+     * escritura.
+     */
+    private EscritorBinario escritor;
+
+    // CONSTRUCTORES ===========================================================
+    /**
+     * Abre el registro segmentado de la ruta indicada o lo crea si no existe.
+     *
+     * @param ruta Ruta base de los segmentos y del manifiesto.
+     * @param pesoMaximo Bytes a partir de los cuales se empieza un segmento
+     * nuevo. Con 0 no se limita el peso.
+     * @param datosMaximos Cantidad de datos a partir de la cual se empieza un
+     * segmento nuevo. Con 0 no se limita la cantidad.
+     * @throws IOException
+     */
+    public BinarioSegmentado(String ruta, long pesoMaximo, int datosMaximos)
+            throws IOException {
+
+        if (pesoMaximo < 0 || datosMaximos < 0) {
+            throw new IllegalArgumentException("Los límites de los segmentos "
+                    + "no pueden ser negativos.");
+        }
+
+        this.ruta = ruta;
+        this.archivoManifiesto = new File(ruta + EXTENSION_MANIFIESTO);
+        this.pesoMaximo = pesoMaximo;
+        this.datosMaximos = datosMaximos;
+        this.segmentos = new ArrayList<>();
+        this.formato = BinaryFilesUtils.FORMATO_COMPACTO;
+
+        if (archivoManifiesto.exists()) {
+            cargarManifiesto();
+        } else {
+            segmentos.add(new Segmento(1, 1, 0, crearArchivo(1)));
+            guardarManifiesto();
+        }
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Busca el segmento que contiene el ordinal indicado.
+     *
+     * @param ordinal Ordinal global del dato.
+     * @return Índice del segmento en la lista, o -1 si ningún segmento lo
+     * contiene.
+     */
+    private int buscarSegmento(long ordinal) {
+        int inicio = 0;
+        int fin = segmentos.size() - 1;
+        int encontrado = -1;
+
+        while (inicio <= fin && encontrado == -1) {
+            int medio = (inicio + fin) >>> 1;
+            Segmento segmento = segmentos.get(medio);
+
+            if (ordinal < segmento.primero) {
+                fin = medio - 1;
+            } else if (ordinal > segmento.ultimo) {
+                inicio = medio + 1;
+            } else {
+                encontrado = medio;
+            }
+        }
+
+        return encontrado;
+    }
+
+    /**
+     * Lee el manifiesto. La cantidad de datos del último segmento se
+     * comprueba con su índice, ya que pudo escribirse después de guardar el
+     * manifiesto por última vez.
+     *
+     * @throws IOException
+     */
+    private void cargarManifiesto() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(archivoManifiesto)))) {
+
+            formato = in.readInt();
+            int numSegmentos = in.readInt();
+
+            for (int i = 0; i < numSegmentos; i++) {
+                long id = in.readLong();
+                long primero = in.readLong();
+                long ultimo = in.readLong();
+                segmentos.add(new Segmento(id, primero, ultimo, crearArchivo(id)));
+            }
+        }
+
+        Segmento activo = segmentos.get(segmentos.size() - 1);
+        activo.ultimo = activo.primero + activo.archivo.numDatos() - 1;
+    }
+
+    /**
+     * Cierra el segmento activo y el manifiesto.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (escritor != null) {
+            escritor.close();
+            escritor = null;
+        }
+        guardarManifiesto();
+    }
+
+    /**
+     * Crea el BinaryFilesUtils del segmento con el identificador indicado.
+     */
+    private BinaryFilesUtils crearArchivo(long id) {
+        return new BinaryFilesUtils(new File(String.format("%s.%06d", ruta, id)),
+                formato);
+    }
+
+    /**
+     * Borra los segmentos indicados. Primero se guarda el manifiesto sin
+     * ellos, de modo que un corte a mitad solo deja archivos sobrantes.
+     *
+     * @param numSegmentos Cantidad de segmentos que se borrarán empezando por
+     * el más antiguo.
+     * @return Cantidad de segmentos borrados.
+     * @throws IOException
+     */
+    private int eliminarPrimeros(int numSegmentos) throws IOException {
+        List<Segmento> eliminados = new ArrayList<>(segmentos.subList(0, numSegmentos));
+        segmentos.subList(0, numSegmentos).clear();
+        guardarManifiesto();
+
+        for (Segmento segmento : eliminados) {
+            segmento.archivo.borrar();
+        }
+
+        return eliminados.size();
+    }
+
+    /**
+     * Elimina los segmentos cerrados cuyos datos tengan todos un ordinal
+     * menor o igual que el indicado. El segmento activo nunca se elimina.
+     *
+     * @param ordinal Último ordinal que se puede descartar.
+     * @return Cantidad de segmentos eliminados.
+     * @throws IOException
+     */
+    public synchronized int eliminarHasta(long ordinal) throws IOException {
+        int num = 0;
+
+        while (num < segmentos.size() - 1 && segmentos.get(num).ultimo <= ordinal) {
+            num++;
+        }
+
+        return eliminarPrimeros(num);
+    }
+
+    /**
+     * Elimina los segmentos cerrados cuya última escritura sea anterior al
+     * instante indicado. El segmento activo nunca se elimina.
+     *
+     * @param instante Milisegundos desde 1970, como los de
+     * System.currentTimeMillis().
+     * @return Cantidad de segmentos eliminados.
+     * @throws IOException
+     */
+    public synchronized int eliminarAnterioresA(long instante) throws IOException {
+        int num = 0;
+
+        while (num < segmentos.size() - 1
+                && segmentos.get(num).archivo.getArchivo().lastModified() < instante) {
+            num++;
+        }
+
+        return eliminarPrimeros(num);
+    }
+
+    /**
+     * Añade un dato al final del registro. Si con él el segmento activo
+     * alcanza alguno de los límites, se cierra y se empieza uno nuevo.
+     *
+     * @param dato Dato que se escribirá.
+     * @return Ordinal global asignado al dato.
+     * @throws IOException
+     */
+    public synchronized long escribir(Object dato) throws IOException {
+        Segmento activo = segmentos.get(segmentos.size() - 1);
+
+        if (escritor == null) {
+            escritor = activo.archivo.crearEscritor();
+        }
+
+        escritor.escribir(dato);
+        long ordinal = ++activo.ultimo;
+
+        if ((datosMaximos > 0 && activo.ultimo - activo.primero + 1 >= datosMaximos)
+                || (pesoMaximo > 0 && escritor.getPesoEscrito() >= pesoMaximo)) {
+            rotar();
+        }
+
+        return ordinal;
+    }
+
+    /**
+     * Guarda el manifiesto en un temporal y lo mueve sobre el anterior, de
+     * modo que siempre haya un manifiesto completo.
+     *
+     * @throws IOException
+     */
+    private void guardarManifiesto() throws IOException {
+        File temporal = new File(archivoManifiesto.getPath() + ".tmp");
+
+        try (FileOutputStream fichero = new FileOutputStream(temporal);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(fichero))) {
+
+            out.writeInt(formato);
+            out.writeInt(segmentos.size());
+            for (Segmento segmento : segmentos) {
+                out.writeLong(segmento.id);
+                out.writeLong(segmento.primero);
+                out.writeLong(segmento.ultimo);
+            }
+            out.flush();
+            fichero.getFD().sync();
+        }
+
+        try {
+            Files.move(temporal.toPath(), archivoManifiesto.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporal.toPath(), archivoManifiesto.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Devuelve el dato con el ordinal global indicado. Se busca el segmento
+     * que lo contiene y se lee con su índice de offsets.
+     *
+     * @param ordinal Ordinal global del dato.
+     * @return Dato leído, o null si el ordinal no existe o ya se eliminó.
+     * @throws IOException
+     */
+    public synchronized Object leerEnPosicion(long ordinal) throws IOException {
+        Object dato = null;
+        int i = buscarSegmento(ordinal);
+
+        if (i != -1) {
+            volcar();
+            Segmento segmento = segmentos.get(i);
+            dato = segmento.archivo.leerEnPosicion((int) (ordinal - segmento.primero + 1));
+        }
+
+        return dato;
+    }
+
+    /**
+     * Cierra el segmento activo y empieza uno nuevo vacío.
+     *
+     * @throws IOException
+     */
+    public synchronized void rotar() throws IOException {
+        Segmento activo = segmentos.get(segmentos.size() - 1);
+
+        // Un segmento vacío no se cierra.
+        if (activo.ultimo >= activo.primero) {
+            if (escritor != null) {
+                escritor.close();
+                escritor = null;
+            }
+
+            long id = activo.id + 1;
+            segmentos.add(new Segmento(id, activo.ultimo + 1, activo.ultimo,
+                    crearArchivo(id)));
+            guardarManifiesto();
+        }
+    }
+
+    /**
+     * Devuelve un Stream con todos los datos del registro en orden. Los
+     * segmentos se abren de uno en uno a medida que se consumen, así que debe
+     * usarse en un try-with-resources.
+     *
+     * @return Stream con los datos del registro.
+     * @throws IOException
+     */
+    public Stream<Object> stream() throws IOException {
+        return stream(getPrimerOrdinal());
+    }
+
+    /**
+     * Devuelve un Stream con los datos del registro desde el ordinal indicado.
+     *
+     * @param desde Ordinal global del primer dato que se leerá.
+     * @return Stream con los datos del registro desde ese ordinal.
+     * @throws IOException
+     */
+    public Stream<Object> stream(long desde) throws IOException {
+        List<Segmento> copia;
+        synchronized (this) {
+            volcar();
+            copia = new ArrayList<>(segmentos);
+        }
+
+        return copia.stream()
+                .filter(segmento -> segmento.ultimo >= desde
+                && segmento.ultimo >= segmento.primero)
+                .flatMap(segmento -> {
+                    try {
+                        long inicio = Math.max(desde, segmento.primero);
+                        IteradorBinario datos = segmento.archivo.iterador(
+                                (int) (inicio - segmento.primero + 1));
+                        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                                datos, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                                .onClose(() -> {
+                                    try {
+                                        datos.close();
+                                    } catch (IOException e) {
+                                        throw new UncheckedIOException(e);
+                                    }
+                                });
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    /**
+     * Vuelca al segmento activo los datos pendientes. El manifiesto no se
+     * toca: solo cambia al rotar, al eliminar segmentos y al cerrar, y la
+     * cantidad de datos del segmento activo se recupera de su índice al
+     * abrir el registro. Así las lecturas, que vuelcan antes de leer, no
+     * fuerzan nada a disco.
+     *
+     * @throws IOException
+     */
+    public synchronized void volcar() throws IOException {
+        if (escritor != null) {
+            escritor.volcar();
+        }
+    }
+
+    // GETTERS =================================================================
+    /**
+     * @return Cantidad de datos que hay en los segmentos que se conservan.
+     */
+    public synchronized long getNumDatos() {
+        return getUltimoOrdinal() - getPrimerOrdinal() + 1;
+    }
+
+    public synchronized int getNumSegmentos() {
+        return segmentos.size();
+    }
+
+    /**
+     * @return Ordinal del dato más antiguo que se conserva.
+     */
+    public synchronized long getPrimerOrdinal() {
+        return segmentos.get(0).primero;
+    }
+
+    public String getRuta() {
+        return ruta;
+    }
+
+    /**
+     * @return Ordinal del último dato escrito, o getPrimerOrdinal() - 1 si no
+     * hay datos.
+     */
+    public synchronized long getUltimoOrdinal() {
+        return segmentos.get(segmentos.size() - 1).ultimo;
+    }
+
+    // SETTERS =================================================================
+    /**
+     * Establece el formato de los segmentos que se creen a partir de ahora y
+     * del segmento activo si aún no se ha escrito en él, como el primero de
+     * un registro recién creado. Por defecto se usa
+     * BinaryFilesUtils.FORMATO_COMPACTO.
+     *
+     * @param formato BinaryFilesUtils.FORMATO_CLASICO,
+     * BinaryFilesUtils.FORMATO_COMPACTO o BinaryFilesUtils.FORMATO_COMPRIMIDO.
+     */
+    public synchronized void setFormato(int formato) {
+        if (formato != BinaryFilesUtils.FORMATO_CLASICO
+                && formato != BinaryFilesUtils.FORMATO_COMPACTO
+                && formato != BinaryFilesUtils.FORMATO_COMPRIMIDO) {
+            throw new IllegalArgumentException("Formato desconocido: " + formato);
+        }
+        this.formato = formato;
+
+        Segmento activo = segmentos.get(segmentos.size() - 1);
+        if (escritor == null && activo.ultimo < activo.primero) {
+            activo.archivo.setFormato(formato);
+        }
+    }
+
+    // CLASES INTERNAS =========================================================
+    /**
+     * Segmento del registro con el rango de ordinales globales que contiene.
+     * Si está vacío, ultimo vale primero - 1.
+     */
+    private static class Segmento {
+
+        final long id;
+        final long primero;
+        long ultimo;
+        final BinaryFilesUtils archivo;
+
+        Segmento(long id, long primero, long ultimo, BinaryFilesUtils archivo) {
+            this.id = id;
+            this.primero = primero;
+            this.ultimo = ultimo;
+            this.archivo = archivo;
+        }
+    }
+}
@@ -1,15 +1,36 @@
 package Utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  *
@@ -24,9 +45,59 @@ public class BinaryFilesUtils {
     private final String SIMBOLOS_PROHIBIDOS_REGEX = "^(?!\\s*$)[^\\\\/:?\"<>|]+$";
     private final String SIMBOLOS_PROHIBIDOS_RUTA_REGEX = "^(?!\\s*$)[^:?\"<>|]+$";
 
+    /**
+     * Formato original: los datos se escriben con ObjectOutputStream.
+     */
+    public static final int FORMATO_CLASICO = 1;
+    /**
+     * Formato compacto: cabecera CABECERA_COMPACTA seguida de cada dato con su
+     * byte etiqueta escrito con DataOutputStream. Las cadenas y los objetos
+     * van precedidos de su longitud en bytes.
+     */
+    public static final int FORMATO_COMPACTO = 2;
+    static final byte[] CABECERA_COMPACTA = {'B', 'F', 'U', FORMATO_COMPACTO};
+    /**
+     * Formato comprimido: cabecera CABECERA_COMPRIMIDA seguida de bloques de
+     * datos en formato compacto comprimidos con Deflater. Cada bloque empieza
+     * con su cantidad de datos, su peso sin comprimir y su peso comprimido, de
+     * modo que se puede saltar sin descomprimirlo. Cada volcado de un
+     * EscritorBinario escribe un bloque.
+     */
+    public static final int FORMATO_COMPRIMIDO = 3;
+    static final byte[] CABECERA_COMPRIMIDA = {'B', 'F', 'U', FORMATO_COMPRIMIDO};
+    /**
+     * Cantidad mínima de datos de cada bloque en las lecturas en paralelo. Con
+     * menos, abrir el archivo para cada bloque cuesta más de lo que se gana.
+     */
+    static final int DATOS_MINIMOS_BLOQUE = 4096;
+    /**
+     * Capacidad mínima con la que se dimensiona el filtro de Bloom.
+     */
+    static final int CAPACIDAD_MINIMA_FILTRO = 1024;
+
     private boolean adjuntar;
     private File archivo;
+    private FiltroBloom filtro;
+    private int formato;
+    private IndiceBinario indice;
+    /**
+     * Proyección en memoria del archivo con la que se leen los datos. Es null
+     * si la lectura mapeada está desactivada.
+     */
+    private MapaArchivo mapa;
+    /**
+     * Foto del archivo con la que se sincronizaron por última vez el índice y
+     * el registro de mutaciones en la lectura mapeada.
+     */
+    private MapaArchivo.Foto fotoSincronizada;
+    private RegistroMutaciones mutaciones;
     private String ruta;
+    /**
+     * Proporción de entradas del registro de mutaciones respecto a los datos
+     * del archivo a partir de la cual se compacta automáticamente. Con 0 solo
+     * se compacta al llamar a compactar().
+     */
+    private double umbralCompactacion;
 
     // CONSTRUCTORES ===========================================================
     public BinaryFilesUtils(String ruta) throws IOException {
@@ -36,8 +107,13 @@ public class BinaryFilesUtils {
         }
 
         this.archivo = new File(ruta);
+        this.indice = new IndiceBinario(archivo);
+        this.mutaciones = new RegistroMutaciones(archivo);
+        this.filtro = new FiltroBloom(archivo);
         this.ruta = ruta;
         this.adjuntar = true;
+        this.formato = formatoInicial();
+        this.umbralCompactacion = 0.5;
     }
 
     public BinaryFilesUtils(File file) throws IOException {
@@ -49,49 +125,333 @@ public class BinaryFilesUtils {
         }
 
         this.archivo = file;
+        this.indice = new IndiceBinario(archivo);
+        this.mutaciones = new RegistroMutaciones(archivo);
+        this.filtro = new FiltroBloom(archivo);
+        this.adjuntar = true;
+        this.formato = formatoInicial();
+        this.umbralCompactacion = 0.5;
+    }
+
+    /**
+     * Constructor para archivos auxiliares (temporales, copias de trabajo...)
+     * cuya ruta se deriva de la de otro BinaryFilesUtils ya validado, por lo
+     * que no se vuelve a comprobar.
+     *
+     * @param file Archivo auxiliar.
+     * @param formato Formato con el que se escribirá si está vacío.
+     */
+    BinaryFilesUtils(File file, int formato) {
+        this.ruta = file.getPath();
+        this.archivo = file;
+        this.indice = new IndiceBinario(archivo);
+        this.mutaciones = new RegistroMutaciones(archivo);
+        this.filtro = new FiltroBloom(archivo);
         this.adjuntar = true;
+        this.formato = formato;
+        this.umbralCompactacion = 0;
     }
 
     // MÉTODOS =================================================================
     /**
-     * Este método identifica si el archivo existe y fue escrito antes. Si aún
-     * no se ha escrito nada se creará un objeto ObjectOutputStream que
-     * escribirá una cabecera en el archivo que servirá para leerlo
-     * posteriormente. Si ya fue escrito, se usará la clase interna
-     * OOSSinCabecera para que no vuelva a escribir nuevas cabeceras y el
-     * archivo siga siendo legible.
+     * Abre un lector posicionado en el dato con la posición física indicada.
+     * En el formato comprimido el índice apunta al bloque del dato, así que se
+     * descartan los datos del bloque que van antes de él.
      *
-     * @return ObjectOutputStream con el que se podrá escribir en el archivo.
+     * @param fisica Posición física del dato, de 0 a n-1.
+     * @return LectorBinario cuyo siguiente dato es el indicado.
+     * @throws IOException
      */
-    private ObjectOutputStream abrirEscritor() {
-        ObjectOutputStream out = null;
+    private LectorBinario abrirLector(int fisica) throws IOException {
+        LectorBinario lector = abrirLectorEnOffset(indice.getOffset(fisica));
 
         try {
-            // Si el archivo no existe o existe pero está vacío se crea y 
-            // se escribe con cabecera.
-            if (!existe() || (existe() && peso() == 0)) {
-                out = new ObjectOutputStream(new FileOutputStream(ruta, adjuntar));
+            for (int i = indice.getPrimeroDelBloque(fisica); i < fisica; i++) {
+                lector.siguiente();
+            }
+
+        } catch (ClassNotFoundException e) {
+            lector.close();
+            throw new IOException("Clase no encontrada.", e);
+        } catch (IOException | RuntimeException e) {
+            lector.close();
+            throw e;
+        }
 
-            } else { // Si existe y está escrito, se escribe sin cabecera.
-                out = new OOSSinCabecera(new FileOutputStream(ruta, adjuntar));
+        return lector;
+    }
+
+    /**
+     * Abre un lector posicionado en el offset indicado. Si la lectura mapeada
+     * está activada los datos se leen de la proyección en memoria del archivo.
+     *
+     * @param offset 0 o el byte del archivo en que empieza alguno de los
+     * datos (en el formato comprimido, alguno de los bloques).
+     * @return LectorBinario posicionado en el offset.
+     * @throws IOException
+     */
+    private LectorBinario abrirLectorEnOffset(long offset) throws IOException {
+        MapaArchivo.Foto foto = fotoMapeada();
+
+        return (foto != null)
+                ? LectorBinario.abrir(archivo, foto, offset)
+                : LectorBinario.abrir(archivo, offset);
+    }
+
+    /**
+     * Activa el filtro de Bloom del archivo, que permite saber sin leer el
+     * archivo que un dato no está en él. Así contiene, eliminar y reemplazar
+     * terminan enseguida cuando el dato no existe. El filtro se guarda junto
+     * al archivo (".bloom") y se mantiene al día en cada escritura, por lo
+     * que sigue activo al volver a abrir el archivo.
+     *
+     * Solo acelera la búsqueda de datos primitivos y cadenas; los objetos se
+     * buscan siempre en el archivo.
+     *
+     * @return true si el filtro se ha creado correctamente, false en caso
+     * contrario.
+     */
+    public boolean activarFiltroBloom() {
+        return reconstruirFiltro();
+    }
+
+    /**
+     * Añade al filtro de Bloom las huellas de los datos que se acaban de
+     * escribir. Si el filtro no estaba al día con el archivo no se toca, ya
+     * que se pondrá al día la próxima vez que se consulte.
+     *
+     * @param pesoAnterior Peso del archivo antes de escribir los datos.
+     * @param huellas Huellas de los datos filtrables escritos.
+     * @param numHuellas Cantidad de huellas del array que son válidas.
+     */
+    void actualizarFiltro(long pesoAnterior, long[] huellas, int numHuellas) {
+        try {
+            if (pesoAnterior == 0) {
+                // Se ha escrito el archivo desde el principio.
+                filtro.vaciar(Math.max(CAPACIDAD_MINIMA_FILTRO, filtro.getCapacidad()));
+            } else if (filtro.getPesoCubierto() != pesoAnterior) {
+                filtro.cargar();
+            }
+
+            if (filtro.getPesoCubierto() == pesoAnterior) {
+                for (int i = 0; i < numHuellas; i++) {
+                    filtro.anhadir(huellas[i]);
+                }
+                filtro.setPesoCubierto(peso());
+                filtro.guardar();
             }
 
         } catch (IOException e) {
-            printException(e);
+            // Si no se puede guardar se pondrá al día al consultarlo.
+            filtro.setPesoCubierto(-1);
+        }
+    }
+
+    /**
+     * Añade al índice los offsets de los datos que se acaban de escribir. Si
+     * el índice no estaba al día con el archivo no se toca, ya que se pondrá
+     * al día la próxima vez que se consulte.
+     *
+     * @param offsets Bytes en los que empiezan los datos escritos, en orden.
+     * @param numOffsets Cantidad de offsets del array que son válidos.
+     */
+    void actualizarIndice(long[] offsets, int numOffsets) {
+        invalidarMapa();
+
+        try {
+            if (numOffsets > 0 && offsets[0] == 0) {
+                // Se ha escrito el archivo desde el principio.
+                indice.vaciar();
+            }
+
+            if (numOffsets > 0 && indice.getPesoCubierto() == offsets[0]) {
+                for (int i = 0; i < numOffsets; i++) {
+                    indice.anhadir(offsets[i]);
+                }
+                indice.setPesoCubierto(peso());
+                indice.guardar();
+            }
+
+        } catch (IOException e) {
+            // Si no se puede guardar se reconstruirá al consultarlo.
+            indice.borrar();
         }
+    }
+
+    /**
+     * Lee un dato en formato compacto y, si es numérico (etiquetas 3 a 7),
+     * pasa su valor a las estadísticas sin crear ningún objeto. Los demás
+     * datos se saltan sin decodificarlos. Las etiquetas 1 a 7 y 9 a 12 se
+     * escriben igual en el formato clásico, así que también sirve para él.
+     *
+     * @param etiqueta Byte etiqueta del dato.
+     * @param in Flujo del que se leerá el dato.
+     * @param estadisticas Estadísticas en las que se acumulará el dato. Con
+     * null el dato solo se salta.
+     * @throws IOException
+     */
+    static void acumularCompacto(byte etiqueta, DataInput in,
+            EstadisticasBinario estadisticas) throws IOException {
 
-        return out;
+        if (estadisticas == null) {
+            saltarCompacto(etiqueta, in);
+        } else {
+            switch (etiqueta) {
+                case 3: // Double
+                    estadisticas.anhadirDecimal(etiqueta, in.readDouble());
+                    break;
+                case 4: // Float
+                    estadisticas.anhadirDecimal(etiqueta, in.readFloat());
+                    break;
+                case 5: // Integer
+                    estadisticas.anhadirEntero(etiqueta, in.readInt());
+                    break;
+                case 6: // Long
+                    estadisticas.anhadirEntero(etiqueta, in.readLong());
+                    break;
+                case 7: // Short
+                    estadisticas.anhadirEntero(etiqueta, in.readShort());
+                    break;
+                default:
+                    saltarCompacto(etiqueta, in);
+                    estadisticas.anhadirOtro();
+            }
+        }
     }
 
     /**
-     * Elimina el archivo indicado en la variable ruta.
+     * Elimina el archivo indicado en la variable ruta junto con su índice, su
+     * registro de mutaciones y su filtro de Bloom.
      *
      * @return true si el archivo ha sido borrado; false en caso contrario.
      */
     public boolean borrar() {
+        invalidarMapa();
+        indice.borrar();
+        mutaciones.borrar();
+        filtro.borrar();
         return archivo.delete();
     }
 
+    /**
+     * Busca el dato pasado como parámetro y devuelve las posiciones físicas
+     * en que se encuentra.
+     *
+     * @param dato Dato que se buscará.
+     * @param todas true para buscar todas las ocurrencias, false para parar en
+     * la primera.
+     * @return Posiciones físicas (de 0 a n-1) de las ocurrencias en orden.
+     * @throws IOException
+     */
+    private int[] buscarFisicas(Object dato, boolean todas) throws IOException {
+        int[] fisicas = new int[0];
+
+        try (IteradorBinario datos = iterador()) {
+            while (datos.hasNext() && (todas || fisicas.length == 0)) {
+                if (datos.next().equals(dato)) {
+                    fisicas = Arrays.copyOf(fisicas, fisicas.length + 1);
+                    fisicas[fisicas.length - 1] = datos.getFisicaActual();
+                }
+            }
+
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return fisicas;
+    }
+
+    /**
+     * Calcula la cantidad, suma, mínimo, máximo y media de los datos
+     * numéricos del archivo, por tipo y en conjunto. Los valores se leen del
+     * archivo directamente en variables primitivas, sin crear un objeto por
+     * dato como leerTodo, y los datos que no son numéricos se saltan sin
+     * decodificarlos. Se tienen en cuenta los borrados y reemplazos
+     * pendientes.
+     *
+     * @return Estadísticas de los datos numéricos, o null si no se ha podido
+     * leer el archivo.
+     */
+    public EstadisticasBinario calcularEstadisticas() {
+        return calcularEstadisticas(new EstadisticasBinario());
+    }
+
+    /**
+     * Igual que calcularEstadisticas(), pero además calcula para cada tipo un
+     * histograma de intervalos iguales entre inicio (incluido) y fin
+     * (excluido).
+     *
+     * @param inicio Valor en que empieza el primer intervalo.
+     * @param fin Valor en que termina el último intervalo.
+     * @param numIntervalos Cantidad de intervalos.
+     * @return Estadísticas de los datos numéricos, o null si no se ha podido
+     * leer el archivo.
+     */
+    public EstadisticasBinario calcularEstadisticas(double inicio, double fin,
+            int numIntervalos) {
+        return calcularEstadisticas(new EstadisticasBinario(inicio, fin, numIntervalos));
+    }
+
+    /**
+     * Recorre el archivo acumulando sus datos en las estadísticas indicadas.
+     *
+     * @param estadisticas Estadísticas vacías.
+     * @return Las mismas estadísticas rellenas, o null si ha habido un error.
+     */
+    private EstadisticasBinario calcularEstadisticas(EstadisticasBinario estadisticas) {
+        if (existe() && peso() > 0) {
+            if (!cargarMutaciones()) {
+                estadisticas = null;
+            } else {
+                boolean conMutaciones = !mutaciones.estaVacio();
+
+                try (LectorBinario lector = abrirLectorEnOffset(0)) {
+                    for (int fisica = 0; true; fisica++) {
+                        Object reemplazo = (conMutaciones)
+                                ? mutaciones.fusionar(fisica, null) : null;
+
+                        // Los datos borrados o reemplazados se saltan.
+                        if (conMutaciones && (reemplazo != null
+                                || mutaciones.estaBorrado(fisica))) {
+                            lector.acumularSiguiente(null);
+                            if (reemplazo != null) {
+                                estadisticas.anhadir(reemplazo);
+                            }
+                        } else {
+                            lector.acumularSiguiente(estadisticas);
+                        }
+                    }
+
+                } catch (EOFException e) {
+                    // Se ha llegado al final del archivo.
+                } catch (IOException | ClassNotFoundException e) {
+                    System.out.println("Error al leer el archivo.");
+                    estadisticas = null;
+                }
+            }
+        }
+
+        return estadisticas;
+    }
+
+    /**
+     * Lee del disco el registro de mutaciones si ha cambiado.
+     *
+     * @return true si el registro está al día, false si no se pudo leer.
+     */
+    private boolean cargarMutaciones() {
+        boolean cargaOk = true;
+
+        try {
+            mutaciones.cargar();
+        } catch (IOException e) {
+            printException(e);
+            cargaOk = false;
+        }
+
+        return cargaOk;
+    }
+
     /**
      * El método realiza una copia de todos los datos del archivo y los escribe
      * en un nuevo archivo binario.
@@ -104,6 +464,7 @@ public class BinaryFilesUtils {
     public BinaryFilesUtils copiar(File file) throws IOException {
         Object[] datos = leerTodo();
         BinaryFilesUtils copia = new BinaryFilesUtils(file);
+        copia.setFormato(formato);
         copia.escribirTodo(datos);
 
         return copia;
@@ -141,30 +502,538 @@ public class BinaryFilesUtils {
     }
 
     /**
-     * Elimina la primera ocurrencia del dato pasado como parámetro y reescribe
-     * el archivo sin él.
+     * Escribe en el flujo el byte etiqueta que corresponde al tipo del dato
+     * seguido del propio dato.
      *
-     * @param dato Dato que se buscará para eliminar.
-     * @return true si el eliminado ha salido correctamente, false en caso
-     * contrario.
+     * @param dato Dato que se escribirá.
+     * @param out ObjectOutputStream en el que se escribirá el dato.
+     * @throws IOException
      */
-    public boolean eliminar(Object dato) {
-        ArrayList<Object> datos = new ArrayList<>(Arrays.asList(leerTodo()));
-        boolean centinela = false;
+    static void codificar(Object dato, ObjectOutputStream out) throws IOException {
+        switch (dato.getClass().getSimpleName()) {
+            case "Boolean":
+                out.writeByte(1);
+                out.writeBoolean((Boolean) dato);
+                break;
+            case "Character":
+                out.writeByte(2);
+                out.writeChar((Character) dato);
+                break;
+            case "Double":
+                out.writeByte(3);
+                out.writeDouble((Double) dato);
+                break;
+            case "Float":
+                out.writeByte(4);
+                out.writeFloat((Float) dato);
+                break;
+            case "Integer":
+                out.writeByte(5);
+                out.writeInt((Integer) dato);
+                break;
+            case "Long":
+                out.writeByte(6);
+                out.writeLong((Long) dato);
+                break;
+            case "Short":
+                out.writeByte(7);
+                out.writeShort((Short) dato);
+                break;
+            case "String":
+                out.writeByte(8);
+                out.writeUTF((String) dato);
+                break;
+            case "int[]":
+            case "long[]":
+            case "double[]":
+            case "byte[]":
+                codificarArray(dato, out);
+                break;
+            default:
+                // Si el tipo de dato no se corresponde con ninguno de los anteriores...
+                out.writeByte(100);
+                out.writeObject(dato);
+        }
+    }
+
+    /**
+     * Escribe un array de int, long, double o byte como un único bloque: el
+     * byte etiqueta, la cantidad de elementos y los elementos seguidos. Los
+     * elementos se pasan a bytes de una vez a través de una vista de
+     * ByteBuffer, sin crear un objeto por elemento.
+     *
+     * @param array Array que se escribirá.
+     * @param out Flujo en el que se escribirá el array.
+     * @throws IOException
+     */
+    private static void codificarArray(Object array, DataOutput out) throws IOException {
+        byte[] bytes;
+        int longitud;
+        int etiqueta;
+
+        if (array instanceof int[]) {
+            int[] ints = (int[]) array;
+            ByteBuffer buffer = ByteBuffer.allocate(pesoArray(ints.length, Integer.BYTES));
+            buffer.asIntBuffer().put(ints);
+            bytes = buffer.array();
+            longitud = ints.length;
+            etiqueta = 9;
+        } else if (array instanceof long[]) {
+            long[] longs = (long[]) array;
+            ByteBuffer buffer = ByteBuffer.allocate(pesoArray(longs.length, Long.BYTES));
+            buffer.asLongBuffer().put(longs);
+            bytes = buffer.array();
+            longitud = longs.length;
+            etiqueta = 10;
+        } else if (array instanceof double[]) {
+            double[] doubles = (double[]) array;
+            ByteBuffer buffer = ByteBuffer.allocate(pesoArray(doubles.length, Double.BYTES));
+            buffer.asDoubleBuffer().put(doubles);
+            bytes = buffer.array();
+            longitud = doubles.length;
+            etiqueta = 11;
+        } else {
+            bytes = (byte[]) array;
+            longitud = bytes.length;
+            etiqueta = 12;
+        }
+
+        out.writeByte(etiqueta);
+        out.writeInt(longitud);
+        out.write(bytes);
+    }
+
+    /**
+     * Escribe el dato en formato compacto: el byte etiqueta seguido del dato.
+     * Las cadenas se escriben en UTF-8 y los objetos serializados con
+     * ObjectOutputStream, ambos precedidos de su longitud en bytes.
+     *
+     * @param dato Dato que se escribirá.
+     * @param out Flujo en el que se escribirá el dato.
+     * @throws IOException
+     */
+    static void codificarCompacto(Object dato, DataOutput out) throws IOException {
+        switch (dato.getClass().getSimpleName()) {
+            case "Boolean":
+                out.writeByte(1);
+                out.writeBoolean((Boolean) dato);
+                break;
+            case "Character":
+                out.writeByte(2);
+                out.writeChar((Character) dato);
+                break;
+            case "Double":
+                out.writeByte(3);
+                out.writeDouble((Double) dato);
+                break;
+            case "Float":
+                out.writeByte(4);
+                out.writeFloat((Float) dato);
+                break;
+            case "Integer":
+                out.writeByte(5);
+                out.writeInt((Integer) dato);
+                break;
+            case "Long":
+                out.writeByte(6);
+                out.writeLong((Long) dato);
+                break;
+            case "Short":
+                out.writeByte(7);
+                out.writeShort((Short) dato);
+                break;
+            case "String":
+                byte[] texto = ((String) dato).getBytes(StandardCharsets.UTF_8);
+                out.writeByte(8);
+                out.writeInt(texto.length);
+                out.write(texto);
+                break;
+            case "int[]":
+            case "long[]":
+            case "double[]":
+            case "byte[]":
+                codificarArray(dato, out);
+                break;
+            default:
+                // Si el tipo de dato no se corresponde con ninguno de los anteriores...
+                ByteArrayOutputStream serializado = new ByteArrayOutputStream();
+                try (ObjectOutputStream oos = new ObjectOutputStream(serializado)) {
+                    oos.writeObject(dato);
+                }
+                out.writeByte(100);
+                out.writeInt(serializado.size());
+                out.write(serializado.toByteArray());
+        }
+    }
+
+    /**
+     * Aplica al archivo de datos los borrados y reemplazos pendientes del
+     * registro de mutaciones y elimina el registro. El archivo se reescribe
+     * leyendo los datos de uno en uno, sin cargarlos en memoria.
+     *
+     * @return true si la compactación se completó o no había nada que
+     * compactar, false en caso contrario.
+     */
+    public boolean compactar() {
+        boolean compactacionOk = cargarMutaciones();
+
+        if (compactacionOk && !mutaciones.estaVacio()) {
+            compactacionOk = transformar(formato, Function.identity());
+        }
+
+        return compactacionOk;
+    }
+
+    /**
+     * Compacta el archivo si el registro de mutaciones supera el umbral de
+     * compactación.
+     */
+    private void comprobarCompactacion() {
+        if (umbralCompactacion > 0 && sincronizarIndice()
+                && mutaciones.getNumEntradas() > umbralCompactacion * indice.getNumOffsets()) {
+            compactar();
+        }
+    }
+
+    /**
+     * Indica si el dato pasado como parámetro está en el archivo. Si el filtro
+     * de Bloom está activo y descarta el dato no se lee el archivo.
+     *
+     * @param dato Dato que se buscará.
+     * @return true si el dato está en el archivo, false si no está o no se ha
+     * podido leer.
+     */
+    public boolean contiene(Object dato) {
+        boolean encontrado = false;
+
+        if (existe()) {
+            try {
+                encontrado = !descartadoPorFiltro(dato)
+                        && buscarFisicas(dato, false).length > 0;
+            } catch (IOException e) {
+                printException(e);
+            }
+        }
+
+        return encontrado;
+    }
+
+    /**
+     * Reescribe el archivo en formato compacto. Los datos se leen y escriben
+     * de uno en uno en un archivo temporal que, al terminar, sustituye al
+     * original, por lo que no es necesario cargarlos en memoria.
+     *
+     * @return true si la conversión se completó o el archivo ya estaba en
+     * formato compacto, false en caso contrario.
+     */
+    public boolean convertirAFormatoCompacto() {
+        boolean conversionOk = true;
+
+        if (existe() && peso() > 0 && formato != FORMATO_COMPACTO) {
+            conversionOk = transformar(FORMATO_COMPACTO, Function.identity());
+        }
+
+        return conversionOk;
+    }
+
+    /**
+     * Reescribe el archivo en formato comprimido, agrupando los datos en
+     * bloques comprimidos con Deflater. Es el formato que menos ocupa cuando
+     * los datos se repiten mucho. Para que los bloques sean grandes conviene
+     * escribir en él con crearEscritor() en lugar de dato a dato.
+     *
+     * @return true si la conversión se completó o el archivo ya estaba en
+     * formato comprimido, false en caso contrario.
+     */
+    public boolean convertirAFormatoComprimido() {
+        boolean conversionOk = true;
+
+        if (existe() && peso() > 0 && formato != FORMATO_COMPRIMIDO) {
+            conversionOk = transformar(FORMATO_COMPRIMIDO, Function.identity());
+        }
+
+        return conversionOk;
+    }
+
+    /**
+     * Crea un EscritorBinario que mantiene el archivo abierto para escribir
+     * muchos datos seguidos. Los datos se vuelcan al archivo cada 64 KB o al
+     * llamar a volcar() o close().
+     *
+     * @return EscritorBinario sobre este archivo.
+     * @throws IOException
+     */
+    public EscritorBinario crearEscritor() throws IOException {
+        return new EscritorBinario(this);
+    }
+
+    /**
+     * Crea un EscritorBinario que mantiene el archivo abierto para escribir
+     * muchos datos seguidos.
+     *
+     * @param tamanhoBuffer Bytes que se acumularán antes de volcarlos al
+     * archivo.
+     * @param intervaloVolcado Milisegundos máximos que pasarán los datos en el
+     * buffer antes de volcarse. Con 0 solo se vuelca por tamaño o a petición.
+     * @return EscritorBinario sobre este archivo.
+     * @throws IOException
+     */
+    public EscritorBinario crearEscritor(int tamanhoBuffer, long intervaloVolcado)
+            throws IOException {
+        return new EscritorBinario(this, tamanhoBuffer, intervaloVolcado);
+    }
+
+    /**
+     * Crea un EscritorAsincrono con el que muchos hilos pueden añadir datos al
+     * archivo a la vez. Un único hilo escribe los datos por lotes y cada
+     * escritura devuelve un CompletableFuture que se completa al escribirse.
+     *
+     * @param capacidadCola Datos que pueden esperar en la cola.
+     * @param sincronizarLotes true para forzar a disco cada lote antes de
+     * completar sus escrituras.
+     * @return EscritorAsincrono sobre este archivo.
+     * @throws IOException
+     */
+    public EscritorAsincrono crearEscritorAsincrono(int capacidadCola,
+            boolean sincronizarLotes) throws IOException {
+        return new EscritorAsincrono(this, capacidadCola, sincronizarLotes);
+    }
+
+    /**
+     * En base al byte pasado como parámetro, el método sabrá que tipo de dato
+     * se leerá a continuación, lo leerá y lo devolverá. A diferencia de
+     * leerDato, los errores se propagan a quien lo llama.
+     *
+     * @param etiqueta Byte que se usa para determinar que tipo de dato se leerá
+     * a continuación.
+     * @param in ObjectInputStream que leerá los datos.
+     * @return Object con el dato que se leyó.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    static Object decodificar(byte etiqueta, ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        Object obj;
+
+        switch (etiqueta) {
+            case 1: // Boolean
+                obj = in.readBoolean();
+                break;
+            case 2: // Character
+                obj = in.readChar();
+                break;
+            case 3: // Double
+                obj = in.readDouble();
+                break;
+            case 4: // Float
+                obj = in.readFloat();
+                break;
+            case 5: // Integer
+                obj = in.readInt();
+                break;
+            case 6: // Long
+                obj = in.readLong();
+                break;
+            case 7: // Short
+                obj = in.readShort();
+                break;
+            case 8: // String
+                obj = in.readUTF();
+                break;
+            case 9: // int[]
+            case 10: // long[]
+            case 11: // double[]
+            case 12: // byte[]
+                obj = decodificarArray(etiqueta, in);
+                break;
+            default: // Cualquier otro
+                obj = in.readObject();
+        }
 
-        for (int i = 0; i < datos.size() && !centinela; i++) {
+        return obj;
+    }
 
-            if (datos.get(i).equals(dato)) {
-                datos.remove(i);
-                centinela = true;
+    /**
+     * Lee un array escrito con codificarArray. Los bytes se leen de una vez y
+     * se copian al array de destino a través de una vista de ByteBuffer.
+     *
+     * @param etiqueta Byte etiqueta del array (de 9 a 12).
+     * @param in Flujo del que se leerá el array.
+     * @return Array leído.
+     * @throws IOException
+     */
+    private static Object decodificarArray(byte etiqueta, DataInput in) throws IOException {
+        Object array;
+        int longitud = in.readInt();
+
+        switch (etiqueta) {
+            case 9: // int[]
+                ByteBuffer bytesInts = leerBuffer(in, pesoArray(longitud, Integer.BYTES));
+                int[] ints = new int[longitud];
+                bytesInts.asIntBuffer().get(ints);
+                array = ints;
+                break;
+            case 10: // long[]
+                ByteBuffer bytesLongs = leerBuffer(in, pesoArray(longitud, Long.BYTES));
+                long[] longs = new long[longitud];
+                bytesLongs.asLongBuffer().get(longs);
+                array = longs;
+                break;
+            case 11: // double[]
+                ByteBuffer bytesDoubles = leerBuffer(in, pesoArray(longitud, Double.BYTES));
+                double[] doubles = new double[longitud];
+                bytesDoubles.asDoubleBuffer().get(doubles);
+                array = doubles;
+                break;
+            default: // byte[]
+                array = leerBuffer(in, pesoArray(longitud, Byte.BYTES)).array();
+        }
+
+        return array;
+    }
+
+    /**
+     * Lee un dato escrito en formato compacto en base a su byte etiqueta.
+     *
+     * @param etiqueta Byte que se usa para determinar que tipo de dato se leerá
+     * a continuación.
+     * @param in Flujo del que se leerá el dato.
+     * @return Object con el dato que se leyó.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    static Object decodificarCompacto(byte etiqueta, DataInput in)
+            throws IOException, ClassNotFoundException {
+        Object obj;
+
+        switch (etiqueta) {
+            case 1: // Boolean
+                obj = in.readBoolean();
+                break;
+            case 2: // Character
+                obj = in.readChar();
+                break;
+            case 3: // Double
+                obj = in.readDouble();
+                break;
+            case 4: // Float
+                obj = in.readFloat();
+                break;
+            case 5: // Integer
+                obj = in.readInt();
+                break;
+            case 6: // Long
+                obj = in.readLong();
+                break;
+            case 7: // Short
+                obj = in.readShort();
+                break;
+            case 8: // String
+                byte[] texto = new byte[in.readInt()];
+                in.readFully(texto);
+                obj = new String(texto, StandardCharsets.UTF_8);
+                break;
+            case 9: // int[]
+            case 10: // long[]
+            case 11: // double[]
+            case 12: // byte[]
+                obj = decodificarArray(etiqueta, in);
+                break;
+            case 100: // Cualquier otro
+                byte[] serializado = new byte[in.readInt()];
+                in.readFully(serializado);
+                try (ObjectInputStream ois = new ObjectInputStream(
+                        new ByteArrayInputStream(serializado))) {
+                    obj = ois.readObject();
+                }
+                break;
+            default:
+                throw new StreamCorruptedException("Etiqueta desconocida: " + etiqueta);
+        }
+
+        return obj;
+    }
+
+    /**
+     * Identifica el formato de un archivo por sus primeros bytes.
+     *
+     * @param archivo Archivo que se comprobará.
+     * @return FORMATO_COMPACTO o FORMATO_CLASICO según el contenido del
+     * archivo, o 0 si no existe o está vacío.
+     * @throws IOException
+     */
+    static int detectarFormato(File archivo) throws IOException {
+        int formatoArchivo = 0;
+
+        if (archivo.exists() && archivo.length() > 0) {
+            formatoArchivo = FORMATO_CLASICO;
+
+            if (archivo.length() >= CABECERA_COMPACTA.length) {
+                byte[] cabecera = new byte[CABECERA_COMPACTA.length];
+                try (DataInputStream in = new DataInputStream(
+                        new FileInputStream(archivo))) {
+                    in.readFully(cabecera);
+                }
+
+                if (Arrays.equals(cabecera, CABECERA_COMPACTA)) {
+                    formatoArchivo = FORMATO_COMPACTO;
+                } else if (Arrays.equals(cabecera, CABECERA_COMPRIMIDA)) {
+                    formatoArchivo = FORMATO_COMPRIMIDO;
+                }
             }
         }
 
-        return reescribirArchivo(datos.toArray());
+        return formatoArchivo;
+    }
+
+    /**
+     * Desactiva el filtro de Bloom del archivo y elimina su archivo auxiliar.
+     *
+     * @return true si el filtro estaba activo y se ha eliminado, false en caso
+     * contrario.
+     */
+    public boolean desactivarFiltroBloom() {
+        return filtro.borrar();
+    }
+
+    /**
+     * Indica si el filtro de Bloom asegura que el dato no está en el archivo,
+     * en cuyo caso no es necesario buscarlo.
+     *
+     * @param dato Dato que se buscará.
+     * @return true si el dato seguro que no está en el archivo.
+     * @throws IOException
+     */
+    private boolean descartadoPorFiltro(Object dato) throws IOException {
+        return FiltroBloom.esFiltrable(dato) && sincronizarFiltro()
+                && !filtro.puedeContener(FiltroBloom.huella(dato));
+    }
+
+    /**
+     * Elimina el registro de mutaciones, que deja de valer cuando el archivo se
+     * vuelve a escribir desde el principio.
+     */
+    void descartarMutaciones() {
+        invalidarMapa();
+        mutaciones.borrar();
+    }
+
+    /**
+     * Elimina la primera ocurrencia del dato pasado como parámetro. El borrado
+     * se añade al registro de mutaciones en lugar de reescribir el archivo.
+     *
+     * @param dato Dato que se buscará para eliminar.
+     * @return true si el eliminado ha salido correctamente, false en caso
+     * contrario.
+     */
+    public boolean eliminar(Object dato) {
+        return registrarBorrados(dato, false);
     }
     
     /**
      * Este método elimina el dato que ocupa la posicion pasada como parámetro.
+     * El borrado se añade al registro de mutaciones en lugar de reescribir el
+     * archivo, por lo que no es necesario leer los datos.
      * 
      * @param posicion Posición que ocupa el dato que se eliminará. Este debe
      * ser un número entero entre 1 y n.
@@ -176,35 +1045,30 @@ public class BinaryFilesUtils {
         
         // Si la posicion es correcta...
         if(posicion > 0 && posicion <= numDatos()){
-            // Se leen los datos, se elimina el indicado y se reescribe el archivo.
-            ArrayList<Object> datos = new ArrayList<>(Arrays.asList(leerTodo()));
-            datos.remove(posicion - 1);
-            borradoOk = reescribirArchivo(datos.toArray());
+            try {
+                mutaciones.anhadirBorrados(mutaciones.aFisica(posicion - 1));
+                borradoOk = true;
+                comprobarCompactacion();
+
+            } catch (IOException e) {
+                printException(e);
+            }
         }
         
         return borradoOk;
     }
 
     /**
-     * Elimina todas las ocurrencias del dato pasado como parámetro y reescribe
-     * el archivo sin ellos.
+     * Elimina todas las ocurrencias del dato pasado como parámetro. Los
+     * borrados se añaden al registro de mutaciones en lugar de reescribir el
+     * archivo.
      *
      * @param dato Dato que se buscará para eliminar.
      * @return true si el eliminado ha salido correctamente, false en caso
      * contrario.
      */
     public boolean eliminarTodo(Object dato) {
-        ArrayList<Object> datos = new ArrayList<>(Arrays.asList(leerTodo()));
-
-        for (int i = 0; i < datos.size(); i++) {
-
-            if (datos.get(i).equals(dato)) {
-                datos.remove(i);
-                i--; // Para compensar la posicion del dato que se eliminó.
-            }
-        }
-
-        return reescribirArchivo(datos.toArray());
+        return registrarBorrados(dato, true);
     }
 
     /**
@@ -216,48 +1080,10 @@ public class BinaryFilesUtils {
      */
     public boolean escribir(Object dato) {
         boolean escrituraOk = true;
-        Class<?> dataClass = dato.getClass();
 
-        try (ObjectOutputStream out = abrirEscritor()) {
-
-            switch (dataClass.getSimpleName()) {
-                case "Boolean":
-                    out.writeByte(1);
-                    out.writeBoolean((Boolean) dato);
-                    break;
-                case "Character":
-                    out.writeByte(2);
-                    out.writeChar((Character) dato);
-                    break;
-                case "Double":
-                    out.writeByte(3);
-                    out.writeDouble((Double) dato);
-                    break;
-                case "Float":
-                    out.writeByte(4);
-                    out.writeFloat((Float) dato);
-                    break;
-                case "Integer":
-                    out.writeByte(5);
-                    out.writeInt((Integer) dato);
-                    break;
-                case "Long":
-                    out.writeByte(6);
-                    out.writeLong((Long) dato);
-                    break;
-                case "Short":
-                    out.writeByte(7);
-                    out.writeShort((Short) dato);
-                    break;
-                case "String":
-                    out.writeByte(8);
-                    out.writeUTF((String) dato);
-                    break;
-                default:
-                    // Si el tipo de dato no se corresponde con ninguno de los anteriores...
-                    out.writeByte(100);
-                    out.writeObject(dato);
-            }
+        // Un escritor de un solo dato: se vuelca y se cierra al terminar.
+        try (EscritorBinario out = new EscritorBinario(this, 1, 0)) {
+            out.escribir(dato);
 
         } catch (IOException e) {
             escrituraOk = false;
@@ -266,9 +1092,60 @@ public class BinaryFilesUtils {
         return escrituraOk;
     }
 
+    /**
+     * Escribe un array de bytes como un único dato, sin una etiqueta por
+     * elemento. Se lee con leerBytes.
+     *
+     * @param datos Array que se escribirá.
+     * @return true si la escritura se realizó correctamente, false en caso
+     * contrario.
+     */
+    public boolean escribirBytes(byte[] datos) {
+        return escribir(datos);
+    }
+
+    /**
+     * Escribe un array de double como un único dato, sin una etiqueta por
+     * elemento ni un Double por valor. Se lee con leerDoubles.
+     *
+     * @param datos Array que se escribirá.
+     * @return true si la escritura se realizó correctamente, false en caso
+     * contrario.
+     */
+    public boolean escribirDoubles(double[] datos) {
+        return escribir(datos);
+    }
+
+    /**
+     * Escribe un array de int como un único dato, sin una etiqueta por
+     * elemento ni un Integer por valor. Ocupa 4 bytes por elemento en lugar de
+     * los 5 o más de escribir cada valor con escribirTodo. Se lee con
+     * leerInts.
+     *
+     * @param datos Array que se escribirá.
+     * @return true si la escritura se realizó correctamente, false en caso
+     * contrario.
+     */
+    public boolean escribirInts(int[] datos) {
+        return escribir(datos);
+    }
+
+    /**
+     * Escribe un array de long como un único dato, sin una etiqueta por
+     * elemento ni un Long por valor. Se lee con leerLongs.
+     *
+     * @param datos Array que se escribirá.
+     * @return true si la escritura se realizó correctamente, false en caso
+     * contrario.
+     */
+    public boolean escribirLongs(long[] datos) {
+        return escribir(datos);
+    }
+
     /**
      * Este método escribe en el archivo binario una serie de datos pasados como
-     * parámetro en un array de Object.
+     * parámetro en un array de Object. Todos los datos se escriben con un
+     * mismo EscritorBinario, por lo que el archivo se abre una sola vez.
      * @param datos array de objetos que se escribiran en el archivo.
      * @return true si la escritura de todos los datos se ha realizado correctamente,
      * false en caso contrario.
@@ -276,13 +1153,13 @@ public class BinaryFilesUtils {
     public boolean escribirTodo(Object[] datos) {
         boolean escrituraOk = true;
 
-        for (Object dato : datos) {
-            /* El if hará la escritura del objeto y a la vez comprobará que ha
-            salido bien. De no ser así se frenará el bucle y se devolverá un false.*/
-            if (!escribir(dato)) {
-                escrituraOk = false;
-                break;
+        try (EscritorBinario out = crearEscritor()) {
+            for (Object dato : datos) {
+                out.escribir(dato);
             }
+
+        } catch (IOException e) {
+            escrituraOk = false;
         }
 
         return escrituraOk;
@@ -297,6 +1174,58 @@ public class BinaryFilesUtils {
         return archivo.exists();
     }
 
+    /**
+     * Reescribe el archivo dejando solo los datos que cumplan la condición.
+     * Los datos se leen y escriben de uno en uno en un archivo temporal que
+     * solo sustituye al original si todo ha ido bien.
+     *
+     * @param condicion Condición que deben cumplir los datos que se conservan.
+     * @return true si la reescritura se completó, false en caso contrario. Si
+     * falla, el archivo original queda intacto.
+     */
+    public boolean filtrar(Predicate<Object> condicion) {
+        return transformar(dato -> condicion.test(dato) ? dato : null);
+    }
+
+    /**
+     * Devuelve la foto actual del archivo si la lectura mapeada está activada.
+     *
+     * @return Foto del archivo, o null si la lectura mapeada está desactivada,
+     * el archivo no existe o no se ha podido proyectar, en cuyo caso se lee
+     * con flujos.
+     */
+    private MapaArchivo.Foto fotoMapeada() {
+        MapaArchivo.Foto foto = null;
+
+        if (mapa != null) {
+            try {
+                foto = mapa.obtener();
+            } catch (IOException e) {
+                // Se lee con flujos.
+            }
+        }
+
+        return foto;
+    }
+
+    /**
+     * Devuelve el formato del archivo si ya tiene datos o el formato clásico
+     * si aún está vacío.
+     *
+     * @return Formato con el que se trabajará al crear el objeto.
+     */
+    private int formatoInicial() {
+        int formatoArchivo;
+
+        try {
+            formatoArchivo = detectarFormato(archivo);
+        } catch (IOException e) {
+            formatoArchivo = 0;
+        }
+
+        return (formatoArchivo != 0) ? formatoArchivo : FORMATO_CLASICO;
+    }
+
     /**
      * Este método genera un nuevo nombre para un archivo copiado construye una
      * nueva ruta que apunta al mismo. La sintaxis del nuevo nombre será:
@@ -327,136 +1256,297 @@ public class BinaryFilesUtils {
     }
 
     /**
-     * En base al byte pasado como parámetro, el método sabrá que tipo de dato
-     * se leerá a continuación, recogerá ese dato y lo devolverá.
+     * Hace que la siguiente lectura mapeada compruebe si el archivo ha
+     * cambiado. Se llama cada vez que se modifica el archivo.
+     */
+    private void invalidarMapa() {
+        if (mapa != null) {
+            mapa.invalidar();
+        }
+    }
+
+    /**
+     * Devuelve un iterador que lee los datos del archivo de uno en uno, sin
+     * cargarlos todos en memoria. Debe cerrarse si se deja de recorrer antes
+     * de llegar al final.
      *
-     * @param etiqueta Byte que se usa para determinar que tipo de dato se leerá
-     * a continuación.
-     * @param in ObjectInputStream que leerá los datos.
-     * @return Object con el dato que se leyó.
+     * @return IteradorBinario sobre los datos del archivo.
+     * @throws IOException
      */
-    private Object leerDato(byte etiqueta, ObjectInputStream in) {
-        Object obj = null;
+    public IteradorBinario iterador() throws IOException {
+        mutaciones.cargar();
+        return (mapa != null && peso() > 0)
+                ? new IteradorBinario(abrirLectorEnOffset(0), 0, mutaciones)
+                : new IteradorBinario(archivo, 0, 0, mutaciones);
+    }
 
-        try {
-            switch (etiqueta) {
-                case 1: // Boolean
-                    obj = in.readBoolean();
-                    break;
-                case 2: // Character
-                    obj = in.readChar();
-                    break;
-                case 3: // Double
-                    obj = in.readDouble();
-                    break;
-                case 4: // Float
-                    obj = in.readFloat();
-                    break;
-                case 5: // Integer
-                    obj = in.readInt();
-                    break;
-                case 6: // Long
-                    obj = in.readLong();
-                    break;
-                case 7: // Short
-                    obj = in.readShort();
-                    break;
-                case 8: // String
-                    obj = in.readUTF();
-                    break;
-                default: // Cualquier otro
-                    obj = in.readObject();
-            }
+    /**
+     * Devuelve un iterador que lee los datos del archivo de uno en uno
+     * empezando por el de la posición indicada, a la que salta directamente
+     * usando el índice de offsets.
+     *
+     * @param posicion Posición del primer dato que se leerá. De 1 a n.
+     * @return IteradorBinario sobre los datos del archivo desde la posición.
+     * @throws IOException
+     */
+    public IteradorBinario iterador(int posicion) throws IOException {
+        if (posicion <= 0) {
+            throw new IllegalArgumentException("La posición debe ser mayor que cero.");
+        }
 
-        } catch (EOFException e) {
-            // No es necesario realizar ninguna acción aqui.
-        } catch (IOException ex) {
-            System.out.println("Error al leer el archivo.");
+        IteradorBinario iterador;
+        if (posicion <= numDatos()) {
+            int fisica = mutaciones.aFisica(posicion - 1);
+            iterador = new IteradorBinario(abrirLector(fisica), fisica, mutaciones);
+        } else {
+            // No hay datos a partir de esa posición.
+            iterador = new IteradorBinario();
+        }
 
-        } catch (ClassNotFoundException ex) {
-            System.out.println("Clase no encontrada.");
+        return iterador;
+    }
 
-        } catch (Exception e) {
-            printException(e);
+    /**
+     * Lee los datos que hay entre dos posiciones físicas del archivo,
+     * saltando directamente al primero con el índice de offsets y aplicando
+     * los borrados y reemplazos pendientes. Solo lee el archivo, así que puede
+     * llamarse a la vez desde varios hilos.
+     *
+     * @param inicio Posición física del primer dato (incluida), de 0 a n-1.
+     * @param fin Posición física del último dato (excluida).
+     * @return Object[] con los datos del bloque que no están borrados.
+     * @throws IOException
+     */
+    private Object[] leerBloque(int inicio, int fin) throws IOException {
+        ArrayList<Object> bloque = new ArrayList<>(fin - inicio);
+
+        try (LectorBinario lector = abrirLector(inicio)) {
+
+            for (int fisica = inicio; fisica < fin; fisica++) {
+                Object leido = lector.siguiente();
+
+                if (!mutaciones.estaBorrado(fisica)) {
+                    bloque.add(mutaciones.fusionar(fisica, leido));
+                }
+            }
+
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Clase no encontrada.", e);
         }
 
-        return obj;
+        return bloque.toArray();
+    }
+
+    /**
+     * Lee de una vez los bytes indicados del flujo.
+     *
+     * @param in Flujo del que se leerá.
+     * @param numBytes Cantidad de bytes que se leerán.
+     * @return ByteBuffer con los bytes leídos.
+     * @throws IOException
+     */
+    private static ByteBuffer leerBuffer(DataInput in, int numBytes) throws IOException {
+        byte[] bytes = new byte[numBytes];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Lee el array de bytes escrito con escribirBytes en la posición indicada.
+     *
+     * @param posicion Posición del dato en el archivo. De 1 a n.
+     * @return Array leído, o null si no existe o no es un array de bytes.
+     */
+    public byte[] leerBytes(int posicion) {
+        Object dato = leerEnPosicion(posicion);
+        return (dato instanceof byte[]) ? (byte[]) dato : null;
+    }
+
+    /**
+     * Lee el array de double escrito con escribirDoubles en la posición
+     * indicada.
+     *
+     * @param posicion Posición del dato en el archivo. De 1 a n.
+     * @return Array leído, o null si no existe o no es un array de double.
+     */
+    public double[] leerDoubles(int posicion) {
+        Object dato = leerEnPosicion(posicion);
+        return (dato instanceof double[]) ? (double[]) dato : null;
     }
 
     /**
      * Este método devuelve el dato en la posicion que pasada como parámetro.
-     * La posición debe estar entre 1 y N.
+     * La posición debe estar entre 1 y N. Gracias al índice de offsets el
+     * archivo se abre directamente en el byte donde empieza el dato y solo se
+     * decodifica ese dato.
      * @param posicion Posición en el archivo del dato que se quiere leer.
      * @return Dato leido en la posicion especificada.
      */
     public Object leerEnPosicion(int posicion) {
         Object obj = null;
         
-        // Si el archivo existe y la posición es correcta...
-        if (existe() && posicion > 0 && posicion <= numDatos()) {
-            try (ObjectInputStream in = new ObjectInputStream(
-                    new FileInputStream(archivo))) {
-         
-                for (int i = 1; i <= posicion; i++) {
-                    // Si es la posición indicada se guarda el dato requerido.
-                    if (i == posicion) {
-                        obj = leerDato(in.readByte(), in);
-                        
-                    } else {
-                        // Si NO es la posicion adecuada se lee el dato para pasar al siguiente.
-                        leerDato(in.readByte(), in);
-                    }
+        // Si la posición es correcta (si el archivo no existe no hay datos)...
+        if (posicion > 0 && posicion <= numDatos()) {
+            int fisica = mutaciones.aFisica(posicion - 1);
+            // Si el dato fue reemplazado no es necesario leer el archivo.
+            obj = mutaciones.fusionar(fisica, null);
+
+            if (obj == null) {
+                try (LectorBinario lector = abrirLector(fisica)) {
+
+                    obj = lector.siguiente();
+
+                } catch (ClassNotFoundException ex) {
+                    System.out.println("Clase no encontrada.");
+                } catch (EOFException e) {
+                    // No es necesario realizar ninguna acción aqui.
+                } catch (IOException ex) {
+                    System.out.println("Error al leer el archivo.");
+                } catch (Exception e) {
+                    printException(e);
+                }
+            }
+        }
+
+        return obj;
+    }
+    
+    /**
+     * Lee el array de int escrito con escribirInts en la posición indicada.
+     * Gracias al índice de offsets se salta directamente al array, y sus
+     * valores se copian de una vez a través de una vista de ByteBuffer.
+     *
+     * @param posicion Posición del dato en el archivo. De 1 a n.
+     * @return Array leído, o null si no existe o no es un array de int.
+     */
+    public int[] leerInts(int posicion) {
+        Object dato = leerEnPosicion(posicion);
+        return (dato instanceof int[]) ? (int[]) dato : null;
+    }
+
+    /**
+     * Lee el array de long escrito con escribirLongs en la posición indicada.
+     *
+     * @param posicion Posición del dato en el archivo. De 1 a n.
+     * @return Array leído, o null si no existe o no es un array de long.
+     */
+    public long[] leerLongs(int posicion) {
+        Object dato = leerEnPosicion(posicion);
+        return (dato instanceof long[]) ? (long[]) dato : null;
+    }
+
+    /**
+     * Este método lee el archivo de principio a fin y devuelve un Object[] con
+     * el contenido del mismo.
+     *
+     * @return Object[] Array de objetos con todos los datos guardados en el
+     * archivo.
+     */
+    public Object[] leerTodo() {
+        ArrayList<Object> dataList = new ArrayList<>();
+
+        if (existe()) {
+            try (IteradorBinario datos = iterador()) {
+
+                while (datos.hasNext()) {
+                    // Lee el siguiente dato del archivo y lo añade al array.
+                    dataList.add(datos.next());
                 }
-            }catch (EOFException e) {
-                // No es necesario realizar ninguna acción aqui.
-            } catch (IOException ex) {
+
+            } catch (IOException | UncheckedIOException ex) {
                 System.out.println("Error al leer el archivo.");
             } catch (Exception e) {
                 printException(e);
             }
         }
 
-        return obj;
+        return dataList.toArray(new Object[0]);
     }
-    
+
     /**
-     * Este método lee el archivo de principio a fin y devuelve un Object[] con
-     * el contenido del mismo.
+     * Igual que leerTodo, pero decodifica el archivo por bloques en varios
+     * hilos a la vez. Los datos se devuelven en el mismo orden en que están
+     * en el archivo. Conviene en archivos grandes, en los que el tiempo de
+     * lectura se va en decodificar los datos.
      *
      * @return Object[] Array de objetos con todos los datos guardados en el
      * archivo.
      */
-    public Object[] leerTodo() {
-        ArrayList<Object> dataList = new ArrayList<>();
+    public Object[] leerTodoEnParalelo() {
+        Object[] datos = new Object[0];
 
         if (existe()) {
-            try (ObjectInputStream in = new ObjectInputStream(
-                    new FileInputStream(archivo))) {
-
-                while (true) {
-                    /* Lee el byte etiqueta, lee el siguiente dato del archivo 
-                    y lo añade al array */
-                    dataList.add(leerDato(in.readByte(), in));
-                }
+            try (Stream<Object> stream = streamParalelo()) {
+                datos = stream.toArray();
 
-            } catch (EOFException e) {
-                // No es necesario realizar ninguna acción aqui.
-            } catch (IOException ex) {
+            } catch (IOException | UncheckedIOException ex) {
                 System.out.println("Error al leer el archivo.");
             } catch (Exception e) {
                 printException(e);
             }
         }
 
-        return dataList.toArray(new Object[0]);
+        return datos;
     }
 
     /**
-     * Indica la cantidad de datos que están escritos en el archivo.
+     * Indica la cantidad de datos que están escritos en el archivo. Se obtiene
+     * del índice de offsets y del registro de mutaciones, por lo que no es
+     * necesario leer el archivo.
      * @return 
      */
     public int numDatos(){
-        return leerTodo().length;
+        return (sincronizar())
+                ? Math.max(0, indice.getNumOffsets() - mutaciones.getNumBorrados()) : 0;
+    }
+
+    /**
+     * Ordena los datos del archivo según su orden natural y reescribe el
+     * archivo. Todos los datos deben ser comparables entre sí.
+     *
+     * @return true si la ordenación se completó, false en caso contrario.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean ordenar() {
+        return ordenar((Comparator<Object>) (Comparator<?>) Comparator.naturalOrder());
+    }
+
+    /**
+     * Ordena los datos del archivo con el comparador indicado y reescribe el
+     * archivo. Usa como mucho una cuarta parte de la memoria máxima de la JVM.
+     *
+     * @param comparador Comparador con el que se ordenarán los datos.
+     * @return true si la ordenación se completó, false en caso contrario.
+     */
+    public boolean ordenar(Comparator<Object> comparador) {
+        return ordenar(comparador, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Ordena los datos del archivo con el comparador indicado y reescribe el
+     * archivo. Si los datos no caben en la memoria indicada se ordenan por
+     * tramos en archivos temporales que después se mezclan, por lo que se
+     * pueden ordenar archivos mucho mayores que la memoria disponible. El
+     * archivo ordenado sustituye al original solo cuando está completo.
+     *
+     * @param comparador Comparador con el que se ordenarán los datos.
+     * @param memoriaMaxima Bytes de memoria (aproximados) que pueden ocupar
+     * los datos que se ordenan a la vez.
+     * @return true si la ordenación se completó, false en caso contrario.
+     */
+    public boolean ordenar(Comparator<Object> comparador, long memoriaMaxima) {
+        if (memoriaMaxima <= 0) {
+            throw new IllegalArgumentException("La memoria debe ser mayor que cero.");
+        }
+
+        OrdenacionExterna ordenacion = new OrdenacionExterna(comparador, memoriaMaxima,
+                archivo.getAbsoluteFile().getParentFile(), getNombre());
+
+        return reescribirEnTemporal(formato, out -> {
+            try (IteradorBinario datos = iterador()) {
+                ordenacion.ordenar(datos, out);
+            }
+        });
     }
 
     /**
@@ -467,6 +1557,30 @@ public class BinaryFilesUtils {
     public long peso() {
         return archivo.length();
     }
+
+    /**
+     * Calcula los bytes que ocupan los elementos de un array de primitivos.
+     *
+     * @param longitud Cantidad de elementos del array.
+     * @param pesoElemento Bytes de cada elemento.
+     * @return Bytes de los elementos del array.
+     * @throws StreamCorruptedException si la longitud es negativa, lo que solo
+     * ocurre al leer un archivo dañado.
+     * @throws IOException si los elementos ocupan más de lo que cabe en un
+     * array de bytes (2 GB).
+     */
+    static int pesoArray(int longitud, int pesoElemento) throws IOException {
+        long peso = (long) longitud * pesoElemento;
+
+        if (longitud < 0) {
+            throw new StreamCorruptedException("Longitud de array no válida: " + longitud);
+        } else if (peso > Integer.MAX_VALUE) {
+            throw new IOException("El array de " + longitud + " elementos ocupa "
+                    + "más de 2 GB y no se puede guardar como un solo dato.");
+        }
+
+        return (int) peso;
+    }
     
     /**
      * Imprime por pantalla la clase y el mensaje de la excepción pasada como
@@ -480,9 +1594,41 @@ public class BinaryFilesUtils {
                 + " \n " + e.getMessage() + " \u001B[0m\n");
     }
 
+    /**
+     * Crea de nuevo el filtro de Bloom leyendo todos los datos del archivo,
+     * con capacidad para el doble de los datos que hay ahora.
+     *
+     * @return true si el filtro se ha creado y guardado, false en caso
+     * contrario.
+     */
+    private boolean reconstruirFiltro() {
+        boolean filtroOk = true;
+
+        filtro.vaciar(Math.max(CAPACIDAD_MINIMA_FILTRO, 2 * numDatos()));
+        try (IteradorBinario datos = iterador()) {
+            while (datos.hasNext()) {
+                Object dato = datos.next();
+                if (FiltroBloom.esFiltrable(dato)) {
+                    filtro.anhadir(FiltroBloom.huella(dato));
+                }
+            }
+
+            filtro.setPesoCubierto(peso());
+            filtro.guardar();
+
+        } catch (IOException | UncheckedIOException e) {
+            printException(e);
+            filtro.borrar();
+            filtroOk = false;
+        }
+
+        return filtroOk;
+    }
+
     /**
      * Reemplaza la primera ocurrencia del dato especificado con
-     * un dato nuevo pasado como parámetro.
+     * un dato nuevo pasado como parámetro. El reemplazo se añade al registro
+     * de mutaciones en lugar de reescribir el archivo.
      *
      * @param objAntiguo dato que se buscará para reemplazar.
      * @param objNuevo nuevo dato por el que reemplazará el antiguo.
@@ -490,39 +1636,166 @@ public class BinaryFilesUtils {
      * contrario.
      */
     public boolean reemplazar(Object objAntiguo, Object objNuevo) {
-        Object[] datos = leerTodo();
-        boolean centinela = false;
+        return registrarReemplazos(objAntiguo, objNuevo, false);
+    }
+
+    /**
+     * Reemplaza todas las ocurrencias que encuentre del dato especificado con
+     * un dato nuevo pasado como parámetro. Los reemplazos se añaden al
+     * registro de mutaciones en lugar de reescribir el archivo.
+     *
+     * @param objAntiguo dato que se buscará para reemplazar.
+     * @param objNuevo nuevo dato por el que reemplazará el antiguo.
+     * @return true si se consigue reemplazar correctamente, false en caso
+     * contrario.
+     */
+    public boolean reemplazarTodo(Object objAntiguo, Object objNuevo) {
+        return registrarReemplazos(objAntiguo, objNuevo, true);
+    }
+
+    /**
+     * Hace que la siguiente lectura mapeada compruebe si el archivo ha
+     * cambiado y, si es así, lo vuelva a proyectar. Los cambios hechos con
+     * este objeto se ven siempre en la siguiente lectura, pero los hechos por
+     * otros procesos solo se comprueban una vez cada décima de segundo; este
+     * método permite verlos enseguida.
+     */
+    public void refrescarLecturaMapeada() {
+        invalidarMapa();
+    }
 
-        for (int i = 0; i < datos.length && !centinela; i++) {
+    /**
+     * Busca el dato indicado y añade su borrado al registro de mutaciones.
+     *
+     * @param dato Dato que se buscará para eliminar.
+     * @param todas true para eliminar todas las ocurrencias, false para
+     * eliminar solo la primera.
+     * @return true si no ha habido errores, false en caso contrario.
+     */
+    private boolean registrarBorrados(Object dato, boolean todas) {
+        boolean borradoOk = true;
 
-            if (datos[i].equals(objAntiguo)) {
-                datos[i] = objNuevo;
-                centinela = true;
+        try {
+            // Si el filtro descarta el dato no hay nada que borrar.
+            int[] fisicas = descartadoPorFiltro(dato)
+                    ? new int[0] : buscarFisicas(dato, todas);
+
+            if (fisicas.length > 0) {
+                mutaciones.anhadirBorrados(fisicas);
+                comprobarCompactacion();
             }
+
+        } catch (IOException e) {
+            printException(e);
+            borradoOk = false;
         }
 
-        return reescribirArchivo(datos);
+        return borradoOk;
     }
 
     /**
-     * Reemplaza todas las ocurrencias que encuentre del dato especificado con
-     * un dato nuevo pasado como parámetro.
+     * Busca el dato indicado y añade su reemplazo al registro de mutaciones.
      *
      * @param objAntiguo dato que se buscará para reemplazar.
      * @param objNuevo nuevo dato por el que reemplazará el antiguo.
-     * @return true si se consigue reemplazar correctamente, false en caso
-     * contrario.
+     * @param todas true para reemplazar todas las ocurrencias, false para
+     * reemplazar solo la primera.
+     * @return true si no ha habido errores, false en caso contrario.
      */
-    public boolean reemplazarTodo(Object objAntiguo, Object objNuevo) {
-        Object[] datos = leerTodo();
+    private boolean registrarReemplazos(Object objAntiguo, Object objNuevo,
+            boolean todas) {
+        boolean reemplazoOk = true;
+
+        try {
+            // Si el filtro descarta el dato no hay nada que reemplazar.
+            int[] fisicas = descartadoPorFiltro(objAntiguo)
+                    ? new int[0] : buscarFisicas(objAntiguo, todas);
+
+            if (fisicas.length > 0) {
+                mutaciones.anhadirReemplazos(objNuevo, fisicas);
+
+                // El nuevo dato pasa a estar en el archivo.
+                if (FiltroBloom.esFiltrable(objNuevo) && sincronizarFiltro()) {
+                    filtro.anhadir(FiltroBloom.huella(objNuevo));
+                    filtro.guardar();
+                }
+                comprobarCompactacion();
+            }
+
+        } catch (IOException e) {
+            printException(e);
+            reemplazoOk = false;
+        }
+
+        return reemplazoOk;
+    }
+
+    /**
+     * Escribe los datos que produce el generador en un archivo temporal de la
+     * misma carpeta, lo fuerza a disco y lo mueve sobre el original con un
+     * movimiento atómico. Si algo falla antes del movimiento el archivo
+     * original queda intacto. Al terminar se eliminan el registro de
+     * mutaciones, que ya no corresponde a los nuevos datos, y el índice y el
+     * filtro de Bloom, que se sustituyen por los del temporal.
+     *
+     * @param formatoDestino Formato en el que se reescribirá el archivo.
+     * @param generador Escribe los nuevos datos en el temporal.
+     * @return true si la reescritura se completó, false en caso contrario.
+     */
+    private boolean reescribirEnTemporal(int formatoDestino, GeneradorDatos generador) {
+        boolean reescrituraOk = true;
+        BinaryFilesUtils temporal = null;
+
+        try {
+            File carpeta = archivo.getAbsoluteFile().getParentFile();
+            temporal = new BinaryFilesUtils(File.createTempFile(
+                    getNombre() + ".", ".tmp", carpeta), formatoDestino);
+
+            // El filtro del temporal se rellena a la vez que se escribe.
+            boolean conFiltro = filtro.estaActivo();
+            if (conFiltro) {
+                temporal.filtro.vaciar(Math.max(CAPACIDAD_MINIMA_FILTRO, 2 * numDatos()));
+                temporal.filtro.guardar();
+            }
+
+            try (EscritorBinario out = temporal.crearEscritor()) {
+                generador.escribirEn(out);
+                out.sincronizar();
+            }
+
+            try {
+                Files.move(temporal.getArchivo().toPath(), archivo.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporal.getArchivo().toPath(), archivo.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            sincronizarCarpeta(carpeta);
+            invalidarMapa();
+
+            formato = formatoDestino;
+            mutaciones.borrar();
+
+            // El índice del temporal es válido para el nuevo archivo.
+            indice.borrar();
+            temporal.getIndice().getArchivoIndice()
+                    .renameTo(indice.getArchivoIndice());
 
-        for (int i = 0; i < datos.length; i++) {
+            if (conFiltro) {
+                filtro.borrar();
+                temporal.filtro.getArchivoFiltro().renameTo(filtro.getArchivoFiltro());
+            }
 
-            if (datos[i].equals(objAntiguo)) {
-                datos[i] = objNuevo;
+        } catch (IOException | RuntimeException e) {
+            printException(e);
+            if (temporal != null) {
+                temporal.borrar();
             }
+            reescrituraOk = false;
         }
-        return reescribirArchivo(datos);
+
+        return reescrituraOk;
     }
 
     /**
@@ -538,6 +1811,7 @@ public class BinaryFilesUtils {
         // Si el nuevo nombre NO contiene símbolos prohibidos...
         if (valNombreArchivo(nuevoNombre)) {
             Object[] datos = leerTodo();
+            boolean conFiltro = filtro.estaActivo();
             // Esta linea comprueba el tipo de ruta.
             String tipoBarra = (ruta.contains("/")) ? "/" : "\\";
             // Asegurando que el nuevo nombre incluye la extensión.
@@ -550,7 +1824,12 @@ public class BinaryFilesUtils {
             borrar();
             ruta = nuevaRuta;
             archivo = new File(nuevaRuta);
-            renombreOk = escribirTodo(datos);
+            indice = new IndiceBinario(archivo);
+            mutaciones = new RegistroMutaciones(archivo);
+            filtro = new FiltroBloom(archivo);
+            mapa = (mapa != null) ? new MapaArchivo(archivo) : null;
+            renombreOk = escribirTodo(datos)
+                    && (!conFiltro || activarFiltroBloom());
         } else {
             renombreOk = false;
         }
@@ -559,9 +1838,10 @@ public class BinaryFilesUtils {
     }
 
     /**
-     * Este método elimina el archivo y crea otro con el mismo nombre en la
-     * misma ruta. El nuevo archivo contendrá los nuevos datos pasados como
-     * párametro en un Array de Object.
+     * Este método sustituye el contenido del archivo por los nuevos datos
+     * pasados como párametro en un Array de Object. Los datos se escriben en
+     * un archivo temporal que sustituye al original solo cuando está completo,
+     * por lo que un fallo a mitad no hace perder el archivo.
      *
      * @param objetos Array de Object con los datos por los que se sustituirán
      * los originales.
@@ -569,8 +1849,314 @@ public class BinaryFilesUtils {
      * contrario.
      */
     public boolean reescribirArchivo(Object[] objetos) {
-        borrar();
-        return escribirTodo(objetos);
+        return reescribirEnTemporal(formato, out -> {
+            for (Object dato : objetos) {
+                out.escribir(dato);
+            }
+        });
+    }
+
+    /**
+     * Devuelve un Stream secuencial con los datos del archivo que se leen de
+     * uno en uno a medida que se consumen. Permite parar en cuanto se tenga lo
+     * que se busca, por ejemplo con findFirst() o limit(). Debe usarse en un
+     * try-with-resources para que el archivo se cierre.
+     *
+     * @return Stream con los datos del archivo.
+     * @throws IOException
+     */
+    public Stream<Object> stream() throws IOException {
+        IteradorBinario iterador = iterador();
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                iterador, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        iterador.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    /**
+     * Devuelve un Stream paralelo y ordenado con los datos del archivo. El
+     * índice de offsets sirve de índice de bloques: el archivo se divide en
+     * rangos de datos consecutivos, cada hilo del ForkJoinPool común abre el
+     * archivo en el offset del primer dato de su rango y lo decodifica de
+     * forma independiente. El orden de los datos se conserva.
+     *
+     * @return Stream paralelo con los datos del archivo.
+     * @throws IOException
+     */
+    public Stream<Object> streamParalelo() throws IOException {
+        if (!sincronizar()) {
+            throw new IOException("No se ha podido indexar el archivo.");
+        }
+
+        int numFisicos = indice.getNumOffsets();
+        // Unos cuantos bloques por hilo para que el reparto quede equilibrado.
+        int datosPorBloque = Math.max(DATOS_MINIMOS_BLOQUE,
+                numFisicos / (ForkJoinPool.getCommonPoolParallelism() * 4) + 1);
+        int numBloques = (numFisicos + datosPorBloque - 1) / datosPorBloque;
+
+        return IntStream.range(0, numBloques).parallel().boxed()
+                .flatMap(bloque -> {
+                    int inicio = bloque * datosPorBloque;
+                    try {
+                        return Arrays.stream(leerBloque(inicio,
+                                Math.min(inicio + datosPorBloque, numFisicos)));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    /**
+     * Avanza el flujo la cantidad de bytes indicada.
+     *
+     * @param in Flujo que se avanzará.
+     * @param numBytes Cantidad de bytes que se saltarán.
+     * @throws EOFException si el flujo termina antes.
+     * @throws IOException
+     */
+    private static void saltarBytes(DataInput in, long numBytes) throws IOException {
+        while (numBytes > 0) {
+            int saltados = in.skipBytes((int) Math.min(numBytes, Integer.MAX_VALUE));
+            if (saltados > 0) {
+                numBytes -= saltados;
+            } else {
+                // skipBytes no distingue el final del flujo: se comprueba leyendo.
+                in.readByte();
+                numBytes--;
+            }
+        }
+    }
+
+    /**
+     * Salta un dato en formato compacto sin decodificarlo, usando la longitud
+     * de las cadenas, arrays y objetos.
+     *
+     * @param etiqueta Byte etiqueta del dato.
+     * @param in Flujo del que se saltará el dato.
+     * @throws IOException
+     */
+    static void saltarCompacto(byte etiqueta, DataInput in) throws IOException {
+        long numBytes;
+
+        switch (etiqueta) {
+            case 1: // Boolean
+                numBytes = 1;
+                break;
+            case 2: // Character
+            case 7: // Short
+                numBytes = 2;
+                break;
+            case 4: // Float
+            case 5: // Integer
+                numBytes = 4;
+                break;
+            case 3: // Double
+            case 6: // Long
+                numBytes = 8;
+                break;
+            case 8: // String
+            case 12: // byte[]
+            case 100: // Cualquier otro
+                numBytes = in.readInt();
+                break;
+            case 9: // int[]
+                numBytes = (long) Integer.BYTES * in.readInt();
+                break;
+            case 10: // long[]
+            case 11: // double[]
+                numBytes = (long) Long.BYTES * in.readInt();
+                break;
+            default:
+                throw new StreamCorruptedException("Etiqueta desconocida: " + etiqueta);
+        }
+
+        saltarBytes(in, numBytes);
+    }
+
+    /**
+     * Pone al día el índice de offsets y el registro de mutaciones. En la
+     * lectura mapeada, mientras la foto del archivo sea la misma que en la
+     * última sincronización, el archivo no ha cambiado y no se consulta el
+     * disco.
+     *
+     * @return true si el índice y el registro están al día, false si no se
+     * pudieron actualizar.
+     */
+    private boolean sincronizar() {
+        MapaArchivo.Foto foto = fotoMapeada();
+        boolean sincronizado = (foto != null && foto == fotoSincronizada)
+                || (sincronizarIndice() && cargarMutaciones());
+
+        fotoSincronizada = (sincronizado) ? foto : null;
+        return sincronizado;
+    }
+
+    /**
+     * Pone al día el filtro de Bloom con el contenido actual del archivo. Si
+     * se han añadido datos sin actualizarlo solo se leen los nuevos, y si se
+     * ha llenado por encima del doble de su capacidad se reconstruye más
+     * grande.
+     *
+     * @return true si el filtro está activo y al día, false en caso
+     * contrario.
+     */
+    private boolean sincronizarFiltro() {
+        boolean filtroOk = filtro.estaActivo();
+
+        if (filtroOk) {
+            try {
+                long peso = peso();
+                if (filtro.getPesoCubierto() != peso) {
+                    filtro.cargar();
+                }
+
+                if (filtro.getPesoCubierto() >= 0 && filtro.getPesoCubierto() < peso) {
+                    try (LectorBinario lector = abrirLectorEnOffset(
+                            filtro.getPesoCubierto())) {
+
+                        while (true) {
+                            Object dato = lector.siguiente();
+                            if (FiltroBloom.esFiltrable(dato)) {
+                                filtro.anhadir(FiltroBloom.huella(dato));
+                            }
+                        }
+
+                    } catch (EOFException e) {
+                        // Se ha llegado al final del archivo.
+                    }
+
+                    filtro.setPesoCubierto(peso);
+                    filtro.guardar();
+                }
+
+                // Si está dañado, no corresponde al archivo o está demasiado lleno.
+                if (filtro.getPesoCubierto() != peso
+                        || filtro.getNumDatos() > 2 * filtro.getCapacidad()) {
+                    filtroOk = reconstruirFiltro();
+                }
+
+            } catch (IOException | ClassNotFoundException e) {
+                filtroOk = false;
+            }
+        }
+
+        return filtroOk;
+    }
+
+    /**
+     * Pone al día el índice de offsets con el contenido actual del archivo. Si
+     * el índice no existe se construye leyendo el archivo una sola vez, y si
+     * se han añadido datos sin actualizarlo solo se leen los nuevos. Si el
+     * archivo se ha reescrito (aunque tenga el mismo peso) se reconstruye.
+     *
+     * @return true si el índice está al día, false si no se pudo actualizar.
+     */
+    private boolean sincronizarIndice() {
+        boolean indiceOk = true;
+        MapaArchivo.Foto foto = fotoMapeada();
+        // En la lectura mapeada el estado del archivo es el de la foto.
+        long peso = (foto != null) ? foto.getPeso() : peso();
+        long fecha = (foto != null) ? foto.getModificacion() : archivo.lastModified();
+
+        try {
+            // Si el índice en memoria no cubre el archivo se carga el de disco.
+            if (!indice.cubre(peso, fecha)) {
+                indice.cargar();
+
+                // Si el archivo ha cambiado de otra forma que creciendo el índice ya no sirve.
+                if (!indice.cubre(peso, fecha) && !indice.esPrefijoDe(peso)) {
+                    indice.vaciar();
+                }
+            }
+
+            if (indice.getPesoCubierto() < peso) {
+                try (LectorBinario lector = abrirLectorEnOffset(
+                        indice.getPesoCubierto())) {
+
+                    while (true) {
+                        long offset = lector.posicion();
+                        // Los bloques comprimidos se saltan sin descomprimir.
+                        for (int i = lector.saltarBloque(); i > 0; i--) {
+                            indice.anhadir(offset);
+                        }
+                    }
+
+                } catch (EOFException e) {
+                    // Se ha llegado al final del archivo.
+                }
+
+                indice.setPesoCubierto(peso);
+                indice.guardar();
+            }
+
+        } catch (IOException | ClassNotFoundException e) {
+            indice.vaciar();
+            indiceOk = false;
+        }
+
+        return indiceOk;
+    }
+
+    /**
+     * Fuerza a disco la carpeta para que el cambio de nombre del archivo
+     * sobreviva a un corte de luz. No todos los sistemas permiten abrir una
+     * carpeta, así que los errores se ignoran.
+     *
+     * @param carpeta Carpeta que contiene el archivo.
+     */
+    private static void sincronizarCarpeta(File carpeta) {
+        try (FileChannel canal = FileChannel.open(carpeta.toPath(),
+                StandardOpenOption.READ)) {
+            canal.force(true);
+        } catch (IOException e) {
+            // No es necesario realizar ninguna acción aqui.
+        }
+    }
+
+    /**
+     * Reescribe el archivo aplicando una función a cada dato. Los datos se
+     * leen y escriben de uno en uno en un archivo temporal que solo sustituye
+     * al original si todo ha ido bien, por lo que la memoria usada no depende
+     * del tamaño del archivo.
+     *
+     * @param transformacion Función que recibe cada dato y devuelve el que se
+     * escribirá en su lugar, o null para eliminarlo.
+     * @return true si la reescritura se completó, false en caso contrario. Si
+     * falla, el archivo original queda intacto.
+     */
+    public boolean transformar(Function<Object, Object> transformacion) {
+        return transformar(formato, transformacion);
+    }
+
+    /**
+     * Reescribe el archivo en el formato indicado aplicando una función a cada
+     * dato.
+     *
+     * @param formatoDestino Formato en el que se reescribirá el archivo.
+     * @param transformacion Función que recibe cada dato y devuelve el que se
+     * escribirá en su lugar, o null para eliminarlo.
+     * @return true si la reescritura se completó, false en caso contrario.
+     */
+    private boolean transformar(int formatoDestino,
+            Function<Object, Object> transformacion) {
+
+        return reescribirEnTemporal(formatoDestino, out -> {
+            try (IteradorBinario datos = iterador()) {
+                while (datos.hasNext()) {
+                    Object nuevo = transformacion.apply(datos.next());
+
+                    if (nuevo != null) {
+                        out.escribir(nuevo);
+                    }
+                }
+            }
+        });
     }
 
     /**
@@ -603,6 +2189,26 @@ public class BinaryFilesUtils {
         return archivo;
     }
 
+    public boolean isAdjuntar() {
+        return adjuntar;
+    }
+
+    public boolean isFiltroBloom() {
+        return filtro.estaActivo();
+    }
+
+    public boolean isLecturaMapeada() {
+        return mapa != null;
+    }
+
+    public int getFormato() {
+        return formato;
+    }
+
+    IndiceBinario getIndice() {
+        return indice;
+    }
+
     public String getNombre() {
         // Esta linea comprueba el tipo de ruta.
         String tipoBarra = (ruta.contains("/")) ? "/" : "\\";
@@ -623,38 +2229,70 @@ public class BinaryFilesUtils {
     public void setAdjuntar(boolean adjuntar) {
         this.adjuntar = adjuntar;
     }
-}
-
-/*============================================================================*/
-/**
- * Esta clase extiende de ObjectOutputStream y sobreescribe el método
- * writeStreamHeader() para que no se escriba la cabecera a la hora de
- * introducir nuevos datos en el archivo.
- *
- * @author Roberto Santos Cordeiro
- */
-class OOSSinCabecera extends ObjectOutputStream {
 
-    // CONSTRUCTORES
-    public OOSSinCabecera(OutputStream out) throws IOException {
-        super(out);
+    /**
+     * Establece a partir de qué tamaño del registro de mutaciones se compacta
+     * automáticamente el archivo tras un borrado o reemplazo.
+     *
+     * @param umbralCompactacion Proporción de entradas del registro respecto
+     * al número de datos del archivo (por ejemplo 0.5 compacta cuando hay una
+     * entrada por cada dos datos). Con 0 solo se compacta al llamar a
+     * compactar().
+     */
+    public void setUmbralCompactacion(double umbralCompactacion) {
+        if (umbralCompactacion < 0) {
+            throw new IllegalArgumentException("El umbral no puede ser negativo.");
+        }
+        this.umbralCompactacion = umbralCompactacion;
     }
 
-    public OOSSinCabecera() throws IOException, SecurityException {
+    /**
+     * Establece el formato con el que se escribirá el archivo cuando esté
+     * vacío o se reescriba. Si ya tiene datos se seguirá escribiendo en el
+     * formato que tenga; para cambiarlo se usa convertirAFormatoCompacto() o
+     * convertirAFormatoComprimido().
+     *
+     * @param formato FORMATO_CLASICO, FORMATO_COMPACTO o FORMATO_COMPRIMIDO.
+     */
+    public void setFormato(int formato) {
+        if (formato != FORMATO_CLASICO && formato != FORMATO_COMPACTO
+                && formato != FORMATO_COMPRIMIDO) {
+            throw new IllegalArgumentException("Formato desconocido: " + formato);
+        }
+        this.formato = formato;
     }
 
-    // MÉTODOS
     /**
-     * Restablece el estado del flujo de salida, lo que incluye eliminar
-     * cualquier cabecera almacenada en el flujo. Esto evitará problemas de
-     * compatibilidad al mezclar tipos de datos primitivos y complejos en el
-     * archivo.
+     * Activa o desactiva la lectura mapeada. Con ella activada el archivo se
+     * proyecta en memoria con FileChannel.map y los datos se decodifican
+     * directamente de la caché de páginas del sistema, sin copiarlos a buffers
+     * de Java ni hacer una llamada al sistema por lectura. La proyección la
+     * comparten todas las lecturas y se rehace solo cuando el archivo cambia,
+     * así que conviene para archivos que se leen muchas veces. Los cambios
+     * hechos por otros procesos se comprueban como mucho una vez cada décima
+     * de segundo o al llamar a refrescarLecturaMapeada(). Los archivos de más
+     * de 2 GB se proyectan en varias ventanas.
      *
-     * @throws IOException
+     * Solo se aplica a los formatos compacto y comprimido; los archivos en
+     * formato clásico se siguen leyendo con flujos. En Windows un archivo
+     * proyectado no se puede borrar ni reemplazar hasta que el recolector de
+     * basura libere la proyección, por lo que no conviene activarla en
+     * archivos que se reescriben a menudo.
+     *
+     * @param lecturaMapeada true para leer de la proyección en memoria, false
+     * para leer con flujos.
      */
-    @Override
-    protected void writeStreamHeader() throws IOException {
-        reset();
+    public void setLecturaMapeada(boolean lecturaMapeada) {
+        this.mapa = (lecturaMapeada) ? new MapaArchivo(archivo) : null;
     }
 
+    // CLASES INTERNAS =========================================================
+    /**
+     * Escribe en un EscritorBinario los datos con los que se reescribirá el
+     * archivo.
+     */
+    private interface GeneradorDatos {
+
+        void escribirEn(EscritorBinario out) throws IOException;
+    }
 }
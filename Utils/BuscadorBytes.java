@@ -0,0 +1,378 @@
+package Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Buscador de una secuencia de bytes con el algoritmo Boyer-Moore-Horspool.
+ * La cadena buscada se codifica una sola vez y se compara directamente con
+ * los bytes del archivo, sin decodificarlo a caracteres. Gracias a la tabla
+ * de saltos, en cada fallo se avanza hasta la longitud de la cadena, de modo
+ * que con cadenas largas se mira solo una parte de los bytes.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class BuscadorBytes {
+
+    /**
+     * Bytes del archivo que se proyectan en memoria de una vez.
+     */
+    static final int PESO_VENTANA = 256 * 1024 * 1024;
+    /**
+     * Bytes que se copian de la ventana para buscar en ellos.
+     */
+    static final int PESO_TROZO = 1024 * 1024;
+
+    private final byte[] patron;
+    /**
+     * Cuánto se puede avanzar según el byte del texto alineado con el último
+     * byte del patrón.
+     */
+    private final int[] saltos;
+
+    // CONSTRUCTORES ===========================================================
+    /**
+     * @param patron Bytes que se buscarán. No puede estar vacío.
+     */
+    BuscadorBytes(byte[] patron) {
+        if (patron.length == 0) {
+            throw new IllegalArgumentException("El patrón no puede estar vacío.");
+        }
+
+        this.patron = patron;
+        this.saltos = new int[256];
+
+        int ultimo = patron.length - 1;
+        for (int i = 0; i < saltos.length; i++) {
+            saltos[i] = patron.length;
+        }
+        for (int i = 0; i < ultimo; i++) {
+            saltos[patron[i] & 0xff] = ultimo - i;
+        }
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Indica si buscar los bytes de la cadena codificada equivale a buscar la
+     * cadena en el texto decodificado. Es así en UTF-8 y en las codificaciones
+     * de un byte por carácter; en otras un carácter podría coincidir con el
+     * final de uno y el principio de otro.
+     *
+     * @param charset Codificación del archivo.
+     * @param busqueda Cadena que se buscará.
+     * @return true si se puede buscar por bytes.
+     */
+    static boolean admite(Charset charset, String busqueda) {
+        CharsetEncoder codificador = charset.newEncoder();
+
+        return (charset.equals(StandardCharsets.UTF_8)
+                || codificador.maxBytesPerChar() == 1)
+                && codificador.canEncode(busqueda);
+    }
+
+    /**
+     * Busca el patrón en los bytes indicados.
+     *
+     * @param texto Array en el que se buscará.
+     * @param numBytes Cantidad de bytes válidos del array.
+     * @param desde Posición del array desde la que se buscará.
+     * @return Posición en que empieza la primera coincidencia, o -1 si no hay
+     * ninguna.
+     */
+    int buscar(byte[] texto, int numBytes, int desde) {
+        int ultimo = patron.length - 1;
+        int limite = numBytes - patron.length;
+        int encontrada = -1;
+
+        for (int i = desde; i <= limite && encontrada == -1; ) {
+            byte b = texto[i + ultimo];
+
+            if (b == patron[ultimo] && coincide(texto, i)) {
+                encontrada = i;
+            } else {
+                i += saltos[b & 0xff];
+            }
+        }
+
+        return encontrada;
+    }
+
+    /**
+     * Busca las líneas que contienen el patrón entre los bytes indicados del
+     * archivo, que deben empezar al principio de una línea y terminar al final
+     * de otra. Se recorre el rango por trozos que se cortan tras el último
+     * salto de línea, de modo que ninguna línea queda partida entre dos
+     * trozos; solo se decodifican a texto las líneas en las que hay alguna
+     * coincidencia. El patrón no puede contener saltos de línea.
+     *
+     * @param canal Canal del archivo en el que se buscará.
+     * @param inicio Primer byte del rango.
+     * @param fin Byte siguiente al último del rango.
+     * @param charset Codificación del archivo.
+     * @return Líneas encontradas, con los saltos de línea que hay antes de
+     * cada una dentro del rango, y cantidad de saltos de línea del rango.
+     * @throws IOException
+     */
+    Tramo buscarLineas(FileChannel canal, long inicio, long fin, Charset charset)
+            throws IOException {
+        Tramo tramo = new Tramo();
+        long proyectado = inicio;
+        ByteBuffer ventana = ByteBuffer.allocate(0);
+        byte[] trozo = new byte[Math.max(PESO_TROZO, 2 * patron.length)];
+        int numBytes = 0;
+        // Indica si el trozo anterior terminaba en "\r", por si este empieza con su "\n".
+        boolean retornoPendiente = false;
+
+        while (ventana.hasRemaining() || proyectado < fin) {
+            if (!ventana.hasRemaining()) {
+                long pesoVentana = Math.min(PESO_VENTANA, fin - proyectado);
+                ventana = canal.map(FileChannel.MapMode.READ_ONLY, proyectado, pesoVentana);
+                proyectado += pesoVentana;
+            }
+            // Una línea más larga que el trozo obliga a agrandarlo.
+            if (numBytes == trozo.length) {
+                trozo = Arrays.copyOf(trozo, trozo.length * 2);
+            }
+
+            int copiados = Math.min(trozo.length - numBytes, ventana.remaining());
+            ventana.get(trozo, numBytes, copiados);
+            numBytes += copiados;
+
+            // Se busca hasta el último salto de línea; lo demás pasa al trozo siguiente.
+            int completos = numBytes;
+            if (ventana.hasRemaining() || proyectado < fin) {
+                while (completos > 0 && !esSalto(trozo[completos - 1])) {
+                    completos--;
+                }
+            }
+
+            int desde = 0;
+            int contados = 0;
+            int encontrada;
+            while ((encontrada = buscar(trozo, completos, desde)) != -1) {
+                int inicioLinea = encontrada;
+                while (inicioLinea > 0 && !esSalto(trozo[inicioLinea - 1])) {
+                    inicioLinea--;
+                }
+                int finLinea = encontrada + patron.length;
+                while (finLinea < completos && !esSalto(trozo[finLinea])) {
+                    finLinea++;
+                }
+
+                tramo.numSaltos += contarSaltos(trozo, contados, inicioLinea, retornoPendiente);
+                tramo.anhadir(tramo.numSaltos,
+                        new String(trozo, inicioLinea, finLinea - inicioLinea, charset));
+
+                // Cada línea se devuelve una sola vez aunque tenga varias coincidencias.
+                contados = inicioLinea;
+                desde = finLinea;
+            }
+            tramo.numSaltos += contarSaltos(trozo, contados, completos, retornoPendiente);
+
+            if (completos > 0) {
+                retornoPendiente = trozo[completos - 1] == '\r';
+                numBytes -= completos;
+                System.arraycopy(trozo, completos, trozo, 0, numBytes);
+            }
+        }
+
+        return tramo;
+    }
+
+    /**
+     * Compara con el patrón los bytes que empiezan en la posición indicada,
+     * sabiendo ya que el último coincide.
+     */
+    private boolean coincide(byte[] texto, int inicio) {
+        int j = patron.length - 2;
+        while (j >= 0 && texto[inicio + j] == patron[j]) {
+            j--;
+        }
+        return j < 0;
+    }
+
+    /**
+     * Cuenta las coincidencias del patrón en el archivo sin que se solapen,
+     * igual que String.indexOf avanzando la longitud de la cadena tras cada
+     * una. El archivo se proyecta en memoria por ventanas y de cada ventana
+     * se copian trozos a un array, en el que la búsqueda no tiene que
+     * comprobar límites de buffer. Entre un trozo y el siguiente se conservan
+     * los últimos bytes, por si una coincidencia queda partida entre los dos.
+     *
+     * @param canal Canal del archivo en el que se buscará.
+     * @return Cantidad de coincidencias.
+     * @throws IOException
+     */
+    long contar(FileChannel canal) throws IOException {
+        return contar(canal, 0, canal.size());
+    }
+
+    /**
+     * Cuenta las coincidencias del patrón entre los bytes indicados del
+     * archivo, como contar(canal).
+     *
+     * @param canal Canal del archivo en el que se buscará.
+     * @param inicio Primer byte del rango.
+     * @param fin Byte siguiente al último del rango.
+     * @return Cantidad de coincidencias.
+     * @throws IOException
+     */
+    long contar(FileChannel canal, long inicio, long fin) throws IOException {
+        long peso = fin;
+        long proyectado = inicio;
+        ByteBuffer ventana = ByteBuffer.allocate(0);
+        byte[] trozo = new byte[Math.max(PESO_TROZO, 2 * patron.length)];
+        int numBytes = 0;
+        long cuenta = 0;
+
+        while (ventana.hasRemaining() || proyectado < peso) {
+            if (!ventana.hasRemaining()) {
+                long pesoVentana = Math.min(PESO_VENTANA, peso - proyectado);
+                ventana = canal.map(FileChannel.MapMode.READ_ONLY, proyectado, pesoVentana);
+                proyectado += pesoVentana;
+            }
+
+            int copiados = Math.min(trozo.length - numBytes, ventana.remaining());
+            ventana.get(trozo, numBytes, copiados);
+            numBytes += copiados;
+
+            int desde = 0;
+            if (patron.length == 1) {
+                // Con un solo byte no hay nada que saltar: un recorrido simple es más rápido.
+                for (int i = 0; i < numBytes; i++) {
+                    if (trozo[i] == patron[0]) {
+                        cuenta++;
+                    }
+                }
+                desde = numBytes;
+
+            } else {
+                // Búsqueda de buscar() sin detenerse en cada coincidencia.
+                int ultimo = patron.length - 1;
+                int limite = numBytes - patron.length;
+                for (int i = 0; i <= limite; ) {
+                    byte b = trozo[i + ultimo];
+
+                    if (b == patron[ultimo] && coincide(trozo, i)) {
+                        cuenta++;
+                        i += patron.length;
+                        desde = i;
+                    } else {
+                        i += saltos[b & 0xff];
+                    }
+                }
+            }
+
+            // Se conservan los bytes en los que aún puede empezar una coincidencia.
+            int conservar = Math.max(desde, numBytes - patron.length + 1);
+            numBytes -= conservar;
+            System.arraycopy(trozo, conservar, trozo, 0, numBytes);
+        }
+
+        return cuenta;
+    }
+
+    /**
+     * Cuenta los saltos de línea entre las posiciones indicadas del array. Un
+     * "\r\n" cuenta como un solo salto, igual que con
+     * BufferedReader.readLine().
+     *
+     * @param retornoPendiente true si el byte anterior a la posición 0 del
+     * array era un "\r".
+     */
+    private static long contarSaltos(byte[] texto, int desde, int hasta,
+            boolean retornoPendiente) {
+        long saltos = 0;
+
+        for (int i = desde; i < hasta; i++) {
+            // Casi ningún byte es de control: se descartan con una sola comparación.
+            if ((texto[i] & 0xff) <= '\r') {
+                byte b = texto[i];
+                boolean tras = (i > 0) ? texto[i - 1] == '\r' : retornoPendiente;
+
+                if (b == '\r' || (b == '\n' && !tras)) {
+                    saltos++;
+                }
+            }
+        }
+
+        return saltos;
+    }
+
+    /**
+     * Divide el archivo en rangos de bytes de parecido tamaño que empiezan
+     * siempre justo después de un "\n", de modo que ninguna línea (ni ningún
+     * "\r\n") queda repartida entre dos rangos. Si una línea es más larga
+     * que un rango, los rangos que caen dentro de ella quedan vacíos.
+     *
+     * @param canal Canal del archivo.
+     * @param numRangos Cantidad de rangos en que se dividirá.
+     * @return Array de numRangos + 1 posiciones: el rango i va de la posición
+     * i a la i + 1.
+     * @throws IOException
+     */
+    static long[] dividirEnLineas(FileChannel canal, int numRangos) throws IOException {
+        long peso = canal.size();
+        long[] limites = new long[numRangos + 1];
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+
+        limites[numRangos] = peso;
+        for (int i = 1; i < numRangos; i++) {
+            long posicion = Math.max(limites[i - 1], peso / numRangos * i);
+            long limite = -1;
+
+            // Se avanza hasta el byte siguiente al primer "\n".
+            while (limite == -1 && posicion < peso) {
+                buffer.clear();
+                int leidos = canal.read(buffer, posicion);
+                for (int j = 0; j < leidos && limite == -1; j++) {
+                    if (buffer.get(j) == '\n') {
+                        limite = posicion + j + 1;
+                    }
+                }
+                posicion += Math.max(leidos, 0);
+            }
+
+            limites[i] = (limite == -1) ? peso : limite;
+        }
+
+        return limites;
+    }
+
+    private static boolean esSalto(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    // CLASES INTERNAS =========================================================
+    /**
+     * Resultado de buscar líneas en un rango del archivo.
+     */
+    static class Tramo {
+
+        /**
+         * Saltos de línea anteriores a cada línea encontrada dentro del rango.
+         */
+        long[] saltosPrevios = new long[16];
+        final List<String> textos = new ArrayList<>();
+        /**
+         * Saltos de línea del rango, para numerar las líneas de los
+         * siguientes.
+         */
+        long numSaltos;
+
+        void anhadir(long saltos, String texto) {
+            if (textos.size() == saltosPrevios.length) {
+                saltosPrevios = Arrays.copyOf(saltosPrevios, saltosPrevios.length * 2);
+            }
+            saltosPrevios[textos.size()] = saltos;
+            textos.add(texto);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package Utils;
+
+import java.math.BigInteger;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Comparador de líneas de texto con el que ordena TextFilesUtils. Las líneas
+ * se comparan palabra a palabra; si dos palabras son números se comparan como
+ * números, de modo que "linea 2" va antes que "linea 10", si solo una lo es va
+ * antes el número, y si no se comparan con la colación indicada (por defecto,
+ * sin distinguir mayúsculas). Dos números iguales escritos de forma distinta
+ * ("007" y "7") cuentan como iguales y se sigue con la palabra siguiente; solo
+ * si el resto de las líneas es igual se decide por el texto del primero de
+ * esos números. Así el orden es total, como exige Comparator.
+ *
+ * Para ordenar muchas líneas cada una se separa en palabras una sola vez,
+ * guardando en una Clave sus palabras, el valor de las que son números y, si
+ * la colación es un Collator, sus CollationKey. Así cada comparación solo
+ * recorre arrays ya preparados, sin expresiones regulares ni arrays nuevos.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class ComparadorNatural implements Comparator<String> {
+
+    private static final byte PALABRA = 0;
+    private static final byte NUMERO = 1;
+    /**
+     * Número que no cabe en un long y se compara como BigInteger.
+     */
+    private static final byte NUMERO_GRANDE = 2;
+    /**
+     * Dígitos que caben siempre en un long.
+     */
+    private static final int MAX_DIGITOS_LONG = 18;
+
+    private final Comparator<? super String> colacion;
+    /**
+     * Colación como Collator, o null si no lo es.
+     */
+    private final Collator colador;
+
+    // CONSTRUCTORES ===========================================================
+    ComparadorNatural() {
+        this(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    /**
+     * @param colacion Comparador de las palabras que no son números, por
+     * ejemplo un Collator de un idioma. Dos palabras para las que devuelve 0
+     * se consideran la misma.
+     */
+    ComparadorNatural(Comparator<? super String> colacion) {
+        this.colacion = colacion;
+        this.colador = (colacion instanceof Collator) ? (Collator) colacion : null;
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Separa una línea en palabras y prepara todo lo que hace falta para
+     * compararla. Las palabras se separan igual que con split("\\s+"): un
+     * espacio al principio deja una palabra vacía delante y una línea solo de
+     * espacios no tiene ninguna palabra.
+     *
+     * @param linea Línea de texto.
+     * @return Clave de la línea.
+     */
+    Clave clave(String linea) {
+        String[] palabras = new String[4];
+        int numPalabras = 0;
+        int inicio = 0;
+        int longitud = linea.length();
+
+        do {
+            int fin = inicio;
+            while (fin < longitud && !esEspacio(linea.charAt(fin))) {
+                fin++;
+            }
+
+            if (numPalabras == palabras.length) {
+                palabras = Arrays.copyOf(palabras, numPalabras * 2);
+            }
+            palabras[numPalabras++] = linea.substring(inicio, fin);
+
+            inicio = fin;
+            while (inicio < longitud && esEspacio(linea.charAt(inicio))) {
+                inicio++;
+            }
+        } while (inicio < longitud);
+
+        // Como con split(), una línea solo de espacios no tiene palabras.
+        if (longitud > 0 && numPalabras == 1 && palabras[0].isEmpty()) {
+            numPalabras = 0;
+        }
+
+        return new Clave(linea, Arrays.copyOf(palabras, numPalabras), colador);
+    }
+
+    @Override
+    public int compare(String o1, String o2) {
+        return comparar(clave(o1), clave(o2));
+    }
+
+    /**
+     * Compara dos líneas por sus claves.
+     *
+     * @return Negativo, 0 o positivo si la primera línea va antes, igual o
+     * después que la segunda.
+     */
+    int comparar(Clave c1, Clave c2) {
+        int minPalabras = Math.min(c1.palabras.length, c2.palabras.length);
+        int igualdad = 0;
+        // Desempate por el texto del primer número igual escrito de forma distinta.
+        int desempate = 0;
+        boolean decidido = false;
+
+        // Comprobando palabras de ambas líneas hasta encontrar un par diferente.
+        for (int i = 0; i < minPalabras && !decidido; i++) {
+            boolean numero1 = c1.tipos[i] != PALABRA;
+            boolean numero2 = c2.tipos[i] != PALABRA;
+
+            if (numero1 && numero2) {
+                igualdad = compararNumeros(c1, c2, i);
+                if (igualdad == 0 && desempate == 0) {
+                    desempate = compararPalabras(c1, c2, i);
+                }
+            } else if (numero1 || numero2) {
+                // Los números van antes que las palabras.
+                igualdad = numero1 ? -1 : 1;
+            } else {
+                igualdad = compararPalabras(c1, c2, i);
+            }
+            decidido = igualdad != 0;
+        }
+
+        // Si NO hay diferencias hasta el final de la línea más corta, va antes la más corta.
+        if (!decidido) {
+            igualdad = Integer.compare(c1.palabras.length, c2.palabras.length);
+        }
+        return (igualdad != 0) ? igualdad : desempate;
+    }
+
+    private static int compararNumeros(Clave c1, Clave c2, int i) {
+        return (c1.tipos[i] == NUMERO && c2.tipos[i] == NUMERO)
+                ? Long.compare(c1.numeros[i], c2.numeros[i])
+                : new BigInteger(c1.palabras[i]).compareTo(new BigInteger(c2.palabras[i]));
+    }
+
+    private int compararPalabras(Clave c1, Clave c2, int i) {
+        return (colador != null)
+                ? c1.colaciones[i].compareTo(c2.colaciones[i])
+                : colacion.compare(c1.palabras[i], c2.palabras[i]);
+    }
+
+    /**
+     * Espacios que separan palabras: los mismos que \s en una expresión
+     * regular.
+     */
+    private static boolean esEspacio(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Indica el tipo de una palabra: es un número si tiene solo dígitos,
+     * opcionalmente con un signo delante.
+     */
+    private static byte tipo(String palabra) {
+        int inicio = (palabra.startsWith("+") || palabra.startsWith("-")) ? 1 : 0;
+        boolean digitos = palabra.length() > inicio;
+
+        for (int i = inicio; i < palabra.length() && digitos; i++) {
+            char c = palabra.charAt(i);
+            digitos = c >= '0' && c <= '9';
+        }
+
+        byte tipo = PALABRA;
+        if (digitos) {
+            tipo = (palabra.length() - inicio <= MAX_DIGITOS_LONG) ? NUMERO : NUMERO_GRANDE;
+        }
+        return tipo;
+    }
+
+    /**
+     * Ordena las líneas del array entre las posiciones indicadas. Las claves
+     * se calculan en paralelo, una por línea, y se ordenan con
+     * Arrays.parallelSort, que es estable.
+     *
+     * @param lineas Array con las líneas. Se ordena en el propio array.
+     * @param desde Primera posición que se ordenará.
+     * @param hasta Posición siguiente a la última que se ordenará.
+     */
+    void ordenar(String[] lineas, int desde, int hasta) {
+        Clave[] claves = new Clave[hasta - desde];
+
+        Arrays.parallelSetAll(claves, i -> clave(lineas[desde + i]));
+        Arrays.parallelSort(claves, this::comparar);
+        for (int i = 0; i < claves.length; i++) {
+            lineas[desde + i] = claves[i].linea;
+        }
+    }
+
+    // CLASES INTERNAS =========================================================
+    /**
+     * Línea separada en palabras, lista para compararse.
+     */
+    static class Clave {
+
+        final String linea;
+        final String[] palabras;
+        final byte[] tipos;
+        /**
+         * Valor de las palabras que son números que caben en un long.
+         */
+        final long[] numeros;
+        /**
+         * Claves de colación de las palabras, si la colación es un Collator.
+         */
+        final CollationKey[] colaciones;
+
+        Clave(String linea, String[] palabras, Collator colador) {
+            this.linea = linea;
+            this.palabras = palabras;
+            this.tipos = new byte[palabras.length];
+            this.numeros = new long[palabras.length];
+            this.colaciones = (colador != null) ? new CollationKey[palabras.length] : null;
+
+            for (int i = 0; i < palabras.length; i++) {
+                tipos[i] = tipo(palabras[i]);
+                if (tipos[i] == NUMERO) {
+                    numeros[i] = Long.parseLong(palabras[i]);
+                }
+                if (colador != null) {
+                    colaciones[i] = colador.getCollationKey(palabras[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package Utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Conjunto de cambios sobre las líneas de un archivo de TextFilesUtils que se
+ * aplican todos a la vez con TextFilesUtils.editar(). El archivo se recorre
+ * una sola vez, línea a línea, escribiendo el resultado en un temporal que
+ * después sustituye al original, así que la memoria usada depende de la
+ * cantidad de cambios y no del tamaño del archivo.
+ *
+ * Los números de línea se refieren siempre al archivo original, de 1 a n, sin
+ * importar los cambios que se hayan indicado antes. Con cada línea se hace lo
+ * siguiente, en este orden:
+ * <ol>
+ * <li>Se escriben las líneas que se hayan insertado en su posición.</li>
+ * <li>Si se ha eliminado o reemplazado por su número, se elimina o se
+ * reemplaza.</li>
+ * <li>Se le aplican las condiciones, en el orden en que se añadieron.</li>
+ * </ol>
+ * Las líneas insertadas no pasan por las condiciones. Las inserciones más
+ * allá del final del archivo se añaden al final, y los cambios sobre líneas
+ * que no existen se ignoran.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+public class EdicionLineas {
+
+    /**
+     * Cambios por número de línea, ordenados para aplicarlos según se lee.
+     */
+    private final TreeMap<Long, Cambio> cambios;
+    /**
+     * Funciones que se aplican a cada línea. Devuelven la línea que se
+     * escribirá en su lugar, o null para eliminarla.
+     */
+    private final List<Function<String, String>> reglas;
+
+    // CONSTRUCTORES ===========================================================
+    public EdicionLineas() {
+        this.cambios = new TreeMap<>();
+        this.reglas = new ArrayList<>();
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Recorre las líneas de la entrada y escribe en la salida el resultado de
+     * aplicarles los cambios.
+     *
+     * @param entrada Lector del archivo original.
+     * @param salida Escritor del archivo resultante.
+     * @return Cantidad de líneas escritas en la salida.
+     * @throws IOException
+     */
+    long aplicar(BufferedReader entrada, BufferedWriter salida) throws IOException {
+        Iterator<Map.Entry<Long, Cambio>> pendientes = cambios.entrySet().iterator();
+        Map.Entry<Long, Cambio> siguiente = pendientes.hasNext() ? pendientes.next() : null;
+        long numLinea = 0;
+        long escritas = 0;
+        String linea;
+
+        while ((linea = entrada.readLine()) != null) {
+            numLinea++;
+
+            if (siguiente != null && siguiente.getKey() == numLinea) {
+                Cambio cambio = siguiente.getValue();
+                escritas += escribir(cambio.insertadas, salida);
+                linea = (cambio.eliminar) ? null
+                        : (cambio.reemplazo != null) ? cambio.reemplazo : linea;
+                siguiente = pendientes.hasNext() ? pendientes.next() : null;
+            }
+
+            for (int i = 0; i < reglas.size() && linea != null; i++) {
+                linea = reglas.get(i).apply(linea);
+            }
+
+            if (linea != null) {
+                salida.write(linea);
+                salida.newLine();
+                escritas++;
+            }
+        }
+
+        // Las inserciones que quedan están más allá del final del archivo.
+        while (siguiente != null) {
+            escritas += escribir(siguiente.getValue().insertadas, salida);
+            siguiente = pendientes.hasNext() ? pendientes.next() : null;
+        }
+
+        return escritas;
+    }
+
+    private Cambio cambio(long numLinea) {
+        if (numLinea <= 0) {
+            throw new IllegalArgumentException("El número de línea debe ser mayor que 0.");
+        }
+        return cambios.computeIfAbsent(numLinea, n -> new Cambio());
+    }
+
+    /**
+     * Elimina la línea indicada.
+     *
+     * @param numLinea Número de la línea en el archivo original, de 1 a n.
+     * @return Esta misma edición, para encadenar más cambios.
+     */
+    public EdicionLineas eliminar(long numLinea) {
+        Cambio cambio = cambio(numLinea);
+        cambio.eliminar = true;
+        cambio.reemplazo = null;
+        return this;
+    }
+
+    /**
+     * Elimina todas las líneas que cumplen la condición.
+     *
+     * @param condicion Condición que deben cumplir las líneas eliminadas.
+     * @return Esta misma edición, para encadenar más cambios.
+     */
+    public EdicionLineas eliminar(Predicate<String> condicion) {
+        reglas.add(linea -> condicion.test(linea) ? null : linea);
+        return this;
+    }
+
+    private static long escribir(List<String> lineas, BufferedWriter salida) throws IOException {
+        for (String linea : lineas) {
+            salida.write(linea);
+            salida.newLine();
+        }
+        return lineas.size();
+    }
+
+    /**
+     * Inserta una línea antes de la indicada, de modo que pasa a ocupar su
+     * número. Varias inserciones en la misma posición quedan en el orden en
+     * que se indicaron.
+     *
+     * @param numLinea Número de la línea en el archivo original antes de la
+     * que se insertará, de 1 a n + 1 (n + 1 para añadirla al final).
+     * @param texto Texto de la nueva línea.
+     * @return Esta misma edición, para encadenar más cambios.
+     */
+    public EdicionLineas insertar(long numLinea, String texto) {
+        cambio(numLinea).insertadas.add(texto);
+        return this;
+    }
+
+    /**
+     * @return true si no se ha indicado ningún cambio.
+     */
+    public boolean isVacia() {
+        return cambios.isEmpty() && reglas.isEmpty();
+    }
+
+    /**
+     * Reemplaza el texto de la línea indicada.
+     *
+     * @param numLinea Número de la línea en el archivo original, de 1 a n.
+     * @param texto Nuevo texto de la línea.
+     * @return Esta misma edición, para encadenar más cambios.
+     */
+    public EdicionLineas reemplazar(long numLinea, String texto) {
+        Cambio cambio = cambio(numLinea);
+        cambio.eliminar = false;
+        cambio.reemplazo = texto;
+        return this;
+    }
+
+    /**
+     * Reemplaza todas las líneas que cumplen la condición.
+     *
+     * @param condicion Condición que deben cumplir las líneas reemplazadas.
+     * @param reemplazo Recibe cada línea que cumple la condición y devuelve
+     * su nuevo texto.
+     * @return Esta misma edición, para encadenar más cambios.
+     */
+    public EdicionLineas reemplazar(Predicate<String> condicion, UnaryOperator<String> reemplazo) {
+        reglas.add(linea -> condicion.test(linea) ? reemplazo.apply(linea) : linea);
+        return this;
+    }
+
+    // CLASES INTERNAS =========================================================
+    /**
+     * Cambios sobre una línea concreta.
+     */
+    private static class Cambio {
+
+        final List<String> insertadas = new ArrayList<>();
+        String reemplazo;
+        boolean eliminar;
+    }
+}
@@ -0,0 +1,307 @@
+package Utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Escritor de un archivo de BinaryFilesUtils para muchos hilos a la vez. Los
+ * hilos dejan los datos en una cola sin bloqueos y un único hilo escritor los
+ * va sacando por lotes y los escribe con un solo EscritorBinario abierto, de
+ * modo que las escrituras no se mezclan ni esperan unas a otras. Cada lote se
+ * vuelca (y, si se pide, se fuerza a disco) de una vez, lo que reparte el
+ * coste de un fsync entre todos los datos del lote.
+ *
+ * Cada escritura devuelve un CompletableFuture que se completa cuando el dato
+ * está en el archivo, o que falla con la IOException que lo haya impedido. Por
+ * defecto cada lote se fuerza a disco antes de completar sus escrituras; sin
+ * sincronizar los lotes el dato puede estar aún en la caché del sistema. Un
+ * dato que no se puede codificar no se escribe y solo falla su escritura. Tras
+ * un error al volcar al archivo, el escritor queda inutilizado: fallan las
+ * escrituras que no llegaron a volcarse y las siguientes, y close() lanza el
+ * error.
+ *
+ * Mientras el escritor esté abierto no debería escribirse en el archivo por
+ * otra vía.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+public class EscritorAsincrono implements Closeable {
+
+    static final int CAPACIDAD_COLA_DEFAULT = 16 * 1024;
+    /**
+     * Datos máximos que se escriben entre dos volcados.
+     */
+    static final int LOTE_MAXIMO = 4096;
+    /**
+     * Milisegundos máximos que duerme el hilo escritor sin datos antes de
+     * volver a mirar la cola, por si se perdiera algún aviso.
+     */
+    private static final long ESPERA_MAXIMA = 100;
+
+    private final EscritorBinario escritor;
+    private final boolean sincronizarLotes;
+    private final ConcurrentLinkedQueue<Pendiente> cola;
+    /**
+     * Huecos libres de la cola. Limita la cola sin necesidad de bloquearla.
+     */
+    private final Semaphore huecos;
+    private final int capacidadCola;
+    private final Thread hilo;
+    /**
+     * true mientras el hilo escritor duerme esperando datos.
+     */
+    private volatile boolean dormido;
+    private volatile boolean cerrado;
+    private volatile IOException error;
+
+    // CONSTRUCTORES ===========================================================
+    /**
+     * Crea un escritor que fuerza a disco cada lote antes de completar sus
+     * escrituras.
+     *
+     * @param destino Archivo binario en el que se escribirá.
+     * @throws IOException
+     */
+    public EscritorAsincrono(BinaryFilesUtils destino) throws IOException {
+        this(destino, CAPACIDAD_COLA_DEFAULT, true);
+    }
+
+    /**
+     * @param destino Archivo binario en el que se escribirá.
+     * @param capacidadCola Datos que pueden esperar en la cola. Si se llena,
+     * las escrituras esperan a que haya hueco.
+     * @param sincronizarLotes true para forzar a disco (fsync) cada lote antes
+     * de completar sus escrituras, false para completarlas al volcar el lote
+     * al archivo, sin garantizar que sobrevivan a un corte de luz.
+     * @throws IOException
+     */
+    public EscritorAsincrono(BinaryFilesUtils destino, int capacidadCola,
+            boolean sincronizarLotes) throws IOException {
+
+        if (capacidadCola <= 0) {
+            throw new IllegalArgumentException("La capacidad de la cola debe ser mayor que 0.");
+        }
+
+        this.escritor = new EscritorBinario(destino);
+        this.sincronizarLotes = sincronizarLotes;
+        this.cola = new ConcurrentLinkedQueue<>();
+        this.huecos = new Semaphore(capacidadCola);
+        this.capacidadCola = capacidadCola;
+
+        this.hilo = new Thread(this::escribirLotes, "escritor-" + destino.getNombre());
+        this.hilo.setDaemon(true);
+        this.hilo.start();
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Escribe los datos que queden en la cola, cierra el archivo y detiene el
+     * hilo escritor. No debe llamarse a escribir a la vez que a close().
+     *
+     * @throws IOException si alguna escritura ha fallado.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!cerrado) {
+            cerrado = true;
+            LockSupport.unpark(hilo);
+
+            boolean interrumpido = false;
+            while (hilo.isAlive()) {
+                try {
+                    hilo.join();
+                } catch (InterruptedException e) {
+                    interrumpido = true;
+                }
+            }
+            if (interrumpido) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Completa las escrituras indicadas, con éxito o con el error indicado, y
+     * deja libres sus huecos en la cola.
+     */
+    private void completar(List<Pendiente> pendientes, IOException fallo) {
+        for (Pendiente pendiente : pendientes) {
+            completar(pendiente, fallo);
+        }
+        pendientes.clear();
+    }
+
+    private void completar(Pendiente pendiente, IOException fallo) {
+        // El hueco se libera antes para que quien espera el futuro ya no lo cuente.
+        huecos.release();
+        if (fallo == null) {
+            pendiente.resultado.complete(null);
+        } else {
+            pendiente.resultado.completeExceptionally(fallo);
+        }
+    }
+
+    /**
+     * Pone un dato en la cola para que lo escriba el hilo escritor. Si la cola
+     * está llena espera a que quede un hueco.
+     *
+     * @param dato Dato que se escribirá. No puede ser null.
+     * @return Futuro que se completa cuando el dato está escrito, o que falla
+     * con la IOException que lo haya impedido.
+     */
+    public CompletableFuture<Void> escribir(Object dato) {
+        if (dato == null) {
+            throw new IllegalArgumentException("El dato no puede ser null.");
+        }
+
+        CompletableFuture<Void> resultado = new CompletableFuture<>();
+
+        if (cerrado || error != null) {
+            resultado.completeExceptionally((error != null)
+                    ? error : new IOException("El escritor está cerrado."));
+        } else {
+            huecos.acquireUninterruptibly();
+            cola.offer(new Pendiente(dato, resultado));
+
+            // Solo se despierta al hilo si está dormido.
+            if (dormido) {
+                LockSupport.unpark(hilo);
+            }
+        }
+
+        return resultado;
+    }
+
+    /**
+     * Escribe un lote y completa sus escrituras. Un dato que no se puede
+     * codificar no llega al archivo, así que solo falla su escritura y el
+     * lote sigue. Si falla un volcado, fallan los datos que no llegaron a
+     * volcarse y se descartan, y el escritor queda inutilizado; los que ya se
+     * volcaron están en el archivo y se completan con éxito.
+     */
+    private void escribirLote(List<Pendiente> lote) {
+        List<Pendiente> volcados = new ArrayList<>();
+        List<Pendiente> sinVolcar = new ArrayList<>();
+
+        for (Pendiente pendiente : lote) {
+            if (error != null) {
+                completar(pendiente, error);
+                continue;
+            }
+
+            try {
+                escritor.anhadir(pendiente.dato);
+            } catch (IOException | RuntimeException e) {
+                completar(pendiente, new IOException("No se ha podido escribir el dato.", e));
+                continue;
+            }
+            sinVolcar.add(pendiente);
+
+            if (escritor.bufferLleno()) {
+                volcar(false, volcados, sinVolcar);
+            }
+        }
+
+        if (error == null) {
+            volcar(sincronizarLotes, volcados, sinVolcar);
+        }
+        completar(volcados, null);
+        completar(sinVolcar, error);
+        lote.clear();
+    }
+
+    /**
+     * Bucle del hilo escritor: saca de la cola lotes de hasta LOTE_MAXIMO
+     * datos y los escribe con escribirLote. Termina al cerrar el escritor,
+     * cuando ya no quedan datos en la cola.
+     */
+    private void escribirLotes() {
+        List<Pendiente> lote = new ArrayList<>();
+
+        while (!cerrado || !cola.isEmpty()) {
+            Pendiente pendiente = cola.poll();
+
+            if (pendiente == null) {
+                /* Se marca como dormido antes de volver a mirar la cola: o el
+                productor ve la marca y lo despierta, o el hilo ve el dato. */
+                dormido = true;
+                if (cola.isEmpty() && !cerrado) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(ESPERA_MAXIMA));
+                }
+                dormido = false;
+
+            } else {
+                do {
+                    lote.add(pendiente);
+                } while (lote.size() < LOTE_MAXIMO && (pendiente = cola.poll()) != null);
+
+                escribirLote(lote);
+            }
+        }
+
+        try {
+            escritor.close();
+        } catch (IOException | RuntimeException e) {
+            if (error == null) {
+                error = (e instanceof IOException)
+                        ? (IOException) e : new IOException("Error al cerrar el archivo.", e);
+            }
+        }
+    }
+
+    /**
+     * Vuelca el buffer del escritor, y si se pide lo fuerza a disco, pasando
+     * los datos volcados de sinVolcar a volcados. Si falla guarda el error y
+     * descarta los datos que no se han volcado.
+     */
+    private void volcar(boolean sincronizar, List<Pendiente> volcados,
+            List<Pendiente> sinVolcar) {
+        try {
+            if (sincronizar) {
+                escritor.sincronizar();
+            } else {
+                escritor.volcar();
+            }
+            volcados.addAll(sinVolcar);
+            sinVolcar.clear();
+        } catch (IOException | RuntimeException e) {
+            error = (e instanceof IOException)
+                    ? (IOException) e : new IOException("Error al escribir el archivo.", e);
+            escritor.descartarPendientes();
+        }
+    }
+
+    // GETTERS =================================================================
+    /**
+     * @return Cantidad de datos que esperan en la cola o se están escribiendo.
+     */
+    public int getNumPendientes() {
+        return capacidadCola - huecos.availablePermits();
+    }
+
+    // CLASES INTERNAS =========================================================
+    /**
+     * Dato en la cola junto con el futuro de su escritura.
+     */
+    private static class Pendiente {
+
+        final Object dato;
+        final CompletableFuture<Void> resultado;
+
+        Pendiente(Object dato, CompletableFuture<Void> resultado) {
+            this.dato = dato;
+            this.resultado = resultado;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Escritor que mantiene abierto un archivo de BinaryFilesUtils para añadir
+ * muchos datos sin abrir y cerrar el archivo en cada escritura. Los datos se
+ * acumulan en un buffer en memoria y se vuelcan al archivo cuando el buffer
+ * supera el tamaño indicado, cuando pasa el intervalo de volcado o al llamar a
+ * volcar() o close().
+ *
+ * El archivo resultante es idéntico al que se obtendría escribiendo los datos
+ * uno a uno con BinaryFilesUtils.escribir, y el índice de offsets se actualiza
+ * en cada volcado. Si el archivo ya tiene datos se escribe en su formato; si
+ * no, en el formato configurado en BinaryFilesUtils. En el formato comprimido
+ * cada volcado escribe un bloque, por lo que un buffer mayor comprime mejor.
+ * Mientras el escritor esté abierto no debería escribirse en el archivo por
+ * otra vía.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+public class EscritorBinario implements Closeable {
+
+    static final int TAMANHO_BUFFER_DEFAULT = 64 * 1024;
+
+    private final BinaryFilesUtils destino;
+    private final int tamanhoBuffer;
+    private final FileOutputStream fichero;
+    private final BufferEscritura buffer;
+    /**
+     * Flujo del formato clásico. Es null si se escribe en formato compacto.
+     */
+    private final ObjectOutputStream out;
+    /**
+     * Flujo de los formatos compacto y comprimido. Es null si se escribe en
+     * formato clásico.
+     */
+    private final DataOutputStream outCompacto;
+    /**
+     * Compresor de los bloques. Es null si no se escribe en formato
+     * comprimido.
+     */
+    private final Deflater compresor;
+    private final ByteArrayOutputStream bloque;
+    private ScheduledExecutorService temporizador;
+
+    /**
+     * Bytes que ya están escritos en el archivo.
+     */
+    private long pesoVolcado;
+    /**
+     * Offsets de los datos que están en el buffer pendientes de volcar.
+     */
+    private long[] offsetsPendientes;
+    private int numPendientes;
+    /**
+     * Huellas para el filtro de Bloom de los datos que están en el buffer. Es
+     * null si el archivo no tiene filtro.
+     */
+    private long[] huellasPendientes;
+    private int numHuellas;
+    private boolean primerDato;
+    private boolean cerrado;
+
+    // CONSTRUCTORES ===========================================================
+    public EscritorBinario(BinaryFilesUtils destino) throws IOException {
+        this(destino, TAMANHO_BUFFER_DEFAULT, 0);
+    }
+
+    /**
+     * @param destino Archivo binario en el que se escribirá.
+     * @param tamanhoBuffer Bytes que se acumularán antes de volcarlos al
+     * archivo.
+     * @param intervaloVolcado Milisegundos máximos que pasarán los datos en el
+     * buffer antes de volcarse. Con 0 solo se vuelca por tamaño o a petición.
+     * @throws IOException
+     */
+    public EscritorBinario(BinaryFilesUtils destino, int tamanhoBuffer,
+            long intervaloVolcado) throws IOException {
+
+        if (tamanhoBuffer <= 0 || intervaloVolcado < 0) {
+            throw new IllegalArgumentException("El tamaño del buffer debe ser "
+                    + "mayor que 0 y el intervalo de volcado no puede ser negativo.");
+        }
+
+        this.destino = destino;
+        this.tamanhoBuffer = tamanhoBuffer;
+        this.buffer = new BufferEscritura(tamanhoBuffer + 1024);
+        this.offsetsPendientes = new long[64];
+        this.primerDato = true;
+        if (destino.isFiltroBloom()) {
+            this.huellasPendientes = new long[64];
+        }
+
+        boolean adjuntar = destino.isAdjuntar();
+        this.pesoVolcado = (adjuntar) ? destino.peso() : 0;
+
+        int formato = (pesoVolcado > 0)
+                ? BinaryFilesUtils.detectarFormato(destino.getArchivo())
+                : destino.getFormato();
+
+        // Si el archivo está vacío o se va a sobreescribir se escribe con cabecera.
+        if (formato == BinaryFilesUtils.FORMATO_COMPRIMIDO) {
+            // La cabecera se escribe con el primer bloque, en volcar().
+            this.out = null;
+            this.outCompacto = new DataOutputStream(buffer);
+            this.compresor = new Deflater();
+            this.bloque = new ByteArrayOutputStream();
+        } else if (formato == BinaryFilesUtils.FORMATO_COMPACTO) {
+            this.out = null;
+            this.outCompacto = new DataOutputStream(buffer);
+            this.compresor = null;
+            this.bloque = null;
+            if (pesoVolcado == 0) {
+                outCompacto.write(BinaryFilesUtils.CABECERA_COMPACTA);
+            }
+        } else {
+            this.outCompacto = null;
+            this.compresor = null;
+            this.bloque = null;
+            this.out = (pesoVolcado == 0)
+                    ? new ObjectOutputStream(buffer) : new OOSSinCabecera(buffer);
+        }
+
+        try {
+            this.fichero = new FileOutputStream(destino.getArchivo(), adjuntar);
+        } catch (IOException e) {
+            // El Deflater reserva memoria nativa que no libera el recolector.
+            if (compresor != null) {
+                compresor.end();
+            }
+            throw e;
+        }
+        // Los borrados y reemplazos anteriores se refieren a datos que ya no están.
+        if (pesoVolcado == 0) {
+            destino.descartarMutaciones();
+        }
+
+        if (intervaloVolcado > 0) {
+            temporizador = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread hilo = new Thread(r, "volcado-" + destino.getNombre());
+                hilo.setDaemon(true);
+                return hilo;
+            });
+            temporizador.scheduleWithFixedDelay(this::volcarPorTiempo,
+                    intervaloVolcado, intervaloVolcado, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Vuelca lo que quede en el buffer, cierra el archivo y detiene el volcado
+     * periódico si lo hubiera.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!cerrado) {
+            cerrado = true;
+
+            if (temporizador != null) {
+                temporizador.shutdownNow();
+            }
+
+            try {
+                volcar();
+            } finally {
+                fichero.close();
+                if (compresor != null) {
+                    compresor.end();
+                }
+            }
+        }
+    }
+
+    /**
+     * Añade un dato al buffer sin volcarlo. Si el dato no se puede codificar
+     * el buffer queda como estaba, sin restos del dato ni entrada en el
+     * índice, y se lanza el error; como no se escribe nada en el archivo, el
+     * error solo afecta a ese dato.
+     *
+     * @param dato Dato que se escribirá.
+     * @throws IOException si el dato no se puede codificar o el escritor está
+     * cerrado.
+     */
+    synchronized void anhadir(Object dato) throws IOException {
+        if (cerrado) {
+            throw new IOException("El escritor está cerrado.");
+        }
+
+        /* El primer dato va precedido de la cabecera (o del reset de
+        OOSSinCabecera) escrita al crear el flujo, así que empieza donde
+        termina el archivo. En el formato comprimido todos los datos del
+        buffer irán en un mismo bloque, que empieza donde termina el archivo. */
+        int pesoAnterior = buffer.size();
+        long offset = (primerDato || compresor != null)
+                ? pesoVolcado : pesoVolcado + pesoAnterior;
+
+        try {
+            if (outCompacto != null) {
+                BinaryFilesUtils.codificarCompacto(dato, outCompacto);
+
+            } else {
+                /* En el formato clásico cada dato empieza con un reset, igual que
+                cuando se abre un OOSSinCabecera por cada dato, de modo que cada
+                dato se puede leer sin haber leído los anteriores. */
+                if (!primerDato) {
+                    out.reset();
+                }
+                BinaryFilesUtils.codificar(dato, out);
+                out.flush();
+            }
+
+        } catch (IOException | RuntimeException e) {
+            descartarDesde(pesoAnterior);
+            throw e;
+        }
+
+        if (numPendientes == offsetsPendientes.length) {
+            offsetsPendientes = Arrays.copyOf(offsetsPendientes, numPendientes * 2);
+        }
+        offsetsPendientes[numPendientes++] = offset;
+
+        if (huellasPendientes != null && FiltroBloom.esFiltrable(dato)) {
+            if (numHuellas == huellasPendientes.length) {
+                huellasPendientes = Arrays.copyOf(huellasPendientes, numHuellas * 2);
+            }
+            huellasPendientes[numHuellas++] = FiltroBloom.huella(dato);
+        }
+        primerDato = false;
+    }
+
+    /**
+     * @return true si el buffer ha alcanzado el tamaño con el que se vuelca.
+     */
+    synchronized boolean bufferLleno() {
+        return buffer.size() >= tamanhoBuffer;
+    }
+
+    /**
+     * Quita del buffer lo que se haya escrito de un dato que no se ha podido
+     * codificar. En el formato clásico antes se vacía el flujo y se olvidan
+     * los objetos que haya registrado, ya que el siguiente dato empieza con
+     * un reset.
+     *
+     * @param peso Peso que tenía el buffer antes de escribir el dato.
+     */
+    private void descartarDesde(int peso) {
+        if (out != null) {
+            try {
+                out.reset();
+                out.flush();
+            } catch (IOException e) {
+                // El flujo escribe en memoria; lo escrito se descarta igualmente.
+            }
+        }
+        buffer.truncar(peso);
+    }
+
+    /**
+     * Descarta los datos del buffer que aún no se han volcado, de modo que
+     * close() no los escriba. Se usa cuando ha fallado un volcado y los datos
+     * pendientes se dan por no escritos.
+     */
+    synchronized void descartarPendientes() {
+        descartarDesde(0);
+        numPendientes = 0;
+        numHuellas = 0;
+    }
+
+    /**
+     * Añade un dato al buffer. Si con él se supera el tamaño del buffer se
+     * vuelca al archivo. Si el dato no se puede codificar el buffer queda como
+     * estaba, sin restos del dato ni entrada en el índice.
+     *
+     * @param dato Dato que se escribirá.
+     * @throws IOException
+     */
+    public synchronized void escribir(Object dato) throws IOException {
+        anhadir(dato);
+
+        if (bufferLleno()) {
+            volcar();
+        }
+    }
+
+    /**
+     * Comprime el buffer y lo escribe en el archivo como un bloque del
+     * formato comprimido, precedido de la cabecera si el archivo está vacío.
+     *
+     * @throws IOException
+     */
+    private void escribirBloque() throws IOException {
+        byte[] datos = buffer.toByteArray();
+        byte[] trozo = new byte[8 * 1024];
+        ByteArrayOutputStream comprimido = new ByteArrayOutputStream(datos.length / 2 + 64);
+
+        compresor.reset();
+        compresor.setInput(datos);
+        compresor.finish();
+        while (!compresor.finished()) {
+            comprimido.write(trozo, 0, compresor.deflate(trozo));
+        }
+
+        bloque.reset();
+        DataOutputStream outBloque = new DataOutputStream(bloque);
+        if (pesoVolcado == 0) {
+            outBloque.write(BinaryFilesUtils.CABECERA_COMPRIMIDA);
+        }
+        outBloque.writeInt(numPendientes);
+        outBloque.writeInt(datos.length);
+        outBloque.writeInt(comprimido.size());
+        comprimido.writeTo(outBloque);
+
+        bloque.writeTo(fichero);
+        pesoVolcado += bloque.size();
+    }
+
+    /**
+     * Escribe en el archivo todo lo que haya en el buffer y actualiza el
+     * índice de offsets y, si lo hay, el filtro de Bloom.
+     *
+     * @throws IOException
+     */
+    public synchronized void volcar() throws IOException {
+        if (buffer.size() > 0) {
+            long pesoAnterior = pesoVolcado;
+
+            if (compresor != null) {
+                escribirBloque();
+            } else {
+                buffer.writeTo(fichero);
+                pesoVolcado += buffer.size();
+            }
+            fichero.flush();
+            buffer.reset();
+
+            destino.actualizarIndice(offsetsPendientes, numPendientes);
+            numPendientes = 0;
+
+            if (huellasPendientes != null) {
+                destino.actualizarFiltro(pesoAnterior, huellasPendientes, numHuellas);
+                numHuellas = 0;
+            }
+        }
+    }
+
+    /**
+     * Vuelca el buffer y fuerza a disco lo escrito en el archivo (fsync), de
+     * modo que los datos sobrevivan a un corte de luz.
+     *
+     * @throws IOException
+     */
+    public synchronized void sincronizar() throws IOException {
+        volcar();
+        fichero.getFD().sync();
+    }
+
+    /**
+     * Volcado que lanza el temporizador. Los errores se muestran por consola
+     * ya que no hay nadie que pueda recogerlos.
+     */
+    private void volcarPorTiempo() {
+        try {
+            volcar();
+        } catch (IOException e) {
+            System.out.println("Error al escribir el archivo.");
+        }
+    }
+
+    // GETTERS =================================================================
+    /**
+     * Devuelve lo que ocupará el archivo cuando se vuelque el buffer. En el
+     * formato comprimido es una cota superior, ya que el buffer aún no se ha
+     * comprimido.
+     *
+     * @return Peso en bytes de lo escrito hasta ahora.
+     */
+    synchronized long getPesoEscrito() {
+        return pesoVolcado + buffer.size();
+    }
+
+    // CLASES INTERNAS =========================================================
+    /**
+     * Buffer en memoria que permite deshacer lo escrito desde una posición.
+     */
+    private static class BufferEscritura extends ByteArrayOutputStream {
+
+        BufferEscritura(int tamanho) {
+            super(tamanho);
+        }
+
+        /**
+         * Descarta los bytes escritos a partir del peso indicado.
+         */
+        synchronized void truncar(int peso) {
+            count = Math.min(count, peso);
+        }
+    }
+}
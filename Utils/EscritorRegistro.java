@@ -0,0 +1,499 @@
+package Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Escritor que mantiene abierto un archivo de TextFilesUtils para usarlo como
+ * registro (log) de una aplicación, añadiendo líneas sin abrir y cerrar el
+ * archivo en cada una. Las líneas se acumulan en un buffer en memoria y se
+ * vuelcan al archivo cuando el buffer supera el tamaño indicado, cuando pasa
+ * el intervalo de volcado o al llamar a volcar() o close().
+ *
+ * Si se indica una capacidad de cola, las líneas se dejan en una cola sin
+ * bloqueos y un único hilo las pasa al buffer y al archivo, de modo que los
+ * hilos que escriben no esperan nunca al disco (solo si la cola se llena).
+ *
+ * El archivo se puede rotar al superar un peso o al cambiar el día: el archivo
+ * actual se vuelca, se cierra y se renombra como "nombre.fecha.n.extensión"
+ * en la misma carpeta, y las líneas siguientes se escriben en un archivo
+ * nuevo con el nombre original. Las líneas nunca se parten ni se pierden
+ * entre un archivo y el siguiente. Si no se puede renombrar el archivo se
+ * sigue escribiendo en él y no se vuelve a intentar rotarlo hasta el día
+ * siguiente o hasta llamar a reintentarRotacion().
+ *
+ * Las líneas se añaden siempre al final del archivo, en la codificación por
+ * defecto del sistema. Mientras el escritor esté abierto no debería
+ * escribirse en el archivo por otra vía.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+public class EscritorRegistro implements Closeable {
+
+    static final int TAMANHO_BUFFER_DEFAULT = 64 * 1024;
+    static final long INTERVALO_VOLCADO_DEFAULT = 1000;
+    /**
+     * Milisegundos máximos que duerme el hilo escritor sin líneas antes de
+     * volver a mirar la cola, por si se perdiera algún aviso.
+     */
+    private static final long ESPERA_MAXIMA = 100;
+
+    private final TextFilesUtils destino;
+    private final Charset charset;
+    private final byte[] separador;
+    private final int tamanhoBuffer;
+    private final ByteArrayOutputStream buffer;
+    /**
+     * Archivo abierto. Es null cuando el escritor está cerrado.
+     */
+    private FileOutputStream fichero;
+    private ScheduledExecutorService temporizador;
+    /**
+     * Bytes que ya están escritos en el archivo actual.
+     */
+    private long pesoVolcado;
+    /**
+     * Día al que pertenecen las líneas del archivo actual.
+     */
+    private LocalDate fechaArchivo;
+    private long pesoMaximo;
+    private boolean rotacionDiaria;
+    /**
+     * Día en que falló la última rotación, o null si no ha fallado. Ese día
+     * no se vuelve a intentar.
+     */
+    private LocalDate rotacionFallida;
+    private volatile boolean cerrado;
+
+    /**
+     * Cola de líneas (String) y peticiones de volcado (CompletableFuture). Es
+     * null si se escribe directamente desde los hilos que llaman a escribir.
+     */
+    private final ConcurrentLinkedQueue<Object> cola;
+    /**
+     * Huecos libres de la cola. Limita la cola sin necesidad de bloquearla.
+     */
+    private final Semaphore huecos;
+    private final Thread hilo;
+    /**
+     * true mientras el hilo escritor duerme esperando líneas.
+     */
+    private volatile boolean dormido;
+    private volatile IOException error;
+
+    // CONSTRUCTORES ===========================================================
+    public EscritorRegistro(TextFilesUtils destino) throws IOException {
+        this(destino, TAMANHO_BUFFER_DEFAULT, INTERVALO_VOLCADO_DEFAULT, 0);
+    }
+
+    /**
+     * @param destino Archivo de texto en el que se escribirá.
+     * @param tamanhoBuffer Bytes que se acumularán antes de volcarlos al
+     * archivo.
+     * @param intervaloVolcado Milisegundos máximos que pasarán las líneas en
+     * el buffer antes de volcarse. Con 0 solo se vuelca por tamaño o a
+     * petición.
+     * @param capacidadCola Líneas que pueden esperar en la cola del hilo
+     * escritor. Con 0 no hay hilo escritor y cada línea se escribe en el hilo
+     * que llama a escribir.
+     * @throws IOException
+     */
+    public EscritorRegistro(TextFilesUtils destino, int tamanhoBuffer,
+            long intervaloVolcado, int capacidadCola) throws IOException {
+
+        if (tamanhoBuffer <= 0 || intervaloVolcado < 0 || capacidadCola < 0) {
+            throw new IllegalArgumentException("El tamaño del buffer debe ser mayor que 0 "
+                    + "y el intervalo de volcado y la capacidad de la cola no pueden ser negativos.");
+        }
+
+        this.destino = destino;
+        this.charset = Charset.defaultCharset();
+        this.separador = System.lineSeparator().getBytes(charset);
+        this.tamanhoBuffer = tamanhoBuffer;
+        this.buffer = new ByteArrayOutputStream(tamanhoBuffer + 1024);
+
+        File archivo = destino.getArchivo();
+        this.fichero = new FileOutputStream(archivo, true);
+        this.pesoVolcado = archivo.length();
+        // Las líneas que ya tiene el archivo son del día en que se modificó por última vez.
+        this.fechaArchivo = (pesoVolcado > 0)
+                ? Instant.ofEpochMilli(archivo.lastModified())
+                        .atZone(ZoneId.systemDefault()).toLocalDate()
+                : LocalDate.now();
+
+        if (intervaloVolcado > 0) {
+            temporizador = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread hiloVolcado = new Thread(r, "volcado-" + destino.getNombre());
+                hiloVolcado.setDaemon(true);
+                return hiloVolcado;
+            });
+            temporizador.scheduleWithFixedDelay(this::volcarPorTiempo,
+                    intervaloVolcado, intervaloVolcado, TimeUnit.MILLISECONDS);
+        }
+
+        if (capacidadCola > 0) {
+            this.cola = new ConcurrentLinkedQueue<>();
+            this.huecos = new Semaphore(capacidadCola);
+            this.hilo = new Thread(this::escribirCola, "registro-" + destino.getNombre());
+            this.hilo.setDaemon(true);
+            this.hilo.start();
+        } else {
+            this.cola = null;
+            this.huecos = null;
+            this.hilo = null;
+        }
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Añade una línea al buffer, rotando antes el archivo si toca. Si con ella
+     * se supera el tamaño del buffer se vuelca al archivo.
+     *
+     * @param linea Línea que se escribirá.
+     * @throws IOException
+     */
+    private synchronized void anhadir(String linea) throws IOException {
+        comprobarFichero();
+
+        byte[] bytes = linea.getBytes(charset);
+        long pesoLinea = bytes.length + separador.length;
+        long pesoArchivo = pesoVolcado + buffer.size();
+
+        LocalDate hoy = LocalDate.now();
+
+        if (!hoy.equals(rotacionFallida)
+                && ((rotacionDiaria && !hoy.equals(fechaArchivo))
+                || (pesoMaximo > 0 && pesoArchivo > 0 && pesoArchivo + pesoLinea > pesoMaximo))) {
+            rotar();
+        }
+
+        buffer.write(bytes);
+        buffer.write(separador);
+
+        if (buffer.size() >= tamanhoBuffer) {
+            volcarBuffer();
+        }
+    }
+
+    /**
+     * Escribe las líneas que queden pendientes, cierra el archivo y detiene el
+     * hilo escritor y el volcado periódico si los hubiera. No debe llamarse a
+     * escribir a la vez que a close().
+     *
+     * @throws IOException si alguna escritura ha fallado.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!cerrado) {
+            cerrado = true;
+
+            if (hilo != null) {
+                LockSupport.unpark(hilo);
+                boolean interrumpido = false;
+                while (hilo.isAlive()) {
+                    try {
+                        hilo.join();
+                    } catch (InterruptedException e) {
+                        interrumpido = true;
+                    }
+                }
+                if (interrumpido) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (temporizador != null) {
+                temporizador.shutdownNow();
+            }
+            cerrarFichero();
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Vuelca el buffer y cierra el archivo.
+     *
+     * @throws IOException
+     */
+    private synchronized void cerrarFichero() throws IOException {
+        if (fichero != null) {
+            try {
+                volcarBuffer();
+            } finally {
+                fichero.close();
+                fichero = null;
+            }
+        }
+    }
+
+    private void comprobarFichero() throws IOException {
+        if (fichero == null) {
+            throw new IOException("El escritor está cerrado.");
+        }
+    }
+
+    /**
+     * Añade una línea al final del archivo. Si hay hilo escritor la línea se
+     * deja en su cola y el método vuelve enseguida (si la cola está llena
+     * espera a que quede un hueco); si no, se escribe en el buffer desde el
+     * hilo que llama.
+     *
+     * @param linea Línea que se escribirá, sin salto de línea. No puede ser
+     * null.
+     * @throws IOException si el escritor está cerrado o alguna escritura
+     * anterior ha fallado.
+     */
+    public void escribir(String linea) throws IOException {
+        if (linea == null) {
+            throw new IllegalArgumentException("La línea no puede ser null.");
+        }
+        if (cerrado) {
+            throw new IOException("El escritor está cerrado.");
+        }
+        if (error != null) {
+            throw error;
+        }
+
+        if (cola == null) {
+            anhadir(linea);
+        } else {
+            encolar(linea);
+        }
+    }
+
+    /**
+     * Bucle del hilo escritor: saca las líneas de la cola, las pasa al buffer
+     * y atiende las peticiones de volcado. Termina al cerrar el escritor,
+     * cuando ya no quedan líneas en la cola.
+     */
+    private void escribirCola() {
+        while (!cerrado || !cola.isEmpty()) {
+            Object pendiente = cola.poll();
+
+            if (pendiente == null) {
+                /* Se marca como dormido antes de volver a mirar la cola: o el
+                productor ve la marca y lo despierta, o el hilo ve la línea. */
+                dormido = true;
+                if (cola.isEmpty() && !cerrado) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(ESPERA_MAXIMA));
+                }
+                dormido = false;
+
+            } else {
+                if (error == null) {
+                    try {
+                        if (pendiente instanceof String) {
+                            anhadir((String) pendiente);
+                        } else {
+                            volcarBuffer();
+                        }
+                    } catch (IOException e) {
+                        error = e;
+                    } catch (RuntimeException e) {
+                        // Un fallo inesperado no debe detener el hilo ni dejar la cola bloqueada.
+                        error = new IOException("No se ha podido escribir la línea.", e);
+                    }
+                }
+
+                if (pendiente instanceof CompletableFuture) {
+                    @SuppressWarnings("unchecked")
+                    CompletableFuture<Void> peticion = (CompletableFuture<Void>) pendiente;
+                    if (error == null) {
+                        peticion.complete(null);
+                    } else {
+                        peticion.completeExceptionally(error);
+                    }
+                }
+                huecos.release();
+            }
+        }
+    }
+
+    /**
+     * Deja una línea o una petición de volcado en la cola del hilo escritor,
+     * esperando a que haya hueco si está llena.
+     */
+    private void encolar(Object pendiente) {
+        huecos.acquireUninterruptibly();
+        cola.offer(pendiente);
+
+        // Solo se despierta al hilo si está dormido.
+        if (dormido) {
+            LockSupport.unpark(hilo);
+        }
+    }
+
+    /**
+     * Calcula el nombre con el que se guardará el archivo actual al rotarlo:
+     * "nombre.fecha.n.extensión", con el primer n que no exista.
+     *
+     * @return Archivo en el que se guardarán las líneas actuales.
+     */
+    private File nombreRotado() {
+        File archivo = destino.getArchivo();
+        String nombre = archivo.getName();
+        int punto = nombre.lastIndexOf('.');
+        String base = (punto > 0) ? nombre.substring(0, punto) : nombre;
+        String extension = (punto > 0) ? nombre.substring(punto) : "";
+
+        File rotado;
+        int n = 1;
+        do {
+            rotado = new File(archivo.getAbsoluteFile().getParentFile(),
+                    base + "." + fechaArchivo + "." + n + extension);
+            n++;
+        } while (rotado.exists());
+
+        return rotado;
+    }
+
+    /**
+     * Permite volver a rotar el archivo después de que una rotación haya
+     * fallado, sin esperar al día siguiente. Se intentará con la próxima línea
+     * que lo requiera.
+     */
+    public synchronized void reintentarRotacion() {
+        rotacionFallida = null;
+    }
+
+    /**
+     * Vuelca y cierra el archivo actual, lo renombra y abre uno nuevo con el
+     * nombre original. Si no se puede renombrar se muestra el error y se
+     * sigue escribiendo en el mismo archivo, para no perder líneas, sin
+     * volver a intentarlo en lo que queda de día.
+     *
+     * @throws IOException
+     */
+    private void rotar() throws IOException {
+        volcarBuffer();
+        fichero.close();
+        File archivo = destino.getArchivo();
+
+        try {
+            if (archivo.length() > 0) {
+                Files.move(archivo.toPath(), nombreRotado().toPath());
+            }
+            rotacionFallida = null;
+        } catch (IOException e) {
+            System.out.println("Error al rotar el archivo.");
+            rotacionFallida = LocalDate.now();
+        }
+
+        fichero = new FileOutputStream(archivo, true);
+        pesoVolcado = archivo.length();
+        fechaArchivo = LocalDate.now();
+    }
+
+    /**
+     * Escribe en el archivo todas las líneas escritas hasta ahora. Si hay hilo
+     * escritor espera a que haya escrito las que estaban en la cola.
+     *
+     * @throws IOException
+     */
+    public void volcar() throws IOException {
+        if (cola == null || cerrado) {
+            synchronized (this) {
+                comprobarFichero();
+                volcarBuffer();
+            }
+
+        } else {
+            CompletableFuture<Void> peticion = new CompletableFuture<>();
+            encolar(peticion);
+
+            try {
+                peticion.join();
+            } catch (CompletionException e) {
+                throw (IOException) e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Escribe el contenido del buffer en el archivo.
+     *
+     * @throws IOException
+     */
+    private synchronized void volcarBuffer() throws IOException {
+        if (buffer.size() > 0) {
+            buffer.writeTo(fichero);
+            fichero.flush();
+            pesoVolcado += buffer.size();
+            buffer.reset();
+        }
+    }
+
+    /**
+     * Volcado que lanza el temporizador. Los errores se muestran por consola
+     * ya que no hay nadie que pueda recogerlos.
+     */
+    private synchronized void volcarPorTiempo() {
+        try {
+            if (fichero != null) {
+                volcarBuffer();
+            }
+        } catch (IOException e) {
+            System.out.println("Error al escribir el archivo.");
+        }
+    }
+
+    // GETTERS =================================================================
+    /**
+     * @return Cantidad de líneas que esperan en la cola del hilo escritor.
+     */
+    public int getNumPendientes() {
+        return (cola != null) ? cola.size() : 0;
+    }
+
+    /**
+     * @return Peso máximo del archivo antes de rotarlo. 0 si no se rota por
+     * peso.
+     */
+    public synchronized long getPesoMaximo() {
+        return pesoMaximo;
+    }
+
+    public synchronized boolean isRotacionDiaria() {
+        return rotacionDiaria;
+    }
+
+    // SETTERS =================================================================
+    /**
+     * @param pesoMaximo Bytes que puede llegar a ocupar el archivo. Si una
+     * línea lo haría superarlos, antes de escribirla se rota el archivo. Con 0
+     * no se rota por peso.
+     */
+    public synchronized void setPesoMaximo(long pesoMaximo) {
+        if (pesoMaximo < 0) {
+            throw new IllegalArgumentException("El peso máximo no puede ser negativo.");
+        }
+        this.pesoMaximo = pesoMaximo;
+    }
+
+    /**
+     * @param rotacionDiaria true para rotar el archivo con la primera línea
+     * que se escriba cada día.
+     */
+    public synchronized void setRotacionDiaria(boolean rotacionDiaria) {
+        this.rotacionDiaria = rotacionDiaria;
+    }
+}
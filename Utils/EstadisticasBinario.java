@@ -0,0 +1,325 @@
+package Utils;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Estadísticas de los datos numéricos (Double, Float, Integer, Long y Short)
+ * de un archivo de BinaryFilesUtils: cantidad, suma, mínimo, máximo, media y,
+ * si se pide, un histograma, por separado para cada tipo y en conjunto. Se
+ * obtienen con BinaryFilesUtils.calcularEstadisticas, que decodifica los
+ * valores directamente en estas variables primitivas sin crear un objeto por
+ * dato.
+ *
+ * Los datos que no son numéricos no se decodifican, solo se cuentan (ver
+ * getNumOtros).
+ *
+ * @author Roberto Santos Cordeiro
+ */
+public class EstadisticasBinario {
+
+    /**
+     * Tipos numéricos en el orden de sus etiquetas (de 3 a 7).
+     */
+    private static final Class<?>[] TIPOS = {
+        Double.class, Float.class, Integer.class, Long.class, Short.class
+    };
+    private static final int PRIMERA_ETIQUETA = 3;
+
+    private final long[] cuentas;
+    private final double[] sumas;
+    /**
+     * Suma exacta de los tipos enteros, que en un double perdería precisión.
+     * Se acumula en un long y, cada vez que se desbordaría, lo acumulado pasa
+     * a desbordes.
+     */
+    private final long[] sumasEnteras;
+    private final BigInteger[] desbordes;
+    private final double[] minimos;
+    private final double[] maximos;
+    private long numOtros;
+
+    private final double inicioHistograma;
+    private final double finHistograma;
+    /**
+     * Histograma de cada tipo. Es null si no se ha pedido histograma.
+     */
+    private final long[][] histogramas;
+    private final long[] fueraDeRango;
+
+    // CONSTRUCTORES ===========================================================
+    /**
+     * Crea unas estadísticas vacías sin histograma.
+     */
+    EstadisticasBinario() {
+        this(0, 0, 0);
+    }
+
+    /**
+     * Crea unas estadísticas vacías con un histograma de intervalos iguales
+     * entre inicio (incluido) y fin (excluido).
+     *
+     * @param inicio Valor en que empieza el primer intervalo.
+     * @param fin Valor en que termina el último intervalo.
+     * @param numIntervalos Cantidad de intervalos. Con 0 no hay histograma.
+     */
+    EstadisticasBinario(double inicio, double fin, int numIntervalos) {
+        if (numIntervalos < 0 || (numIntervalos > 0 && !(inicio < fin))) {
+            throw new IllegalArgumentException("El histograma debe tener al menos "
+                    + "un intervalo y el inicio debe ser menor que el fin.");
+        }
+
+        this.cuentas = new long[TIPOS.length];
+        this.sumas = new double[TIPOS.length];
+        this.sumasEnteras = new long[TIPOS.length];
+        this.desbordes = new BigInteger[TIPOS.length];
+        Arrays.fill(desbordes, BigInteger.ZERO);
+        this.minimos = new double[TIPOS.length];
+        this.maximos = new double[TIPOS.length];
+        Arrays.fill(minimos, Double.POSITIVE_INFINITY);
+        Arrays.fill(maximos, Double.NEGATIVE_INFINITY);
+
+        this.inicioHistograma = inicio;
+        this.finHistograma = fin;
+        this.histogramas = (numIntervalos > 0) ? new long[TIPOS.length][numIntervalos] : null;
+        this.fueraDeRango = new long[TIPOS.length];
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Añade un dato ya decodificado, por ejemplo el de un reemplazo del
+     * registro de mutaciones.
+     *
+     * @param dato Dato que se añadirá.
+     */
+    void anhadir(Object dato) {
+        if (dato instanceof Double || dato instanceof Float) {
+            anhadirDecimal(indice(dato.getClass()) + PRIMERA_ETIQUETA,
+                    ((Number) dato).doubleValue());
+        } else if (dato instanceof Integer || dato instanceof Long || dato instanceof Short) {
+            anhadirEntero(indice(dato.getClass()) + PRIMERA_ETIQUETA,
+                    ((Number) dato).longValue());
+        } else {
+            anhadirOtro();
+        }
+    }
+
+    /**
+     * Añade un valor de tipo Double o Float.
+     *
+     * @param etiqueta Etiqueta del tipo (3 o 4).
+     * @param valor Valor leído.
+     */
+    void anhadirDecimal(int etiqueta, double valor) {
+        int i = etiqueta - PRIMERA_ETIQUETA;
+        cuentas[i]++;
+        sumas[i] += valor;
+        actualizar(i, valor);
+    }
+
+    /**
+     * Añade un valor de tipo Integer, Long o Short.
+     *
+     * @param etiqueta Etiqueta del tipo (5, 6 o 7).
+     * @param valor Valor leído.
+     */
+    void anhadirEntero(int etiqueta, long valor) {
+        int i = etiqueta - PRIMERA_ETIQUETA;
+        cuentas[i]++;
+        try {
+            sumasEnteras[i] = Math.addExact(sumasEnteras[i], valor);
+        } catch (ArithmeticException e) {
+            // La suma no cabe en un long: lo acumulado pasa al BigInteger.
+            desbordes[i] = desbordes[i].add(BigInteger.valueOf(sumasEnteras[i]));
+            sumasEnteras[i] = valor;
+        }
+        actualizar(i, valor);
+    }
+
+    /**
+     * Cuenta un dato que no es numérico.
+     */
+    void anhadirOtro() {
+        numOtros++;
+    }
+
+    /**
+     * Actualiza el mínimo, el máximo y el histograma del tipo indicado.
+     */
+    private void actualizar(int i, double valor) {
+        if (valor < minimos[i]) {
+            minimos[i] = valor;
+        }
+        if (valor > maximos[i]) {
+            maximos[i] = valor;
+        }
+
+        if (histogramas != null) {
+            if (valor >= inicioHistograma && valor < finHistograma) {
+                int intervalo = (int) ((valor - inicioHistograma)
+                        / (finHistograma - inicioHistograma) * histogramas[i].length);
+                histogramas[i][Math.min(intervalo, histogramas[i].length - 1)]++;
+            } else {
+                fueraDeRango[i]++;
+            }
+        }
+    }
+
+    /**
+     * Devuelve la posición del tipo en los arrays de acumuladores.
+     */
+    private static int indice(Class<?> tipo) {
+        int i = Arrays.asList(TIPOS).indexOf(tipo);
+
+        if (i == -1) {
+            throw new IllegalArgumentException("Tipo no numérico: " + tipo.getSimpleName());
+        }
+
+        return i;
+    }
+
+    /**
+     * Devuelve la suma exacta de los enteros del tipo en la posición
+     * indicada.
+     */
+    private BigInteger sumaEntera(int i) {
+        return desbordes[i].add(BigInteger.valueOf(sumasEnteras[i]));
+    }
+
+    // GETTERS =================================================================
+    /**
+     * @return Cantidad de datos numéricos de cualquier tipo.
+     */
+    public long getCuenta() {
+        long total = 0;
+        for (long cuenta : cuentas) {
+            total += cuenta;
+        }
+        return total;
+    }
+
+    /**
+     * @param tipo Double.class, Float.class, Integer.class, Long.class o
+     * Short.class.
+     * @return Cantidad de datos del tipo indicado.
+     */
+    public long getCuenta(Class<?> tipo) {
+        return cuentas[indice(tipo)];
+    }
+
+    /**
+     * Devuelve el histograma de los valores del tipo indicado: la cantidad de
+     * valores que cae en cada intervalo. Los valores fuera del rango del
+     * histograma no se incluyen (ver getNumFueraDeRango).
+     *
+     * @param tipo Tipo numérico.
+     * @return Copia del histograma, o null si no se pidió histograma.
+     */
+    public long[] getHistograma(Class<?> tipo) {
+        return (histogramas != null) ? histogramas[indice(tipo)].clone() : null;
+    }
+
+    /**
+     * @return Valor máximo de todos los datos numéricos, o NaN si no hay
+     * ninguno.
+     */
+    public double getMaximo() {
+        double maximo = Double.NEGATIVE_INFINITY;
+        for (double valor : maximos) {
+            maximo = Math.max(maximo, valor);
+        }
+        return (getCuenta() > 0) ? maximo : Double.NaN;
+    }
+
+    /**
+     * @param tipo Tipo numérico.
+     * @return Valor máximo de los datos del tipo, o NaN si no hay ninguno.
+     */
+    public double getMaximo(Class<?> tipo) {
+        int i = indice(tipo);
+        return (cuentas[i] > 0) ? maximos[i] : Double.NaN;
+    }
+
+    /**
+     * @return Media de todos los datos numéricos, o NaN si no hay ninguno.
+     */
+    public double getMedia() {
+        return getSuma() / getCuenta();
+    }
+
+    /**
+     * @param tipo Tipo numérico.
+     * @return Media de los datos del tipo, o NaN si no hay ninguno.
+     */
+    public double getMedia(Class<?> tipo) {
+        return getSuma(tipo) / getCuenta(tipo);
+    }
+
+    /**
+     * @return Valor mínimo de todos los datos numéricos, o NaN si no hay
+     * ninguno.
+     */
+    public double getMinimo() {
+        double minimo = Double.POSITIVE_INFINITY;
+        for (double valor : minimos) {
+            minimo = Math.min(minimo, valor);
+        }
+        return (getCuenta() > 0) ? minimo : Double.NaN;
+    }
+
+    /**
+     * @param tipo Tipo numérico.
+     * @return Valor mínimo de los datos del tipo, o NaN si no hay ninguno.
+     */
+    public double getMinimo(Class<?> tipo) {
+        int i = indice(tipo);
+        return (cuentas[i] > 0) ? minimos[i] : Double.NaN;
+    }
+
+    /**
+     * @param tipo Tipo numérico.
+     * @return Cantidad de valores del tipo que han quedado fuera del rango del
+     * histograma.
+     */
+    public long getNumFueraDeRango(Class<?> tipo) {
+        return fueraDeRango[indice(tipo)];
+    }
+
+    /**
+     * @return Cantidad de datos que no son numéricos (cadenas, objetos...).
+     */
+    public long getNumOtros() {
+        return numOtros;
+    }
+
+    /**
+     * @return Suma de todos los datos numéricos.
+     */
+    public double getSuma() {
+        double total = 0;
+        for (int i = 0; i < TIPOS.length; i++) {
+            total += sumas[i] + sumaEntera(i).doubleValue();
+        }
+        return total;
+    }
+
+    /**
+     * @param tipo Tipo numérico.
+     * @return Suma de los datos del tipo.
+     */
+    public double getSuma(Class<?> tipo) {
+        int i = indice(tipo);
+        return sumas[i] + sumaEntera(i).doubleValue();
+    }
+
+    /**
+     * Devuelve la suma exacta de los datos de un tipo entero, que en un double
+     * podría perder precisión y en un long podría desbordarse.
+     *
+     * @param tipo Integer.class, Long.class o Short.class.
+     * @return Suma de los datos del tipo.
+     */
+    public BigInteger getSumaEntera(Class<?> tipo) {
+        return sumaEntera(indice(tipo));
+    }
+}
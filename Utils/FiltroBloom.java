@@ -0,0 +1,281 @@
+package Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * Filtro de Bloom con las huellas de los datos de un archivo de
+ * BinaryFilesUtils. Permite saber sin leer el archivo de datos que un dato NO
+ * está en él; si el filtro dice que puede estar, hay que buscarlo para
+ * confirmarlo. Se guarda en un archivo auxiliar con la misma ruta que el de
+ * datos terminada en ".bloom", y el filtro está activo mientras ese archivo
+ * exista.
+ *
+ * Su formato es un long con el peso del archivo de datos que cubre el filtro,
+ * un int con la capacidad para la que se dimensionó, un int con la cantidad
+ * de huellas añadidas y los bits del filtro en longs.
+ *
+ * Solo se filtran los datos primitivos y las cadenas, cuya codificación
+ * compacta es igual para datos iguales. Los objetos pueden ser iguales según
+ * equals() y serializarse distinto, así que para ellos el filtro no sirve.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class FiltroBloom {
+
+    static final String EXTENSION = ".bloom";
+
+    /**
+     * Con 10 bits por dato y 7 funciones hash la probabilidad de falso
+     * positivo ronda el 1% mientras no se supere la capacidad.
+     */
+    private static final int BITS_POR_DATO = 10;
+    private static final int NUM_HASHES = 7;
+    private static final int PESO_CABECERA = Long.BYTES + 2 * Integer.BYTES;
+
+    private final File archivoFiltro;
+    private long[] bits;
+    private int capacidad;
+    private int numDatos;
+    /**
+     * Palabras de bits que han cambiado desde el último guardado.
+     */
+    private final BitSet sucias;
+    private boolean todoSucio;
+    /**
+     * Peso del archivo de datos hasta el que llega el filtro. -1 indica que
+     * no hay filtro cargado.
+     */
+    private long pesoCubierto;
+
+    // CONSTRUCTORES ===========================================================
+    FiltroBloom(File archivoDatos) {
+        this.archivoFiltro = new File(archivoDatos.getPath() + EXTENSION);
+        this.sucias = new BitSet();
+        this.pesoCubierto = -1;
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Añade al filtro la huella de un dato.
+     *
+     * @param huella Huella del dato obtenida con huella(Object).
+     */
+    void anhadir(long huella) {
+        long numBits = (long) bits.length * Long.SIZE;
+
+        for (int i = 0; i < NUM_HASHES; i++) {
+            long bit = posicionBit(huella, i, numBits);
+            int palabra = (int) (bit >>> 6);
+            bits[palabra] |= 1L << bit;
+            sucias.set(palabra);
+        }
+        numDatos++;
+    }
+
+    /**
+     * Elimina el archivo del filtro, lo que lo desactiva.
+     *
+     * @return true si el archivo ha sido borrado; false en caso contrario.
+     */
+    boolean borrar() {
+        bits = null;
+        pesoCubierto = -1;
+        return archivoFiltro.delete();
+    }
+
+    /**
+     * Lee el filtro guardado en disco. Si no existe o está dañado queda sin
+     * cargar (peso cubierto -1) y tendrá que reconstruirse.
+     *
+     * @throws IOException
+     */
+    void cargar() throws IOException {
+        bits = null;
+        pesoCubierto = -1;
+
+        if (archivoFiltro.exists() && archivoFiltro.length() > PESO_CABECERA) {
+            try (FileChannel canal = FileChannel.open(archivoFiltro.toPath())) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) canal.size());
+                while (buffer.hasRemaining() && canal.read(buffer) != -1) {
+                    // Leyendo hasta llenar el buffer.
+                }
+                buffer.flip();
+
+                long peso = buffer.getLong();
+                int capacidadLeida = buffer.getInt();
+                int datosLeidos = buffer.getInt();
+
+                if (buffer.remaining() == Long.BYTES * numPalabras(capacidadLeida)) {
+                    bits = new long[numPalabras(capacidadLeida)];
+                    buffer.asLongBuffer().get(bits);
+                    capacidad = capacidadLeida;
+                    numDatos = datosLeidos;
+                    pesoCubierto = peso;
+                    sucias.clear();
+                    todoSucio = false;
+                }
+            }
+        }
+    }
+
+    boolean estaActivo() {
+        return archivoFiltro.exists();
+    }
+
+    /**
+     * Indica si el dato se puede comprobar con el filtro.
+     *
+     * @param dato Dato que se quiere comprobar.
+     * @return true si es un dato primitivo o una cadena.
+     */
+    static boolean esFiltrable(Object dato) {
+        return dato instanceof String || dato instanceof Integer
+                || dato instanceof Long || dato instanceof Double
+                || dato instanceof Float || dato instanceof Short
+                || dato instanceof Character || dato instanceof Boolean;
+    }
+
+    /**
+     * Escribe en el archivo del filtro las palabras de bits que han cambiado
+     * y actualiza la cabecera.
+     *
+     * @throws IOException
+     */
+    void guardar() throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(archivoFiltro, "rw")) {
+            long pesoArchivo = PESO_CABECERA + (long) Long.BYTES * bits.length;
+            FileChannel canal = out.getChannel();
+
+            // Si el archivo no se corresponde con el filtro se escribe entero.
+            if (todoSucio || out.length() != pesoArchivo
+                    || sucias.cardinality() > bits.length / 8) {
+                ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES * bits.length);
+                buffer.asLongBuffer().put(bits);
+                out.setLength(pesoArchivo);
+                canal.position(PESO_CABECERA);
+                while (buffer.hasRemaining()) {
+                    canal.write(buffer);
+                }
+
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+                for (int i = sucias.nextSetBit(0); i >= 0; i = sucias.nextSetBit(i + 1)) {
+                    buffer.clear();
+                    buffer.putLong(bits[i]).flip();
+                    canal.write(buffer, PESO_CABECERA + (long) Long.BYTES * i);
+                }
+            }
+
+            out.seek(0);
+            out.writeLong(pesoCubierto);
+            out.writeInt(capacidad);
+            out.writeInt(numDatos);
+        }
+
+        sucias.clear();
+        todoSucio = false;
+    }
+
+    /**
+     * Calcula la huella de 64 bits de un dato a partir de su codificación
+     * compacta, de modo que no depende de hashCode() ni de la JVM.
+     *
+     * @param dato Dato filtrable (ver esFiltrable).
+     * @return Huella del dato.
+     * @throws IOException
+     */
+    static long huella(Object dato) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        BinaryFilesUtils.codificarCompacto(dato, new DataOutputStream(bytes));
+
+        // FNV-1a seguido de la mezcla final de MurmurHash3.
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes.toByteArray()) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+    private static int numPalabras(int capacidad) {
+        return (int) (((long) capacidad * BITS_POR_DATO + Long.SIZE - 1) / Long.SIZE);
+    }
+
+    /**
+     * Calcula el bit i-ésimo de una huella combinando sus dos mitades (doble
+     * hash), lo que evita calcular NUM_HASHES hashes distintos.
+     */
+    private static long posicionBit(long huella, int i, long numBits) {
+        long h1 = huella & 0xffffffffL;
+        long h2 = (huella >>> 32) | 1;
+        return Math.floorMod(h1 + i * h2, numBits);
+    }
+
+    /**
+     * Indica si el dato con la huella indicada puede estar en el archivo.
+     *
+     * @param huella Huella del dato obtenida con huella(Object).
+     * @return false si el dato seguro que no está; true si puede estar.
+     */
+    boolean puedeContener(long huella) {
+        long numBits = (long) bits.length * Long.SIZE;
+        boolean puede = true;
+
+        for (int i = 0; i < NUM_HASHES && puede; i++) {
+            long bit = posicionBit(huella, i, numBits);
+            puede = (bits[(int) (bit >>> 6)] & (1L << bit)) != 0;
+        }
+
+        return puede;
+    }
+
+    /**
+     * Deja el filtro vacío, dimensionado para la capacidad indicada y
+     * cubriendo 0 bytes del archivo de datos.
+     *
+     * @param capacidad Cantidad de datos para la que se dimensiona el filtro.
+     */
+    void vaciar(int capacidad) {
+        this.capacidad = capacidad;
+        this.bits = new long[numPalabras(capacidad)];
+        this.numDatos = 0;
+        this.pesoCubierto = 0;
+        this.sucias.clear();
+        this.todoSucio = true;
+    }
+
+    // GETTERS =================================================================
+    File getArchivoFiltro() {
+        return archivoFiltro;
+    }
+
+    int getCapacidad() {
+        return capacidad;
+    }
+
+    int getNumDatos() {
+        return numDatos;
+    }
+
+    long getPesoCubierto() {
+        return pesoCubierto;
+    }
+
+    // SETTERS =================================================================
+    void setPesoCubierto(long pesoCubierto) {
+        this.pesoCubierto = pesoCubierto;
+    }
+}
@@ -0,0 +1,269 @@
+package Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Índice con el byte en que empieza cada dato de un archivo de
+ * BinaryFilesUtils (en el formato comprimido, el byte en que empieza su
+ * bloque). Se guarda en un archivo auxiliar con la misma ruta que el
+ * de datos terminada en ".idx". Su formato es una cabecera de tres long con el
+ * peso del archivo de datos que cubre el índice, su fecha de modificación y
+ * la huella de sus últimos bytes, seguida de un long por cada dato con su
+ * offset.
+ *
+ * El índice solo vale mientras el archivo de datos tenga el peso y la fecha
+ * guardados, o haya crecido sin cambiar los últimos bytes que cubre (se le
+ * han añadido datos). Cualquier otro cambio obliga a reconstruirlo.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class IndiceBinario {
+
+    static final String EXTENSION = ".idx";
+    /**
+     * Bytes de la cabecera: peso cubierto, fecha de modificación y huella.
+     */
+    private static final int PESO_CABECERA = 3 * Long.BYTES;
+    /**
+     * Bytes del final de la parte cubierta con los que se calcula la huella.
+     */
+    private static final int PESO_COLA = 64;
+
+    private final File archivoDatos;
+    private final File archivoIndice;
+    private long[] offsets;
+    private int numOffsets;
+    private int numGuardados;
+    /**
+     * Peso del archivo de datos hasta el que llega el índice. -1 indica que
+     * aún no se ha cargado.
+     */
+    private long pesoCubierto;
+    /**
+     * Fecha de modificación del archivo de datos cuando se guardó el índice.
+     */
+    private long modificacion;
+    /**
+     * Huella de los últimos bytes de la parte cubierta del archivo de datos.
+     */
+    private long huella;
+
+    // CONSTRUCTORES ===========================================================
+    IndiceBinario(File archivoDatos) {
+        this.archivoDatos = archivoDatos;
+        this.archivoIndice = new File(archivoDatos.getPath() + EXTENSION);
+        this.offsets = new long[16];
+        this.pesoCubierto = -1;
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Añade al índice el offset de un nuevo dato.
+     *
+     * @param offset Byte en que empieza el dato en el archivo de datos.
+     */
+    void anhadir(long offset) {
+        if (numOffsets == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[numOffsets++] = offset;
+    }
+
+    /**
+     * Elimina el archivo del índice y vacía el que hay en memoria.
+     *
+     * @return true si el archivo del índice ha sido borrado; false en caso
+     * contrario.
+     */
+    boolean borrar() {
+        vaciar();
+        return archivoIndice.delete();
+    }
+
+    /**
+     * Lee el índice guardado en disco. Si no existe o está dañado el índice
+     * quedará vacío y tendrá que reconstruirse.
+     *
+     * @throws IOException
+     */
+    void cargar() throws IOException {
+        vaciar();
+
+        if (archivoIndice.exists() && archivoIndice.length() >= PESO_CABECERA
+                && archivoIndice.length() % Long.BYTES == 0) {
+
+            try (FileChannel canal = FileChannel.open(archivoIndice.toPath())) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) canal.size());
+                while (buffer.hasRemaining() && canal.read(buffer) != -1) {
+                    // Leyendo hasta llenar el buffer.
+                }
+                buffer.flip();
+
+                long peso = buffer.getLong();
+                long fecha = buffer.getLong();
+                long huellaGuardada = buffer.getLong();
+                int leidos = buffer.remaining() / Long.BYTES;
+                offsets = new long[Math.max(16, leidos)];
+                buffer.asLongBuffer().get(offsets, 0, leidos);
+                numOffsets = leidos;
+                numGuardados = leidos;
+                pesoCubierto = peso;
+                modificacion = fecha;
+                huella = huellaGuardada;
+            }
+        }
+    }
+
+    /**
+     * Indica si el índice cubre el archivo de datos tal y como está.
+     *
+     * @param peso Peso actual del archivo de datos.
+     * @param fecha Fecha de modificación actual del archivo de datos.
+     * @return true si el archivo no ha cambiado desde que se guardó el índice.
+     */
+    boolean cubre(long peso, long fecha) {
+        return pesoCubierto == peso && modificacion == fecha;
+    }
+
+    /**
+     * Indica si el archivo de datos solo ha crecido desde que se guardó el
+     * índice, comparando la huella de los últimos bytes cubiertos.
+     *
+     * @param peso Peso actual del archivo de datos.
+     * @return true si lo cubierto sigue igual y el índice puede completarse
+     * leyendo solo lo nuevo.
+     * @throws IOException
+     */
+    boolean esPrefijoDe(long peso) throws IOException {
+        return pesoCubierto < peso && huella == huellaCola(archivoDatos, pesoCubierto);
+    }
+
+    /**
+     * Escribe en el archivo del índice los offsets que aún no se han guardado
+     * y actualiza el peso cubierto.
+     *
+     * @throws IOException
+     */
+    void guardar() throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(archivoIndice, "rw")) {
+            // Si el archivo no se corresponde con lo guardado se escribe entero.
+            if (out.length() != PESO_CABECERA + (long) Long.BYTES * numGuardados) {
+                numGuardados = 0;
+                out.setLength(PESO_CABECERA);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(
+                    Long.BYTES * (numOffsets - numGuardados));
+            buffer.asLongBuffer().put(offsets, numGuardados, numOffsets - numGuardados);
+
+            FileChannel canal = out.getChannel();
+            canal.position(PESO_CABECERA + (long) Long.BYTES * numGuardados);
+            while (buffer.hasRemaining()) {
+                canal.write(buffer);
+            }
+
+            modificacion = archivoDatos.lastModified();
+            huella = huellaCola(archivoDatos, pesoCubierto);
+            out.seek(0);
+            out.writeLong(pesoCubierto);
+            out.writeLong(modificacion);
+            out.writeLong(huella);
+            numGuardados = numOffsets;
+        }
+    }
+
+    /**
+     * Calcula la huella (CRC32) de los últimos bytes de un archivo hasta el
+     * peso indicado. Sirve para saber si un archivo que ha crecido conserva lo
+     * que tenía, sin leerlo entero.
+     *
+     * @param archivo Archivo del que se calculará la huella.
+     * @param peso Byte hasta el que se calcula la huella.
+     * @return Huella de hasta 64 bytes anteriores al peso indicado, 0 si el
+     * peso es 0.
+     * @throws IOException
+     */
+    static long huellaCola(File archivo, long peso) throws IOException {
+        byte[] bytes = new byte[(int) Math.min(PESO_COLA, peso)];
+
+        if (bytes.length > 0) {
+            try (RandomAccessFile in = new RandomAccessFile(archivo, "r")) {
+                in.seek(peso - bytes.length);
+                in.readFully(bytes);
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    /**
+     * Deja el índice en memoria vacío y cubriendo 0 bytes del archivo de
+     * datos.
+     */
+    void vaciar() {
+        numOffsets = 0;
+        numGuardados = 0;
+        pesoCubierto = 0;
+        modificacion = 0;
+        huella = 0;
+    }
+
+    // GETTERS =================================================================
+    long getOffset(int i) {
+        return offsets[i];
+    }
+
+    int getNumOffsets() {
+        return numOffsets;
+    }
+
+    /**
+     * Devuelve la posición del primer dato que comparte offset con el
+     * indicado. En el formato comprimido todos los datos de un bloque tienen
+     * el offset del bloque; en los demás cada dato tiene el suyo.
+     *
+     * @param i Posición del dato en el índice.
+     * @return Posición del primer dato de su bloque.
+     */
+    int getPrimeroDelBloque(int i) {
+        int primero = i;
+
+        if (i > 0 && offsets[i - 1] == offsets[i]) {
+            int inicio = 0;
+            int fin = i - 1;
+            // Los offsets están ordenados, así que se busca el primero igual.
+            while (inicio < fin) {
+                int medio = (inicio + fin) >>> 1;
+                if (offsets[medio] < offsets[i]) {
+                    inicio = medio + 1;
+                } else {
+                    fin = medio;
+                }
+            }
+            primero = inicio;
+        }
+
+        return primero;
+    }
+
+    long getPesoCubierto() {
+        return pesoCubierto;
+    }
+
+    File getArchivoIndice() {
+        return archivoIndice;
+    }
+
+    // SETTERS =================================================================
+    void setPesoCubierto(long pesoCubierto) {
+        this.pesoCubierto = pesoCubierto;
+    }
+}
@@ -0,0 +1,219 @@
+package Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Índice en memoria con el byte en que empieza cada línea de un archivo de
+ * TextFilesUtils, de modo que leer una línea por su número cuesta un
+ * posicionamiento y la lectura de esa línea. Las líneas terminan en "\n", "\r"
+ * o "\r\n", igual que con BufferedReader.readLine().
+ *
+ * El índice se construye leyendo el archivo una sola vez. Si el archivo crece
+ * y sus últimos bytes indexados no han cambiado se considera que se le han
+ * añadido líneas y solo se lee lo nuevo; cualquier otro cambio de peso o de
+ * fecha de modificación obliga a reconstruirlo.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class IndiceLineas {
+
+    /**
+     * Bytes del final de la parte indexada que se comparan para saber si el
+     * archivo solo ha crecido.
+     */
+    private static final int PESO_COLA = 64;
+
+    private final File archivo;
+    private long[] inicios;
+    private int numLineas;
+    /**
+     * Cantidad de líneas hasta la última que no está vacía.
+     */
+    private int numLineasConTexto;
+    /**
+     * Peso del archivo hasta el que llega el índice. -1 indica que aún no se
+     * ha construido.
+     */
+    private long pesoCubierto;
+    private long modificacion;
+    private byte[] cola;
+    /**
+     * Estado de la lectura al llegar al peso cubierto, para continuarla
+     * cuando el archivo crezca.
+     */
+    private boolean enInicioLinea;
+    private boolean retornoPendiente;
+
+    // CONSTRUCTORES ===========================================================
+    IndiceLineas(File archivo) {
+        this.archivo = archivo;
+        this.inicios = new long[16];
+        vaciar();
+    }
+
+    // MÉTODOS =================================================================
+    private void anhadir(long inicio) {
+        if (numLineas == inicios.length) {
+            inicios = Arrays.copyOf(inicios, inicios.length * 2);
+        }
+        inicios[numLineas++] = inicio;
+    }
+
+    /**
+     * Lee los bytes del archivo desde el peso cubierto hasta el final,
+     * añadiendo al índice las líneas que empiezan en ellos.
+     *
+     * @throws IOException
+     */
+    private void indexar() throws IOException {
+        try (FileInputStream in = new FileInputStream(archivo)) {
+            long posicion = pesoCubierto;
+            in.getChannel().position(posicion);
+
+            byte[] buffer = new byte[64 * 1024];
+            int leidos;
+
+            while ((leidos = in.read(buffer)) != -1) {
+                for (int i = 0; i < leidos; i++, posicion++) {
+                    byte b = buffer[i];
+
+                    // El "\n" de un "\r\n" pertenece al salto de la línea anterior.
+                    if (retornoPendiente) {
+                        retornoPendiente = false;
+                        if (b == '\n') {
+                            continue;
+                        }
+                    }
+
+                    if (enInicioLinea) {
+                        anhadir(posicion);
+                        enInicioLinea = false;
+                    }
+
+                    if (b == '\n') {
+                        enInicioLinea = true;
+                    } else if (b == '\r') {
+                        enInicioLinea = true;
+                        retornoPendiente = true;
+                    } else {
+                        numLineasConTexto = numLineas;
+                    }
+                }
+            }
+
+            pesoCubierto = posicion;
+        }
+
+        cola = leerCola();
+    }
+
+    /**
+     * Lee los últimos bytes de la parte indexada del archivo.
+     *
+     * @return Hasta PESO_COLA bytes anteriores al peso cubierto.
+     * @throws IOException
+     */
+    private byte[] leerCola() throws IOException {
+        byte[] bytes = new byte[(int) Math.min(PESO_COLA, pesoCubierto)];
+
+        try (RandomAccessFile in = new RandomAccessFile(archivo, "r")) {
+            in.seek(pesoCubierto - bytes.length);
+            in.readFully(bytes);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Lee la línea indicada posicionándose directamente en su primer byte.
+     *
+     * @param linea Número de la línea, de 0 a n-1.
+     * @param charset Codificación del archivo.
+     * @return Texto de la línea sin el salto de línea.
+     * @throws IOException
+     */
+    String leerLinea(int linea, Charset charset) throws IOException {
+        ByteArrayOutputStream texto = new ByteArrayOutputStream();
+
+        try (RandomAccessFile in = new RandomAccessFile(archivo, "r")) {
+            in.seek(inicios[linea]);
+
+            byte[] buffer = new byte[8 * 1024];
+            boolean finLinea = false;
+            int leidos;
+
+            while (!finLinea && (leidos = in.read(buffer)) != -1) {
+                int fin = 0;
+                while (fin < leidos && buffer[fin] != '\n' && buffer[fin] != '\r') {
+                    fin++;
+                }
+                texto.write(buffer, 0, fin);
+                finLinea = fin < leidos;
+            }
+        }
+
+        return new String(texto.toByteArray(), charset);
+    }
+
+    /**
+     * Pone al día el índice con el contenido actual del archivo. Si solo se
+     * han añadido datos al final se indexan solo esos; si el archivo ha
+     * cambiado de cualquier otra forma se reconstruye entero.
+     *
+     * @throws IOException
+     */
+    synchronized void sincronizar() throws IOException {
+        long peso = archivo.length();
+        long fecha = archivo.lastModified();
+
+        if (pesoCubierto != -1 && (peso != pesoCubierto || fecha != modificacion)) {
+            // Solo se aprovecha el índice si el archivo ha crecido sin cambiar lo indexado.
+            if (peso <= pesoCubierto || !Arrays.equals(cola, leerCola())) {
+                vaciar();
+            }
+        }
+
+        if (pesoCubierto == -1) {
+            pesoCubierto = 0;
+        }
+        if (peso > pesoCubierto) {
+            indexar();
+        }
+        modificacion = fecha;
+    }
+
+    /**
+     * Deja el índice vacío, de modo que se reconstruirá en la siguiente
+     * consulta.
+     */
+    synchronized void vaciar() {
+        numLineas = 0;
+        numLineasConTexto = 0;
+        pesoCubierto = -1;
+        cola = new byte[0];
+        enInicioLinea = true;
+        retornoPendiente = false;
+    }
+
+    // GETTERS =================================================================
+    /**
+     * @return Cantidad de líneas del archivo, incluidas las vacías del final.
+     */
+    int getNumLineas() {
+        return numLineas;
+    }
+
+    /**
+     * @return Cantidad de líneas hasta la última que tiene texto, sin contar
+     * las líneas vacías del final.
+     */
+    int getNumLineasConTexto() {
+        return numLineasConTexto;
+    }
+}
@@ -0,0 +1,173 @@
+package Utils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterador que recorre los datos de un archivo de BinaryFilesUtils leyéndolos
+ * de uno en uno, por lo que la memoria usada no depende del tamaño del
+ * archivo. Mantiene el archivo abierto hasta llegar al final o hasta llamar a
+ * close(), así que conviene usarlo en un try-with-resources cuando se vaya a
+ * dejar de recorrer antes del final.
+ *
+ * Los borrados y reemplazos pendientes del registro de mutaciones se aplican
+ * sobre la marcha, de modo que el iterador devuelve lo mismo que se leería tras
+ * compactar el archivo.
+ *
+ * Como los métodos de Iterator no pueden lanzar IOException, los errores de
+ * lectura se lanzan envueltos en una UncheckedIOException.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+public class IteradorBinario implements Iterator<Object>, Closeable {
+
+    private LectorBinario lector;
+    private RegistroMutaciones mutaciones;
+    private Object siguiente;
+    /**
+     * Posición física del próximo dato que se leerá del archivo.
+     */
+    private int fisicaLeida;
+    /**
+     * Posición física del último dato devuelto por next().
+     */
+    private int fisicaActual;
+
+    // CONSTRUCTORES ===========================================================
+    /**
+     * Crea un iterador vacío.
+     */
+    IteradorBinario() {
+    }
+
+    /**
+     * @param archivo Archivo binario que se recorrerá.
+     * @param offset Byte del archivo en que empieza el primer dato a leer.
+     * @param fisica Posición física (de 0 a n-1) del dato que empieza en el
+     * offset.
+     * @param mutaciones Registro de borrados y reemplazos que se aplicarán.
+     * Puede ser null.
+     * @throws IOException
+     */
+    IteradorBinario(File archivo, long offset, int fisica,
+            RegistroMutaciones mutaciones) throws IOException {
+        this.fisicaLeida = fisica;
+        this.fisicaActual = -1;
+        this.mutaciones = (mutaciones != null && !mutaciones.estaVacio())
+                ? mutaciones : null;
+
+        try {
+            if (archivo.exists()) {
+                this.lector = LectorBinario.abrir(archivo, offset);
+            }
+        } catch (EOFException e) {
+            // El archivo está vacío.
+        }
+    }
+
+    /**
+     * @param lector Lector ya posicionado en el primer dato a leer.
+     * @param fisica Posición física (de 0 a n-1) del siguiente dato del
+     * lector.
+     * @param mutaciones Registro de borrados y reemplazos que se aplicarán.
+     * Puede ser null.
+     */
+    IteradorBinario(LectorBinario lector, int fisica, RegistroMutaciones mutaciones) {
+        this.lector = lector;
+        this.fisicaLeida = fisica;
+        this.fisicaActual = -1;
+        this.mutaciones = (mutaciones != null && !mutaciones.estaVacio())
+                ? mutaciones : null;
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Cierra el archivo. Después de llamarlo el iterador no devolverá más
+     * datos.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        siguiente = null;
+
+        if (lector != null) {
+            try {
+                lector.close();
+            } finally {
+                lector = null;
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        // Se lee el siguiente dato por adelantado si aún no se ha hecho.
+        while (siguiente == null && lector != null) {
+            try {
+                Object leido = lector.siguiente();
+                int fisica = fisicaLeida++;
+
+                // Los datos borrados se saltan y los reemplazados se cambian.
+                if (mutaciones == null) {
+                    siguiente = leido;
+                } else if (!mutaciones.estaBorrado(fisica)) {
+                    siguiente = mutaciones.fusionar(fisica, leido);
+                }
+
+            } catch (EOFException e) {
+                // Al llegar al final se cierra el archivo.
+                cerrarSinErrores();
+
+            } catch (IOException e) {
+                cerrarSinErrores();
+                throw new UncheckedIOException(e);
+
+            } catch (ClassNotFoundException e) {
+                cerrarSinErrores();
+                throw new UncheckedIOException(new IOException("Clase no encontrada.", e));
+            }
+        }
+
+        return siguiente != null;
+    }
+
+    @Override
+    public Object next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Object dato = siguiente;
+        siguiente = null;
+        fisicaActual = fisicaLeida - 1;
+        return dato;
+    }
+
+    /**
+     * Devuelve la posición física en el archivo (de 0 a n-1) del último dato
+     * devuelto por next().
+     *
+     * @return Posición física del dato actual.
+     */
+    int getFisicaActual() {
+        return fisicaActual;
+    }
+
+    /**
+     * Cierra el archivo ignorando los errores, que no afectan a los datos ya
+     * leídos.
+     */
+    private void cerrarSinErrores() {
+        try {
+            close();
+        } catch (IOException e) {
+            // No es necesario realizar ninguna acción aqui.
+        }
+    }
+}
@@ -0,0 +1,873 @@
+package Utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamConstants;
+import java.io.SequenceInputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Lector secuencial de los datos de un archivo de BinaryFilesUtils que sabe en
+ * qué byte del archivo empieza cada dato. Puede abrirse en cualquier posición
+ * en la que empiece un dato, lo que permite saltar directamente a él sin
+ * decodificar los anteriores. El formato del archivo se detecta al abrirlo.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+abstract class LectorBinario implements Closeable {
+
+    // MÉTODOS =================================================================
+    /**
+     * Abre un lector del formato que corresponda al archivo posicionado en el
+     * offset indicado, que debe ser 0 o el byte en que empieza alguno de los
+     * datos escritos (en el formato comprimido, alguno de los bloques).
+     *
+     * @param archivo Archivo binario que se leerá.
+     * @param offset Byte del archivo en que empieza el primer dato a leer.
+     * @return LectorBinario posicionado en el offset.
+     * @throws IOException
+     */
+    static LectorBinario abrir(File archivo, long offset) throws IOException {
+        LectorBinario lector;
+
+        switch (BinaryFilesUtils.detectarFormato(archivo)) {
+            case BinaryFilesUtils.FORMATO_COMPACTO:
+                lector = new LectorCompacto(archivo, offset);
+                break;
+            case BinaryFilesUtils.FORMATO_COMPRIMIDO:
+                lector = new LectorComprimido(archivo, offset);
+                break;
+            default:
+                lector = new LectorClasico(archivo, offset);
+        }
+
+        return lector;
+    }
+
+    /**
+     * Abre un lector que decodifica los datos directamente de la proyección en
+     * memoria del archivo. Solo los formatos compacto y comprimido se pueden
+     * leer así; para el clásico, cuyo flujo de ObjectOutputStream intercala
+     * cabeceras de bloque entre los datos, se abre un lector normal.
+     *
+     * @param archivo Archivo binario que se leerá.
+     * @param foto Proyección del archivo, obtenida de MapaArchivo.
+     * @param offset Byte del archivo en que empieza el primer dato a leer.
+     * @return LectorBinario posicionado en el offset.
+     * @throws IOException
+     */
+    static LectorBinario abrir(File archivo, MapaArchivo.Foto foto, long offset)
+            throws IOException {
+        LectorBinario lector;
+        byte[] cabecera = new byte[BinaryFilesUtils.CABECERA_COMPACTA.length];
+        ByteBuffer inicio = foto.getVentana(0);
+
+        if (inicio.remaining() >= cabecera.length) {
+            inicio.get(cabecera);
+        }
+
+        if (Arrays.equals(cabecera, BinaryFilesUtils.CABECERA_COMPACTA)) {
+            lector = new LectorMapeado(foto, offset, false);
+        } else if (Arrays.equals(cabecera, BinaryFilesUtils.CABECERA_COMPRIMIDA)) {
+            lector = new LectorMapeado(foto, offset, true);
+        } else {
+            lector = abrir(archivo, offset);
+        }
+
+        return lector;
+    }
+
+    /**
+     * Lee el siguiente dato y, si es numérico, acumula su valor en las
+     * estadísticas sin crear ningún objeto. Los demás datos se saltan.
+     *
+     * @param estadisticas Estadísticas en las que se acumulará el dato. Con
+     * null el dato solo se salta.
+     * @throws java.io.EOFException si no quedan más datos.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    abstract void acumularSiguiente(EstadisticasBinario estadisticas)
+            throws IOException, ClassNotFoundException;
+
+    /**
+     * Devuelve el byte del archivo en que empieza el siguiente dato que se
+     * leerá.
+     *
+     * @return Offset del siguiente dato.
+     */
+    abstract long posicion();
+
+    /**
+     * Lee el siguiente dato del archivo.
+     *
+     * @return Dato leído.
+     * @throws java.io.EOFException si no quedan más datos.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    abstract Object siguiente() throws IOException, ClassNotFoundException;
+
+    /**
+     * Avanza hasta el principio del siguiente bloque sin devolver los datos.
+     * En los formatos sin bloques cada dato es un bloque.
+     *
+     * @return Cantidad de datos saltados.
+     * @throws java.io.EOFException si no quedan más datos.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    int saltarBloque() throws IOException, ClassNotFoundException {
+        siguiente();
+        return 1;
+    }
+}
+
+/*============================================================================*/
+/**
+ * Lector de archivos escritos con ObjectOutputStream (formato clásico).
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class LectorClasico extends LectorBinario {
+
+    /**
+     * Cabecera que escribe ObjectOutputStream al principio del archivo. Cuando
+     * se abre el lector a mitad del archivo se antepone esta cabecera para que
+     * ObjectInputStream acepte el flujo.
+     */
+    static final byte[] CABECERA = {
+        (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8),
+        (byte) ObjectStreamConstants.STREAM_MAGIC,
+        (byte) (ObjectStreamConstants.STREAM_VERSION >>> 8),
+        (byte) ObjectStreamConstants.STREAM_VERSION
+    };
+
+    private final ContadorInputStream contador;
+    private final ObjectInputStream in;
+    private final long base;
+
+    // CONSTRUCTORES
+    LectorClasico(File archivo, long offset) throws IOException {
+        FileInputStream fichero = new FileInputStream(archivo);
+
+        try {
+            InputStream origen = new BufferedInputStream(fichero);
+
+            if (offset > 0) {
+                fichero.getChannel().position(offset);
+                // Los bytes de la cabecera postiza no existen en el archivo.
+                origen = new SequenceInputStream(
+                        new ByteArrayInputStream(CABECERA), origen);
+                this.base = offset - CABECERA.length;
+            } else {
+                this.base = 0;
+            }
+
+            this.contador = new ContadorInputStream(origen);
+            this.in = new ObjectInputStream(contador);
+
+        } catch (IOException e) {
+            fichero.close();
+            throw e;
+        }
+    }
+
+    // MÉTODOS
+    @Override
+    long posicion() {
+        return base + contador.getContador();
+    }
+
+    @Override
+    void acumularSiguiente(EstadisticasBinario estadisticas)
+            throws IOException, ClassNotFoundException {
+        byte etiqueta = in.readByte();
+
+        // Las cadenas y los objetos se escriben distinto que en formato compacto.
+        if (etiqueta == 8 || etiqueta == 100) {
+            BinaryFilesUtils.decodificar(etiqueta, in);
+            if (estadisticas != null) {
+                estadisticas.anhadirOtro();
+            }
+        } else {
+            BinaryFilesUtils.acumularCompacto(etiqueta, in, estadisticas);
+        }
+    }
+
+    @Override
+    Object siguiente() throws IOException, ClassNotFoundException {
+        return BinaryFilesUtils.decodificar(in.readByte(), in);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
+
+/*============================================================================*/
+/**
+ * Lector de archivos en formato compacto: etiquetas y datos escritos con
+ * DataOutputStream tras la cabecera BinaryFilesUtils.CABECERA_COMPACTA.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class LectorCompacto extends LectorBinario {
+
+    private final ContadorInputStream contador;
+    private final DataInputStream in;
+    private final long base;
+
+    // CONSTRUCTORES
+    LectorCompacto(File archivo, long offset) throws IOException {
+        FileInputStream fichero = new FileInputStream(archivo);
+
+        try {
+            fichero.getChannel().position(offset);
+            this.base = offset;
+            this.contador = new ContadorInputStream(new BufferedInputStream(fichero));
+            this.in = new DataInputStream(contador);
+
+            // Si se lee desde el principio se salta la cabecera.
+            if (offset == 0) {
+                in.readFully(new byte[BinaryFilesUtils.CABECERA_COMPACTA.length]);
+            }
+
+        } catch (IOException e) {
+            fichero.close();
+            throw e;
+        }
+    }
+
+    // MÉTODOS
+    @Override
+    long posicion() {
+        return base + contador.getContador();
+    }
+
+    @Override
+    void acumularSiguiente(EstadisticasBinario estadisticas) throws IOException {
+        BinaryFilesUtils.acumularCompacto(in.readByte(), in, estadisticas);
+    }
+
+    @Override
+    Object siguiente() throws IOException, ClassNotFoundException {
+        return BinaryFilesUtils.decodificarCompacto(in.readByte(), in);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
+
+/*============================================================================*/
+/**
+ * Lector de archivos en formato comprimido: bloques de datos en formato
+ * compacto comprimidos con Deflater tras la cabecera
+ * BinaryFilesUtils.CABECERA_COMPRIMIDA. Los bloques se descomprimen enteros
+ * en memoria al llegar a ellos.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class LectorComprimido extends LectorBinario {
+
+    private final ContadorInputStream contador;
+    private final DataInputStream in;
+    private final Inflater descompresor;
+    private final long base;
+    /**
+     * Datos del bloque actual ya descomprimidos.
+     */
+    private DataInputStream bloque;
+    private long offsetBloque;
+    private int restantes;
+
+    // CONSTRUCTORES
+    LectorComprimido(File archivo, long offset) throws IOException {
+        FileInputStream fichero = new FileInputStream(archivo);
+
+        try {
+            fichero.getChannel().position(offset);
+            this.base = offset;
+            this.contador = new ContadorInputStream(new BufferedInputStream(fichero));
+            this.in = new DataInputStream(contador);
+            this.descompresor = new Inflater();
+
+            // Si se lee desde el principio se salta la cabecera.
+            if (offset == 0) {
+                in.readFully(new byte[BinaryFilesUtils.CABECERA_COMPRIMIDA.length]);
+            }
+
+        } catch (IOException e) {
+            fichero.close();
+            throw e;
+        }
+    }
+
+    // MÉTODOS
+    /**
+     * Lee del archivo el siguiente bloque y lo descomprime.
+     *
+     * @throws IOException
+     */
+    private void cargarBloque() throws IOException {
+        offsetBloque = offsetSiguienteBloque();
+        int numDatos = in.readInt();
+        int pesoSinComprimir = in.readInt();
+        byte[] comprimido = new byte[in.readInt()];
+        in.readFully(comprimido);
+
+        byte[] datos = descomprimir(descompresor, comprimido, pesoSinComprimir);
+        bloque = new DataInputStream(new ByteArrayInputStream(datos));
+        restantes = numDatos;
+    }
+
+    /**
+     * Descomprime un bloque entero.
+     *
+     * @param descompresor Inflater que se usará. Se reinicia antes de usarlo.
+     * @param comprimido Bytes comprimidos del bloque.
+     * @param pesoSinComprimir Bytes que ocupa el bloque descomprimido.
+     * @return Bytes del bloque descomprimido.
+     * @throws StreamCorruptedException si el bloque está dañado o incompleto.
+     */
+    static byte[] descomprimir(Inflater descompresor, byte[] comprimido,
+            int pesoSinComprimir) throws StreamCorruptedException {
+        byte[] datos = new byte[pesoSinComprimir];
+        descompresor.reset();
+        descompresor.setInput(comprimido);
+
+        try {
+            int leidos = 0;
+            while (leidos < datos.length && !descompresor.finished()) {
+                leidos += descompresor.inflate(datos, leidos, datos.length - leidos);
+                if (descompresor.needsInput()) {
+                    break;
+                }
+            }
+            if (leidos != datos.length) {
+                throw new StreamCorruptedException("Bloque comprimido incompleto.");
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Bloque comprimido dañado.");
+        }
+
+        return datos;
+    }
+
+    /**
+     * Devuelve el offset del bloque que empieza en la posición actual del
+     * archivo. El primer bloque tiene offset 0 porque incluye la cabecera.
+     */
+    private long offsetSiguienteBloque() {
+        long offset = base + contador.getContador();
+        return (offset == BinaryFilesUtils.CABECERA_COMPRIMIDA.length) ? 0 : offset;
+    }
+
+    @Override
+    void acumularSiguiente(EstadisticasBinario estadisticas) throws IOException {
+        while (restantes == 0) {
+            cargarBloque();
+        }
+
+        restantes--;
+        BinaryFilesUtils.acumularCompacto(bloque.readByte(), bloque, estadisticas);
+    }
+
+    @Override
+    long posicion() {
+        return (restantes > 0) ? offsetBloque : offsetSiguienteBloque();
+    }
+
+    @Override
+    Object siguiente() throws IOException, ClassNotFoundException {
+        while (restantes == 0) {
+            cargarBloque();
+        }
+
+        restantes--;
+        return BinaryFilesUtils.decodificarCompacto(bloque.readByte(), bloque);
+    }
+
+    @Override
+    int saltarBloque() throws IOException {
+        int saltados = restantes;
+
+        if (saltados > 0) {
+            // Se descarta lo que queda del bloque actual.
+            restantes = 0;
+        } else {
+            saltados = in.readInt();
+            in.readInt();
+            int pesoComprimido = in.readInt();
+            in.readFully(new byte[pesoComprimido]);
+        }
+
+        return saltados;
+    }
+
+    @Override
+    public void close() throws IOException {
+        descompresor.end();
+        in.close();
+    }
+}
+
+/*============================================================================*/
+/**
+ * Lector que decodifica las etiquetas y los datos primitivos directamente de
+ * la proyección en memoria de un archivo en formato compacto o comprimido,
+ * sin flujos intermedios. Solo los objetos serializados (etiqueta 100) se
+ * copian a un array para leerlos con ObjectInputStream. En el formato
+ * comprimido los bytes comprimidos se copian a un array porque Inflater no
+ * acepta un ByteBuffer en Java 8.
+ *
+ * En los archivos de más de 2 GB, antes de cada dato (o bloque) que empiece
+ * pasado el paso de la ventana actual se cambia a la siguiente ventana del
+ * mapa, que contiene el dato entero salvo que ocupe más que el solape.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class LectorMapeado extends LectorBinario {
+
+    private final MapaArchivo.Foto foto;
+    /**
+     * Vista de la ventana actual del mapa. Su posición es el siguiente byte
+     * por leer.
+     */
+    private ByteBuffer mapa;
+    /**
+     * Byte del archivo en que empieza la ventana actual.
+     */
+    private long base;
+    /**
+     * Es null en el formato compacto.
+     */
+    private final Inflater descompresor;
+    /**
+     * Buffer del que se decodifican los datos: el propio mapa en el formato
+     * compacto y el bloque descomprimido actual en el comprimido.
+     */
+    private ByteBuffer datos;
+    private long offsetBloque;
+    private int restantes;
+
+    // CONSTRUCTORES
+    /**
+     * @param foto Proyección del archivo.
+     * @param offset Byte del archivo en que empieza el primer dato a leer.
+     * @param comprimido true si el archivo está en formato comprimido.
+     * @throws EOFException si el offset queda fuera del archivo.
+     */
+    LectorMapeado(MapaArchivo.Foto foto, long offset, boolean comprimido) throws EOFException {
+        // Si se lee desde el principio se salta la cabecera.
+        long inicio = (offset == 0) ? BinaryFilesUtils.CABECERA_COMPACTA.length : offset;
+        if (inicio > foto.getPeso()) {
+            throw new EOFException();
+        }
+
+        this.foto = foto;
+        this.descompresor = (comprimido) ? new Inflater() : null;
+        abrirVentana(inicio);
+    }
+
+    // MÉTODOS
+    /**
+     * Pasa a la ventana del mapa en cuya primera parte está el byte indicado.
+     *
+     * @param offset Byte del archivo en que quedará la posición.
+     */
+    private void abrirVentana(long offset) {
+        int numVentana = foto.getNumVentana(offset);
+
+        base = foto.getInicioVentana(numVentana);
+        mapa = foto.getVentana(numVentana);
+        mapa.position((int) (offset - base));
+        if (descompresor == null) {
+            datos = mapa;
+        }
+    }
+
+    @Override
+    void acumularSiguiente(EstadisticasBinario estadisticas) throws IOException {
+        try {
+            ByteBuffer in = siguienteDato();
+            byte etiqueta = in.get();
+
+            if (estadisticas == null) {
+                saltar(etiqueta, in);
+            } else {
+                switch (etiqueta) {
+                    case 3: // Double
+                        estadisticas.anhadirDecimal(etiqueta, in.getDouble());
+                        break;
+                    case 4: // Float
+                        estadisticas.anhadirDecimal(etiqueta, in.getFloat());
+                        break;
+                    case 5: // Integer
+                        estadisticas.anhadirEntero(etiqueta, in.getInt());
+                        break;
+                    case 6: // Long
+                        estadisticas.anhadirEntero(etiqueta, in.getLong());
+                        break;
+                    case 7: // Short
+                        estadisticas.anhadirEntero(etiqueta, in.getShort());
+                        break;
+                    default:
+                        saltar(etiqueta, in);
+                        estadisticas.anhadirOtro();
+                }
+            }
+
+        } catch (BufferUnderflowException e) {
+            throw finDeDatos();
+        }
+    }
+
+    /**
+     * Cambia a la siguiente ventana del mapa si la posición ha pasado el paso
+     * de la actual y el archivo sigue después de ella. Se llama antes de leer
+     * cada dato del formato compacto o cada bloque del comprimido.
+     */
+    private void avanzarVentana() {
+        if (mapa.position() >= MapaArchivo.PASO_VENTANA
+                && base + mapa.limit() < foto.getPeso()) {
+            abrirVentana(base + mapa.position());
+        }
+    }
+
+    /**
+     * Lee del mapa el siguiente bloque comprimido y lo descomprime.
+     *
+     * @throws IOException
+     */
+    private void cargarBloque() throws IOException {
+        avanzarVentana();
+        offsetBloque = offsetSiguienteBloque();
+        int numDatos = mapa.getInt();
+        int pesoSinComprimir = mapa.getInt();
+        byte[] comprimido = new byte[mapa.getInt()];
+        mapa.get(comprimido);
+
+        datos = ByteBuffer.wrap(LectorComprimido.descomprimir(descompresor,
+                comprimido, pesoSinComprimir));
+        restantes = numDatos;
+    }
+
+    /**
+     * Decodifica un dato en formato compacto leyéndolo del buffer.
+     *
+     * @param etiqueta Byte etiqueta del dato.
+     * @param in Buffer posicionado tras la etiqueta.
+     * @return Dato leído.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private static Object decodificar(byte etiqueta, ByteBuffer in)
+            throws IOException, ClassNotFoundException {
+        Object obj;
+
+        switch (etiqueta) {
+            case 1: // Boolean
+                obj = in.get() != 0;
+                break;
+            case 2: // Character
+                obj = in.getChar();
+                break;
+            case 3: // Double
+                obj = in.getDouble();
+                break;
+            case 4: // Float
+                obj = in.getFloat();
+                break;
+            case 5: // Integer
+                obj = in.getInt();
+                break;
+            case 6: // Long
+                obj = in.getLong();
+                break;
+            case 7: // Short
+                obj = in.getShort();
+                break;
+            case 8: // String
+                byte[] texto = new byte[in.getInt()];
+                in.get(texto);
+                obj = new String(texto, StandardCharsets.UTF_8);
+                break;
+            case 9: // int[]
+                int[] ints = new int[longitudArray(in, Integer.BYTES)];
+                in.asIntBuffer().get(ints);
+                in.position(in.position() + ints.length * Integer.BYTES);
+                obj = ints;
+                break;
+            case 10: // long[]
+                long[] longs = new long[longitudArray(in, Long.BYTES)];
+                in.asLongBuffer().get(longs);
+                in.position(in.position() + longs.length * Long.BYTES);
+                obj = longs;
+                break;
+            case 11: // double[]
+                double[] doubles = new double[longitudArray(in, Double.BYTES)];
+                in.asDoubleBuffer().get(doubles);
+                in.position(in.position() + doubles.length * Double.BYTES);
+                obj = doubles;
+                break;
+            case 12: // byte[]
+                byte[] bytes = new byte[longitudArray(in, Byte.BYTES)];
+                in.get(bytes);
+                obj = bytes;
+                break;
+            case 100: // Cualquier otro
+                byte[] serializado = new byte[in.getInt()];
+                in.get(serializado);
+                try (ObjectInputStream ois = new ObjectInputStream(
+                        new ByteArrayInputStream(serializado))) {
+                    obj = ois.readObject();
+                }
+                break;
+            default:
+                throw new StreamCorruptedException("Etiqueta desconocida: " + etiqueta);
+        }
+
+        return obj;
+    }
+
+    /**
+     * Devuelve la excepción que corresponde a quedarse sin bytes a mitad de
+     * un dato: el final de los datos si la ventana llega al final del archivo
+     * o un error si el dato no cabe en la ventana.
+     */
+    private IOException finDeDatos() {
+        return (base + mapa.limit() < foto.getPeso())
+                ? new IOException("El dato ocupa más de lo que se puede leer "
+                        + "de la proyección en memoria.")
+                : new EOFException();
+    }
+
+    /**
+     * Lee la longitud de un array de primitivos y comprueba que sus elementos
+     * están en el buffer antes de crear el array.
+     *
+     * @param in Buffer posicionado en la longitud.
+     * @param pesoElemento Bytes de cada elemento.
+     * @return Cantidad de elementos del array.
+     * @throws IOException si la longitud no es válida.
+     */
+    private static int longitudArray(ByteBuffer in, int pesoElemento) throws IOException {
+        int longitud = in.getInt();
+
+        if (BinaryFilesUtils.pesoArray(longitud, pesoElemento) > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        return longitud;
+    }
+
+    /**
+     * Devuelve el offset del bloque que empieza en la posición actual del
+     * mapa. El primer bloque tiene offset 0 porque incluye la cabecera.
+     */
+    private long offsetSiguienteBloque() {
+        long offset = base + mapa.position();
+        return (offset == BinaryFilesUtils.CABECERA_COMPRIMIDA.length) ? 0 : offset;
+    }
+
+    @Override
+    long posicion() {
+        long posicion;
+
+        if (descompresor == null) {
+            posicion = base + mapa.position();
+        } else {
+            posicion = (restantes > 0) ? offsetBloque : offsetSiguienteBloque();
+        }
+
+        return posicion;
+    }
+
+    /**
+     * Salta un dato sin decodificarlo, moviendo la posición del buffer.
+     *
+     * @param etiqueta Byte etiqueta del dato.
+     * @param in Buffer posicionado tras la etiqueta.
+     * @throws IOException
+     */
+    private static void saltar(byte etiqueta, ByteBuffer in) throws IOException {
+        long numBytes;
+
+        switch (etiqueta) {
+            case 1: // Boolean
+                numBytes = 1;
+                break;
+            case 2: // Character
+            case 7: // Short
+                numBytes = 2;
+                break;
+            case 4: // Float
+            case 5: // Integer
+                numBytes = 4;
+                break;
+            case 3: // Double
+            case 6: // Long
+                numBytes = 8;
+                break;
+            case 8: // String
+            case 12: // byte[]
+            case 100: // Cualquier otro
+                numBytes = in.getInt();
+                break;
+            case 9: // int[]
+                numBytes = (long) Integer.BYTES * in.getInt();
+                break;
+            case 10: // long[]
+            case 11: // double[]
+                numBytes = (long) Long.BYTES * in.getInt();
+                break;
+            default:
+                throw new StreamCorruptedException("Etiqueta desconocida: " + etiqueta);
+        }
+
+        if (numBytes < 0 || numBytes > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        in.position(in.position() + (int) numBytes);
+    }
+
+    @Override
+    int saltarBloque() throws IOException {
+        int saltados;
+
+        try {
+            if (descompresor == null) {
+                avanzarVentana();
+                saltar(mapa.get(), mapa);
+                saltados = 1;
+            } else if (restantes > 0) {
+                // Se descarta lo que queda del bloque actual.
+                saltados = restantes;
+                restantes = 0;
+            } else {
+                avanzarVentana();
+                saltados = mapa.getInt();
+                mapa.getInt();
+                int pesoComprimido = mapa.getInt();
+                if (pesoComprimido < 0 || pesoComprimido > mapa.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                mapa.position(mapa.position() + pesoComprimido);
+            }
+
+        } catch (BufferUnderflowException e) {
+            throw finDeDatos();
+        }
+
+        return saltados;
+    }
+
+    @Override
+    Object siguiente() throws IOException, ClassNotFoundException {
+        try {
+            ByteBuffer in = siguienteDato();
+            return decodificar(in.get(), in);
+
+        } catch (BufferUnderflowException e) {
+            throw finDeDatos();
+        }
+    }
+
+    /**
+     * Devuelve el buffer del que se leerá el siguiente dato, descomprimiendo
+     * el siguiente bloque si el actual se ha terminado.
+     *
+     * @return Buffer posicionado en la etiqueta del siguiente dato.
+     * @throws IOException
+     */
+    private ByteBuffer siguienteDato() throws IOException {
+        if (descompresor != null) {
+            while (restantes == 0) {
+                cargarBloque();
+            }
+            restantes--;
+        } else {
+            avanzarVentana();
+        }
+
+        return datos;
+    }
+
+    @Override
+    public void close() {
+        if (descompresor != null) {
+            descompresor.end();
+        }
+    }
+}
+
+/*============================================================================*/
+/**
+ * Flujo de entrada que lleva la cuenta de los bytes que se han leído a través
+ * de él.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class ContadorInputStream extends FilterInputStream {
+
+    private long contador;
+
+    // CONSTRUCTORES
+    public ContadorInputStream(InputStream in) {
+        super(in);
+    }
+
+    // MÉTODOS
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            contador++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int leidos = super.read(b, off, len);
+        if (leidos > 0) {
+            contador += leidos;
+        }
+        return leidos;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long saltados = super.skip(n);
+        contador += saltados;
+        return saltados;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    public long getContador() {
+        return contador;
+    }
+}
@@ -0,0 +1,38 @@
+package Utils;
+
+/**
+ * Línea de un archivo de TextFilesUtils junto con su número de línea, tal y
+ * como la devuelven las búsquedas.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+public class LineaTexto {
+
+    private final long numLinea;
+    private final String texto;
+
+    // CONSTRUCTORES ===========================================================
+    /**
+     * @param numLinea Número de la línea en el archivo. De 1 a n.
+     * @param texto Texto de la línea sin el salto de línea.
+     */
+    public LineaTexto(long numLinea, String texto) {
+        this.numLinea = numLinea;
+        this.texto = texto;
+    }
+
+    // MÉTODOS =================================================================
+    @Override
+    public String toString() {
+        return numLinea + ": " + texto;
+    }
+
+    // GETTERS =================================================================
+    public long getNumLinea() {
+        return numLinea;
+    }
+
+    public String getTexto() {
+        return texto;
+    }
+}
@@ -0,0 +1,183 @@
+package Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+
+/**
+ * Proyección en memoria (FileChannel.map) de un archivo de BinaryFilesUtils
+ * que comparten todos los lectores del archivo. Los datos se leen directamente
+ * de la caché de páginas del sistema, sin copiarlos a buffers de Java ni hacer
+ * una llamada al sistema por lectura.
+ *
+ * Un ByteBuffer no puede pasar de 2 GB, así que los archivos mayores se
+ * proyectan en varias ventanas. Cada ventana empieza PASO_VENTANA bytes
+ * después de la anterior y se solapa con la siguiente hasta llegar a 2 GB, de
+ * modo que cualquier dato (o bloque comprimido) que empiece en la primera
+ * parte de una ventana y ocupe menos que el solape se lee entero de ella.
+ *
+ * Para no consultar el disco en cada lectura, los cambios del archivo (en el
+ * peso, la fecha de modificación o la identidad, por ejemplo al reescribirlo
+ * con un movimiento atómico) solo se comprueban si ha pasado
+ * INTERVALO_COMPROBACION desde la última vez o si se ha llamado a invalidar().
+ * Entonces se rehace la proyección, de modo que cada lector ve una foto
+ * completa del archivo tal y como estaba al abrirlo.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class MapaArchivo {
+
+    /**
+     * Bytes entre el principio de una ventana y el de la siguiente.
+     */
+    static final long PASO_VENTANA = 1L << 30;
+    /**
+     * Bytes máximos de una ventana: el paso más el solape con la siguiente.
+     */
+    static final int PESO_VENTANA = Integer.MAX_VALUE;
+    /**
+     * Milisegundos durante los que se da por buena la foto sin comprobar si
+     * el archivo ha cambiado.
+     */
+    static final long INTERVALO_COMPROBACION = 100;
+
+    private final File archivo;
+    private Foto foto;
+    /**
+     * System.nanoTime() de la última comprobación del archivo.
+     */
+    private long comprobado;
+
+    // CONSTRUCTORES ===========================================================
+    MapaArchivo(File archivo) {
+        this.archivo = archivo;
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Hace que la siguiente llamada a obtener() compruebe el archivo y, si ha
+     * cambiado, lo vuelva a proyectar. Se llama tras escribir en el archivo.
+     */
+    synchronized void invalidar() {
+        foto = null;
+    }
+
+    /**
+     * Devuelve la foto actual del archivo. Solo consulta el disco si ha pasado
+     * el intervalo de comprobación o se ha invalidado la foto.
+     *
+     * @return Foto del archivo, o null si no existe.
+     * @throws IOException
+     */
+    synchronized Foto obtener() throws IOException {
+        long ahora = System.nanoTime();
+
+        if (foto == null || ahora - comprobado
+                >= INTERVALO_COMPROBACION * 1_000_000) {
+
+            BasicFileAttributes atributos = archivo.exists()
+                    ? Files.readAttributes(archivo.toPath(), BasicFileAttributes.class)
+                    : null;
+
+            if (atributos == null) {
+                foto = null;
+            } else if (foto == null || !foto.esDe(atributos)) {
+                foto = new Foto(archivo, atributos);
+            }
+            comprobado = ahora;
+        }
+
+        return foto;
+    }
+
+    // CLASES INTERNAS =========================================================
+    /**
+     * Proyección del archivo tal y como estaba en un momento dado. No cambia
+     * aunque el archivo se modifique después.
+     */
+    static class Foto {
+
+        private final long peso;
+        private final FileTime modificacion;
+        private final Object claveArchivo;
+        private final MappedByteBuffer[] ventanas;
+
+        Foto(File archivo, BasicFileAttributes atributos) throws IOException {
+            this.peso = atributos.size();
+            this.modificacion = atributos.lastModifiedTime();
+            this.claveArchivo = atributos.fileKey();
+
+            int numVentanas = 1;
+            while (numVentanas * PASO_VENTANA + PESO_VENTANA - PASO_VENTANA < peso) {
+                numVentanas++;
+            }
+            this.ventanas = new MappedByteBuffer[numVentanas];
+
+            /* Todas las ventanas se proyectan a la vez para que sean del mismo
+            archivo aunque después se reemplace. */
+            try (FileChannel canal = FileChannel.open(archivo.toPath(),
+                    StandardOpenOption.READ)) {
+                for (int i = 0; i < numVentanas; i++) {
+                    long inicio = i * PASO_VENTANA;
+                    ventanas[i] = canal.map(FileChannel.MapMode.READ_ONLY, inicio,
+                            Math.min(PESO_VENTANA, peso - inicio));
+                }
+            }
+        }
+
+        /**
+         * Indica si la foto corresponde al archivo con los atributos indicados.
+         */
+        boolean esDe(BasicFileAttributes atributos) {
+            return atributos.size() == peso
+                    && atributos.lastModifiedTime().equals(modificacion)
+                    && Objects.equals(atributos.fileKey(), claveArchivo);
+        }
+
+        /**
+         * @param offset Byte del archivo.
+         * @return Número de la ventana en cuya primera parte está el byte.
+         */
+        int getNumVentana(long offset) {
+            return (int) Math.min(offset / PASO_VENTANA, ventanas.length - 1);
+        }
+
+        /**
+         * @param numVentana Número de la ventana.
+         * @return Byte del archivo en que empieza la ventana.
+         */
+        long getInicioVentana(int numVentana) {
+            return numVentana * PASO_VENTANA;
+        }
+
+        /**
+         * @return Fecha de modificación del archivo en milisegundos, igual que
+         * File.lastModified().
+         */
+        long getModificacion() {
+            return modificacion.toMillis();
+        }
+
+        long getPeso() {
+            return peso;
+        }
+
+        /**
+         * Devuelve una vista de la ventana indicada con su propia posición
+         * (0), que comparte la memoria con las de los demás lectores.
+         *
+         * @param numVentana Número de la ventana.
+         * @return Vista de la ventana.
+         */
+        ByteBuffer getVentana(int numVentana) {
+            return ventanas[numVentana].duplicate();
+        }
+    }
+}
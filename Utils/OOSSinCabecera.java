@@ -0,0 +1,38 @@
+package Utils;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Esta clase extiende de ObjectOutputStream y sobreescribe el método
+ * writeStreamHeader() para que no se escriba la cabecera a la hora de
+ * introducir nuevos datos en el archivo.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class OOSSinCabecera extends ObjectOutputStream {
+
+    // CONSTRUCTORES
+    public OOSSinCabecera(OutputStream out) throws IOException {
+        super(out);
+    }
+
+    public OOSSinCabecera() throws IOException, SecurityException {
+    }
+
+    // MÉTODOS
+    /**
+     * Restablece el estado del flujo de salida, lo que incluye eliminar
+     * cualquier cabecera almacenada en el flujo. Esto evitará problemas de
+     * compatibilidad al mezclar tipos de datos primitivos y complejos en el
+     * archivo.
+     *
+     * @throws IOException
+     */
+    @Override
+    protected void writeStreamHeader() throws IOException {
+        reset();
+    }
+
+}
@@ -0,0 +1,232 @@
+package Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Ordenación externa de los datos de un archivo de BinaryFilesUtils. Los datos
+ * se leen en tramos que caben en la memoria indicada; cada tramo se ordena con
+ * Arrays.parallelSort y se vuelca a un archivo temporal en formato compacto.
+ * Al final se mezclan todos los tramos a la vez con un montículo, de modo que
+ * cada dato se lee y se escribe solo dos veces sea cual sea el tamaño del
+ * archivo. Si todos los datos caben en memoria no se crea ningún temporal.
+ *
+ * La ordenación es estable: los datos iguales conservan su orden original.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class OrdenacionExterna {
+
+    private final Comparator<Object> comparador;
+    private final long memoriaMaxima;
+    private final File carpeta;
+    private final String prefijo;
+    /**
+     * Archivos de los tramos. Se guardan los File y no los BinaryFilesUtils
+     * para no mantener en memoria sus índices de offsets.
+     */
+    private final List<File> tramos;
+
+    // CONSTRUCTORES ===========================================================
+    /**
+     * @param comparador Comparador con el que se ordenarán los datos.
+     * @param memoriaMaxima Bytes de memoria que pueden ocupar los datos de un
+     * tramo (estimados).
+     * @param carpeta Carpeta en la que se crearán los tramos temporales.
+     * @param prefijo Prefijo del nombre de los tramos temporales.
+     */
+    OrdenacionExterna(Comparator<Object> comparador, long memoriaMaxima,
+            File carpeta, String prefijo) {
+        this.comparador = comparador;
+        this.memoriaMaxima = memoriaMaxima;
+        this.carpeta = carpeta;
+        this.prefijo = prefijo;
+        this.tramos = new ArrayList<>();
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Elimina los tramos temporales que se hayan creado.
+     */
+    private void borrarTramos() {
+        for (File tramo : tramos) {
+            new BinaryFilesUtils(tramo, BinaryFilesUtils.FORMATO_COMPACTO).borrar();
+        }
+        tramos.clear();
+    }
+
+    /**
+     * Ordena un tramo en memoria y lo escribe en un archivo temporal.
+     *
+     * @param datos Datos del tramo. Se ordenan en el propio array.
+     * @param numDatos Cantidad de datos del array que son válidos.
+     * @throws IOException
+     */
+    private void escribirTramo(Object[] datos, int numDatos) throws IOException {
+        Arrays.parallelSort(datos, 0, numDatos, comparador);
+
+        File archivoTramo = File.createTempFile(prefijo + ".tramo.", ".tmp", carpeta);
+        tramos.add(archivoTramo);
+        BinaryFilesUtils tramo = new BinaryFilesUtils(archivoTramo,
+                BinaryFilesUtils.FORMATO_COMPACTO);
+
+        try (EscritorBinario out = tramo.crearEscritor()) {
+            for (int i = 0; i < numDatos; i++) {
+                out.escribir(datos[i]);
+            }
+        }
+    }
+
+    /**
+     * Estima la memoria que ocupa un dato, incluida su referencia en el array
+     * del tramo y en el array auxiliar de la ordenación.
+     *
+     * @param dato Dato leído del archivo.
+     * @return Bytes que ocupa aproximadamente.
+     */
+    static long estimarMemoria(Object dato) {
+        long memoria;
+
+        if (dato instanceof String) {
+            memoria = 40 + 2L * ((String) dato).length();
+        } else if (dato instanceof int[]) {
+            memoria = 16 + 4L * ((int[]) dato).length;
+        } else if (dato instanceof long[]) {
+            memoria = 16 + 8L * ((long[]) dato).length;
+        } else if (dato instanceof double[]) {
+            memoria = 16 + 8L * ((double[]) dato).length;
+        } else if (dato instanceof byte[]) {
+            memoria = 16 + ((byte[]) dato).length;
+        } else if (dato instanceof Number || dato instanceof Boolean
+                || dato instanceof Character) {
+            memoria = 16;
+        } else {
+            // Objeto serializado de tamaño desconocido.
+            memoria = 64;
+        }
+
+        return memoria + 16;
+    }
+
+    /**
+     * Mezcla todos los tramos en la salida. Se mantiene en un montículo el
+     * primer dato pendiente de cada tramo y se escribe siempre el menor.
+     *
+     * @param salida Escritor en el que se escribirán los datos ordenados.
+     * @throws IOException
+     */
+    private void mezclar(EscritorBinario salida) throws IOException {
+        List<IteradorBinario> lectores = new ArrayList<>();
+        // A igualdad de datos va antes el del tramo anterior, para que sea estable.
+        PriorityQueue<Cabeza> monticulo = new PriorityQueue<>(Math.max(1, tramos.size()),
+                (c1, c2) -> {
+                    int comparacion = comparador.compare(c1.dato, c2.dato);
+                    return (comparacion != 0) ? comparacion : Integer.compare(c1.tramo, c2.tramo);
+                });
+
+        try {
+            for (int i = 0; i < tramos.size(); i++) {
+                IteradorBinario lector = new IteradorBinario(tramos.get(i), 0, 0, null);
+                lectores.add(lector);
+                if (lector.hasNext()) {
+                    monticulo.add(new Cabeza(lector.next(), i));
+                }
+            }
+
+            while (!monticulo.isEmpty()) {
+                Cabeza menor = monticulo.poll();
+                salida.escribir(menor.dato);
+
+                IteradorBinario lector = lectores.get(menor.tramo);
+                if (lector.hasNext()) {
+                    menor.dato = lector.next();
+                    monticulo.add(menor);
+                }
+            }
+
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+
+        } finally {
+            for (IteradorBinario lector : lectores) {
+                lector.close();
+            }
+        }
+    }
+
+    /**
+     * Ordena los datos y los escribe en la salida. Los tramos temporales se
+     * eliminan al terminar, tanto si la ordenación se completa como si no.
+     *
+     * @param datos Datos que se ordenarán.
+     * @param salida Escritor en el que se escribirán los datos ordenados.
+     * @throws IOException
+     */
+    void ordenar(Iterator<Object> datos, EscritorBinario salida) throws IOException {
+        Object[] tramo = new Object[1024];
+        int numDatos = 0;
+        long memoria = 0;
+
+        try {
+            while (datos.hasNext()) {
+                Object dato = datos.next();
+
+                if (numDatos == tramo.length) {
+                    tramo = Arrays.copyOf(tramo, numDatos * 2);
+                }
+                tramo[numDatos++] = dato;
+                memoria += estimarMemoria(dato);
+
+                if (memoria >= memoriaMaxima) {
+                    escribirTramo(tramo, numDatos);
+                    Arrays.fill(tramo, 0, numDatos, null);
+                    numDatos = 0;
+                    memoria = 0;
+                }
+            }
+
+            if (tramos.isEmpty()) {
+                // Todo cabe en memoria: se ordena y se escribe directamente.
+                Arrays.parallelSort(tramo, 0, numDatos, comparador);
+                for (int i = 0; i < numDatos; i++) {
+                    salida.escribir(tramo[i]);
+                }
+
+            } else {
+                if (numDatos > 0) {
+                    escribirTramo(tramo, numDatos);
+                }
+                tramo = null;
+                mezclar(salida);
+            }
+
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+
+        } finally {
+            borrarTramos();
+        }
+    }
+
+    // CLASES INTERNAS =========================================================
+    /**
+     * Primer dato pendiente de un tramo durante la mezcla.
+     */
+    private static class Cabeza {
+
+        Object dato;
+        final int tramo;
+
+        Cabeza(Object dato, int tramo) {
+            this.dato = dato;
+            this.tramo = tramo;
+        }
+    }
+}
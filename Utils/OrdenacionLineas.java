@@ -0,0 +1,289 @@
+package Utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Ordenación externa de las líneas de un archivo de TextFilesUtils. Las líneas
+ * se leen en tramos que caben en la memoria indicada; cada tramo se ordena por
+ * claves con Arrays.parallelSort y se vuelca a un archivo temporal mientras se
+ * lee el siguiente. Al final se mezclan todos los tramos a la vez con un montículo,
+ * de modo que cada línea se lee y se escribe solo dos veces sea cual sea el
+ * tamaño del archivo. Si todas las líneas caben en memoria no se crea ningún
+ * temporal.
+ *
+ * Como en leerLineasTexto(), las líneas vacías del final del archivo no se
+ * ordenan. La ordenación es estable: las líneas iguales conservan su orden
+ * original.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class OrdenacionLineas {
+
+    /**
+     * Bytes máximos del buffer de lectura de cada tramo durante la mezcla.
+     */
+    private static final int PESO_BUFFER_TRAMO = 1024 * 1024;
+    /**
+     * Bytes mínimos del buffer de lectura de cada tramo durante la mezcla.
+     */
+    private static final int PESO_BUFFER_TRAMO_MINIMO = 8 * 1024;
+
+    private final ComparadorNatural comparador;
+    private final long memoriaMaxima;
+    private final File carpeta;
+    private final String prefijo;
+    private final List<File> tramos;
+
+    // CONSTRUCTORES ===========================================================
+    /**
+     * @param comparador Comparador con el que se ordenarán las líneas.
+     * @param memoriaMaxima Bytes de memoria que pueden ocupar las líneas que
+     * se ordenan a la vez (estimados).
+     * @param carpeta Carpeta en la que se crearán los tramos temporales.
+     * @param prefijo Prefijo del nombre de los tramos temporales.
+     */
+    OrdenacionLineas(ComparadorNatural comparador, long memoriaMaxima,
+            File carpeta, String prefijo) {
+        this.comparador = comparador;
+        this.memoriaMaxima = memoriaMaxima;
+        this.carpeta = carpeta;
+        this.prefijo = prefijo;
+        this.tramos = new ArrayList<>();
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Elimina los tramos temporales que se hayan creado.
+     */
+    private void borrarTramos() {
+        for (File tramo : tramos) {
+            tramo.delete();
+        }
+        tramos.clear();
+    }
+
+    /**
+     * Espera a que termine la escritura de un tramo y lanza el error que la
+     * haya hecho fallar.
+     *
+     * @param escritura Escritura del tramo.
+     * @throws IOException
+     */
+    private static void esperar(CompletableFuture<Void> escritura) throws IOException {
+        try {
+            escritura.join();
+
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Ordena un tramo en memoria y lo escribe en un archivo temporal, en UTF-8
+     * y con una línea por cada "\n" para que se lea igual que se escribió.
+     *
+     * @param lineas Líneas del tramo. Se ordenan en el propio array.
+     * @param numLineas Cantidad de líneas del array que son válidas.
+     * @param archivoTramo Archivo en el que se escribirá el tramo.
+     * @throws IOException
+     */
+    private void escribirTramo(String[] lineas, int numLineas, File archivoTramo)
+            throws IOException {
+        comparador.ordenar(lineas, 0, numLineas);
+
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(archivoTramo), StandardCharsets.UTF_8), PESO_BUFFER_TRAMO)) {
+            for (int i = 0; i < numLineas; i++) {
+                out.write(lineas[i]);
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Ordena y escribe un tramo en un hilo del ForkJoinPool común, de modo que
+     * se puede seguir leyendo el siguiente mientras tanto. El archivo del
+     * tramo se crea antes, para que los tramos queden en el orden en que se
+     * leyeron.
+     *
+     * @param lineas Líneas del tramo. El array no debe volver a usarse.
+     * @param numLineas Cantidad de líneas del array que son válidas.
+     * @return Escritura del tramo.
+     * @throws IOException
+     */
+    private CompletableFuture<Void> escribirTramoEnSegundoPlano(String[] lineas, int numLineas)
+            throws IOException {
+        File archivoTramo = File.createTempFile(prefijo + ".tramo.", ".tmp", carpeta);
+        tramos.add(archivoTramo);
+
+        return CompletableFuture.runAsync(() -> {
+            try {
+                escribirTramo(lineas, numLineas, archivoTramo);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Mezcla todos los tramos en la salida. Se mantiene en un montículo la
+     * primera línea pendiente de cada tramo y se escribe siempre la menor.
+     *
+     * @param salida Escritor en el que se escribirán las líneas ordenadas.
+     * @throws IOException
+     */
+    private void mezclar(BufferedWriter salida) throws IOException {
+        List<BufferedReader> lectores = new ArrayList<>();
+        // Los buffers de todos los tramos se reparten la memoria de la ordenación.
+        int pesoBuffer = (int) Math.max(PESO_BUFFER_TRAMO_MINIMO,
+                Math.min(PESO_BUFFER_TRAMO, memoriaMaxima / tramos.size()));
+        // A igualdad de líneas va antes la del tramo anterior, para que sea estable.
+        PriorityQueue<Cabeza> monticulo = new PriorityQueue<>(tramos.size(),
+                (c1, c2) -> {
+                    int comparacion = comparador.comparar(c1.clave, c2.clave);
+                    return (comparacion != 0) ? comparacion : Integer.compare(c1.tramo, c2.tramo);
+                });
+
+        try {
+            for (int i = 0; i < tramos.size(); i++) {
+                BufferedReader lector = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(tramos.get(i)), StandardCharsets.UTF_8), pesoBuffer);
+                lectores.add(lector);
+
+                String linea = lector.readLine();
+                if (linea != null) {
+                    monticulo.add(new Cabeza(comparador.clave(linea), i));
+                }
+            }
+
+            while (!monticulo.isEmpty()) {
+                Cabeza menor = monticulo.poll();
+                salida.write(menor.clave.linea);
+                salida.newLine();
+
+                String linea = lectores.get(menor.tramo).readLine();
+                if (linea != null) {
+                    menor.clave = comparador.clave(linea);
+                    monticulo.add(menor);
+                }
+            }
+
+        } finally {
+            for (BufferedReader lector : lectores) {
+                lector.close();
+            }
+        }
+    }
+
+    /**
+     * Ordena las líneas de la entrada y las escribe en la salida. Mientras se
+     * ordena y se escribe un tramo se lee el siguiente, así que puede haber
+     * dos tramos en memoria y cada uno ocupa como mucho la mitad de la memoria
+     * indicada. Los tramos temporales se eliminan al terminar, tanto si la
+     * ordenación se completa como si no.
+     *
+     * @param entrada Lector del archivo que se ordenará.
+     * @param salida Escritor en el que se escribirán las líneas ordenadas.
+     * @throws IOException
+     */
+    void ordenar(BufferedReader entrada, BufferedWriter salida) throws IOException {
+        long memoriaTramo = Math.max(1, memoriaMaxima / 2);
+        String[] tramo = new String[1024];
+        int numLineas = 0;
+        long memoria = 0;
+        int vaciasPendientes = 0;
+        CompletableFuture<Void> escritura = CompletableFuture.completedFuture(null);
+
+        try {
+            String linea;
+            while ((linea = entrada.readLine()) != null) {
+                // Las líneas vacías solo se ordenan si después hay alguna con texto.
+                int numNuevas = linea.isEmpty() ? 0 : vaciasPendientes + 1;
+                vaciasPendientes = linea.isEmpty() ? vaciasPendientes + 1 : 0;
+
+                for (int i = 0; i < numNuevas; i++) {
+                    String nueva = (i < numNuevas - 1) ? "" : linea;
+
+                    if (numLineas == tramo.length) {
+                        tramo = Arrays.copyOf(tramo, numLineas * 2);
+                    }
+                    tramo[numLineas++] = nueva;
+                    // Al ordenar el tramo cada línea ocupa otro tanto con su clave.
+                    memoria += 2 * OrdenacionExterna.estimarMemoria(nueva);
+
+                    if (memoria >= memoriaTramo) {
+                        esperar(escritura);
+                        escritura = escribirTramoEnSegundoPlano(tramo, numLineas);
+                        tramo = new String[tramo.length];
+                        numLineas = 0;
+                        memoria = 0;
+                    }
+                }
+            }
+            esperar(escritura);
+
+            if (tramos.isEmpty()) {
+                // Todo cabe en memoria: se ordena y se escribe directamente.
+                comparador.ordenar(tramo, 0, numLineas);
+                for (int i = 0; i < numLineas; i++) {
+                    salida.write(tramo[i]);
+                    salida.newLine();
+                }
+
+            } else {
+                if (numLineas > 0) {
+                    File archivoTramo = File.createTempFile(prefijo + ".tramo.", ".tmp", carpeta);
+                    tramos.add(archivoTramo);
+                    escribirTramo(tramo, numLineas, archivoTramo);
+                }
+                tramo = null;
+                mezclar(salida);
+            }
+
+        } finally {
+            // No se pueden borrar los tramos mientras se está escribiendo alguno.
+            try {
+                escritura.join();
+            } catch (CompletionException e) {
+                // El error ya se ha lanzado o se descarta por otro anterior.
+            }
+            borrarTramos();
+        }
+    }
+
+    // CLASES INTERNAS =========================================================
+    /**
+     * Clave de la primera línea pendiente de un tramo durante la mezcla.
+     */
+    private static class Cabeza {
+
+        ComparadorNatural.Clave clave;
+        final int tramo;
+
+        Cabeza(ComparadorNatural.Clave clave, int tramo) {
+            this.clave = clave;
+            this.tramo = tramo;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Registro de borrados y reemplazos pendientes de un archivo de
+ * BinaryFilesUtils. En lugar de reescribir el archivo de datos, cada borrado o
+ * reemplazo se añade al final de un archivo auxiliar con la misma ruta que el
+ * de datos terminada en ".mut", y los lectores lo combinan con los datos al
+ * leer. BinaryFilesUtils.compactar() aplica el registro al archivo de datos y
+ * lo elimina.
+ *
+ * Las entradas hacen referencia a la posición física del dato en el archivo
+ * de datos (de 0 a n-1), que no cambia hasta que el archivo se reescribe. Cada
+ * entrada es un byte con el tipo, un int con la posición y, en los reemplazos,
+ * el nuevo dato en formato compacto.
+ *
+ * Delante de las entradas hay una cabecera, igual que la de IndiceBinario,
+ * con el peso del archivo de datos, su fecha de modificación y la huella de
+ * sus últimos bytes al escribir el registro. Si el archivo de datos ya no
+ * coincide con ella y no es que solo haya crecido, el registro se refiere a
+ * otros datos y se descarta.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+class RegistroMutaciones {
+
+    static final String EXTENSION = ".mut";
+
+    private static final byte BORRADO = 0;
+    private static final byte REEMPLAZO = 1;
+    /**
+     * Bytes de la cabecera: peso, fecha de modificación y huella del archivo
+     * de datos.
+     */
+    private static final int PESO_CABECERA = 3 * Long.BYTES;
+
+    private final File archivoDatos;
+    private final File archivoRegistro;
+    private final TreeSet<Integer> borrados;
+    private final Map<Integer, Object> reemplazos;
+    /**
+     * Copia ordenada de borrados para las búsquedas binarias. Es null si hay
+     * que regenerarla.
+     */
+    private int[] borradosOrdenados;
+    private int numEntradas;
+    /**
+     * Peso del archivo del registro que hay cargado en memoria. -1 indica que
+     * aún no se ha cargado.
+     */
+    private long pesoCargado;
+    /**
+     * Cabecera del registro cargado: estado del archivo de datos al que se
+     * refiere.
+     */
+    private long pesoDatos;
+    private long modificacionDatos;
+    private long huellaDatos;
+    /**
+     * Peso y fecha de modificación del archivo de datos con los que se
+     * comprobó por última vez que el registro le corresponde.
+     */
+    private long pesoComprobado;
+    private long modificacionComprobada;
+
+    // CONSTRUCTORES ===========================================================
+    RegistroMutaciones(File archivoDatos) {
+        this.archivoDatos = archivoDatos;
+        this.archivoRegistro = new File(archivoDatos.getPath() + EXTENSION);
+        this.borrados = new TreeSet<>();
+        this.reemplazos = new HashMap<>();
+        this.pesoCargado = -1;
+    }
+
+    // MÉTODOS =================================================================
+    /**
+     * Traduce una posición lógica (la que ve quien usa BinaryFilesUtils) a la
+     * posición física del dato en el archivo, saltando los datos borrados.
+     *
+     * @param logica Posición lógica, de 0 a n-1.
+     * @return Posición física del dato, de 0 a n-1.
+     */
+    int aFisica(int logica) {
+        int[] ordenados = getBorradosOrdenados();
+        int fisica = logica;
+        int anteriores = 0;
+
+        /* Cada vez que se suman los borrados anteriores la posición avanza, y
+        pueden aparecer nuevos borrados antes de ella. */
+        do {
+            fisica = logica + anteriores;
+            anteriores = numMenoresOIguales(ordenados, fisica);
+        } while (logica + anteriores != fisica);
+
+        return fisica;
+    }
+
+    /**
+     * Añade al registro el borrado de los datos indicados.
+     *
+     * @param fisicas Posiciones físicas de los datos borrados.
+     * @throws IOException
+     */
+    void anhadirBorrados(int... fisicas) throws IOException {
+        cargar();
+
+        try (DataOutputStream out = abrirEscritor()) {
+            for (int fisica : fisicas) {
+                out.writeByte(BORRADO);
+                out.writeInt(fisica);
+            }
+        }
+
+        for (int fisica : fisicas) {
+            aplicarBorrado(fisica);
+        }
+        guardarCabecera();
+    }
+
+    /**
+     * Añade al registro el reemplazo de los datos indicados por uno nuevo.
+     *
+     * @param dato Nuevo dato.
+     * @param fisicas Posiciones físicas de los datos reemplazados.
+     * @throws IOException
+     */
+    void anhadirReemplazos(Object dato, int... fisicas) throws IOException {
+        cargar();
+
+        try (DataOutputStream out = abrirEscritor()) {
+            for (int fisica : fisicas) {
+                out.writeByte(REEMPLAZO);
+                out.writeInt(fisica);
+                BinaryFilesUtils.codificarCompacto(dato, out);
+            }
+        }
+
+        for (int fisica : fisicas) {
+            aplicarReemplazo(fisica, dato);
+        }
+        guardarCabecera();
+    }
+
+    /**
+     * Abre el archivo del registro para añadir entradas al final. Si el
+     * registro no existe se crea con la cabecera del archivo de datos tal y
+     * como está.
+     *
+     * @return DataOutputStream con el que se escribirán las entradas.
+     * @throws IOException
+     */
+    private DataOutputStream abrirEscritor() throws IOException {
+        boolean nuevo = archivoRegistro.length() < PESO_CABECERA;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(archivoRegistro, !nuevo)));
+
+        if (nuevo) {
+            leerEstadoDatos();
+            out.writeLong(pesoDatos);
+            out.writeLong(modificacionDatos);
+            out.writeLong(huellaDatos);
+        }
+        return out;
+    }
+
+    private void aplicarBorrado(int fisica) {
+        if (borrados.add(fisica)) {
+            borradosOrdenados = null;
+        }
+        reemplazos.remove(fisica);
+        numEntradas++;
+    }
+
+    private void aplicarReemplazo(int fisica, Object dato) {
+        if (!borrados.contains(fisica)) {
+            reemplazos.put(fisica, dato);
+        }
+        numEntradas++;
+    }
+
+    /**
+     * Elimina el archivo del registro y vacía el que hay en memoria.
+     *
+     * @return true si el archivo ha sido borrado; false en caso contrario.
+     */
+    boolean borrar() {
+        vaciar();
+        pesoCargado = 0;
+        return archivoRegistro.delete();
+    }
+
+    /**
+     * Lee el registro del disco si ha cambiado desde la última vez que se
+     * leyó, y lo descarta si el archivo de datos ya no es el que describe. Si
+     * la última entrada está incompleta (por ejemplo, por un corte al
+     * escribirla) se ignora.
+     *
+     * @throws IOException
+     */
+    void cargar() throws IOException {
+        long peso = archivoRegistro.exists() ? archivoRegistro.length() : 0;
+
+        if (peso != pesoCargado) {
+            vaciar();
+            // Obliga a comprobar de nuevo el archivo de datos.
+            pesoComprobado = -1;
+
+            if (peso >= PESO_CABECERA) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(archivoRegistro)))) {
+
+                    pesoDatos = in.readLong();
+                    modificacionDatos = in.readLong();
+                    huellaDatos = in.readLong();
+
+                    while (true) {
+                        byte tipo = in.readByte();
+                        int fisica = in.readInt();
+
+                        if (tipo == BORRADO) {
+                            aplicarBorrado(fisica);
+                        } else {
+                            aplicarReemplazo(fisica,
+                                    BinaryFilesUtils.decodificarCompacto(in.readByte(), in));
+                        }
+                    }
+
+                } catch (EOFException e) {
+                    // Se ha llegado al final del registro.
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Clase no encontrada.", e);
+                }
+            }
+
+            pesoCargado = peso;
+        }
+
+        comprobarDatos();
+    }
+
+    /**
+     * Comprueba que el registro cargado se refiere al archivo de datos tal y
+     * como está: con el mismo peso y fecha que dice la cabecera, o más grande
+     * pero con los mismos bytes al final de lo que cubría. Si no, el archivo
+     * de datos se ha reescrito y el registro se elimina.
+     *
+     * @throws IOException
+     */
+    private void comprobarDatos() throws IOException {
+        long peso = archivoDatos.length();
+        long fecha = archivoDatos.lastModified();
+
+        if (pesoCargado >= PESO_CABECERA && (peso != pesoComprobado || fecha != modificacionComprobada)) {
+            boolean igual = peso == pesoDatos && fecha == modificacionDatos;
+            boolean crecido = peso > pesoDatos
+                    && huellaDatos == IndiceBinario.huellaCola(archivoDatos, pesoDatos);
+
+            if (!igual && !crecido) {
+                borrar();
+            }
+        }
+
+        pesoComprobado = peso;
+        modificacionComprobada = fecha;
+    }
+
+    boolean estaBorrado(int fisica) {
+        return borrados.contains(fisica);
+    }
+
+    /**
+     * Indica si no hay ningún borrado ni reemplazo pendiente.
+     *
+     * @return true si el registro está vacío.
+     */
+    boolean estaVacio() {
+        return numEntradas == 0;
+    }
+
+    /**
+     * Devuelve el dato que hay que leer en la posición física indicada: el
+     * del reemplazo si lo hay o el leído del archivo si no.
+     *
+     * @param fisica Posición física del dato.
+     * @param leido Dato leído del archivo de datos.
+     * @return Dato que ve quien usa BinaryFilesUtils.
+     */
+    Object fusionar(int fisica, Object leido) {
+        Object reemplazo = reemplazos.get(fisica);
+        return (reemplazo != null) ? reemplazo : leido;
+    }
+
+    /**
+     * Escribe en la cabecera del registro el estado actual del archivo de
+     * datos, al que se refieren las entradas recién añadidas.
+     *
+     * @throws IOException
+     */
+    private void guardarCabecera() throws IOException {
+        leerEstadoDatos();
+
+        try (RandomAccessFile out = new RandomAccessFile(archivoRegistro, "rw")) {
+            out.writeLong(pesoDatos);
+            out.writeLong(modificacionDatos);
+            out.writeLong(huellaDatos);
+            pesoCargado = out.length();
+        }
+        pesoComprobado = pesoDatos;
+        modificacionComprobada = modificacionDatos;
+    }
+
+    /**
+     * Toma como cabecera el estado actual del archivo de datos.
+     *
+     * @throws IOException
+     */
+    private void leerEstadoDatos() throws IOException {
+        pesoDatos = archivoDatos.length();
+        modificacionDatos = archivoDatos.lastModified();
+        huellaDatos = IndiceBinario.huellaCola(archivoDatos, pesoDatos);
+    }
+
+    /**
+     * Cuenta los valores del array ordenado que son menores o iguales que el
+     * indicado.
+     */
+    private static int numMenoresOIguales(int[] ordenados, int valor) {
+        int pos = Arrays.binarySearch(ordenados, valor);
+        return (pos >= 0) ? pos + 1 : -(pos + 1);
+    }
+
+    private void vaciar() {
+        borrados.clear();
+        reemplazos.clear();
+        borradosOrdenados = null;
+        numEntradas = 0;
+    }
+
+    // GETTERS =================================================================
+    File getArchivoRegistro() {
+        return archivoRegistro;
+    }
+
+    private int[] getBorradosOrdenados() {
+        if (borradosOrdenados == null) {
+            borradosOrdenados = borrados.stream().mapToInt(Integer::intValue).toArray();
+        }
+        return borradosOrdenados;
+    }
+
+    int getNumBorrados() {
+        return borrados.size();
+    }
+
+    int getNumEntradas() {
+        return numEntradas;
+    }
+}
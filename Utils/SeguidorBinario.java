@@ -0,0 +1,440 @@
+package Utils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Seguidor de un archivo de BinaryFilesUtils que crece, al estilo de
+ * "tail -f". Recuerda el byte y el ordinal del último dato leído, de modo que
+ * cada consulta solo lee los datos añadidos desde la anterior. Mientras no
+ * hay datos nuevos espera a que el archivo cambie con un WatchService y, si
+ * el sistema no lo permite, consultando el peso del archivo con esperas cada
+ * vez más largas.
+ *
+ * Los datos se entregan tal y como se escribieron, sin aplicar los borrados
+ * ni reemplazos del registro de mutaciones. Si el archivo se reescribe (por
+ * ejemplo al compactarlo, ordenarlo o transformarlo) el seguidor vuelve a
+ * empezar desde el principio. Se considera reescrito si encoge, si pasa a ser
+ * otro archivo (como tras un movimiento atómico) o si, tras cambiar, los
+ * últimos bytes ya leídos no son los mismos.
+ *
+ * @author Roberto Santos Cordeiro
+ */
+public class SeguidorBinario implements Closeable {
+
+    static final long ESPERA_MINIMA = 1;
+    static final long ESPERA_MAXIMA_DEFAULT = 200;
+    /**
+     * Datos máximos que se leen del archivo en cada consulta, de modo que la
+     * memoria no depende de cuántos datos nuevos haya.
+     */
+    static final int LOTE_MAXIMO = 1024;
+
+    private final BinaryFilesUtils origen;
+    private final ArrayDeque<Object> pendientes;
+    private final long esperaMaxima;
+    /**
+     * Datos máximos que siguiente() lee de una vez.
+     */
+    private volatile int tamanhoLote;
+    /**
+     * Servicio que avisa de los cambios en la carpeta del archivo. Es null si
+     * el sistema no lo permite y se consulta el archivo periódicamente.
+     */
+    private WatchService vigilante;
+    private Thread hilo;
+    private volatile boolean cerrado;
+
+    /**
+     * Byte del archivo en que empieza el siguiente dato (o su bloque) que se
+     * leerá.
+     */
+    private long offset;
+    /**
+     * Datos que hay que descartar tras abrir el archivo en el offset porque
+     * ya se han leído. Solo es mayor que 0 a mitad de un bloque del formato
+     * comprimido.
+     */
+    private int saltar;
+    /**
+     * Cantidad de datos leídos del archivo desde el principio.
+     */
+    private long ordinal;
+    /**
+     * Estado del archivo en la última lectura: peso, fecha de modificación,
+     * identidad y huella de los bytes anteriores al offset. La fecha es null
+     * si aún no se conoce.
+     */
+    private long pesoLeido;
+    private FileTime modificacion;
+    private Object claveArchivo;
+    private long huella;
+
+    // CONSTRUCTORES ===========================================================
+    /**
+     * Crea un seguidor que empieza por el primer dato del archivo.
+     *
+     * @param origen Archivo binario que se seguirá.
+     */
+    public SeguidorBinario(BinaryFilesUtils origen) {
+        this(origen, false, ESPERA_MAXIMA_DEFAULT);
+    }
+
+    /**
+     * @param origen Archivo binario que se seguirá.
+     * @param soloNuevos true para entregar solo los datos que se escriban a
+     * partir de ahora, false para empezar por el primer dato del archivo.
+     * @param esperaMaxima Milisegundos máximos entre dos consultas del archivo
+     * cuando no hay datos nuevos.
+     */
+    public SeguidorBinario(BinaryFilesUtils origen, boolean soloNuevos,
+            long esperaMaxima) {
+
+        if (esperaMaxima < ESPERA_MINIMA) {
+            throw new IllegalArgumentException("La espera máxima debe ser al "
+                    + "menos de " + ESPERA_MINIMA + " ms.");
+        }
+
+        this.origen = origen;
+        this.pendientes = new ArrayDeque<>();
+        this.esperaMaxima = esperaMaxima;
+        this.tamanhoLote = LOTE_MAXIMO;
+
+        if (soloNuevos) {
+            // El índice indica dónde empieza el último dato escrito.
+            origen.numDatos();
+            IndiceBinario indice = origen.getIndice();
+            int numFisicos = indice.getNumOffsets();
+
+            if (numFisicos > 0) {
+                int ultimo = numFisicos - 1;
+                offset = indice.getOffset(ultimo);
+                saltar = ultimo - indice.getPrimeroDelBloque(ultimo) + 1;
+                ordinal = numFisicos;
+            }
+
+            try {
+                recordarEstado(leerAtributos(origen.getArchivo()));
+            } catch (IOException e) {
+                // Se conocerá en la primera lectura.
+            }
+        }
+
+        try {
+            Path carpeta = origen.getArchivo().getAbsoluteFile().getParentFile().toPath();
+            vigilante = FileSystems.getDefault().newWatchService();
+            carpeta.register(vigilante, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            // Sin WatchService se consulta el archivo periódicamente.
+            cerrarVigilante();
+        }
+    }
+
+    // MÉTODOS =================================================================
+    private void cerrarVigilante() {
+        if (vigilante != null) {
+            try {
+                vigilante.close();
+            } catch (IOException e) {
+                // No es necesario realizar ninguna acción aqui.
+            }
+            vigilante = null;
+        }
+    }
+
+    /**
+     * Deja de seguir el archivo. Si hay un hilo entregando datos se detiene.
+     */
+    @Override
+    public void close() {
+        cerrado = true;
+
+        if (hilo != null) {
+            hilo.interrupt();
+        }
+        cerrarVigilante();
+    }
+
+    /**
+     * Espera a que cambie la carpeta del archivo o a que pase el tiempo
+     * indicado, lo que ocurra antes.
+     *
+     * @param espera Milisegundos máximos de espera.
+     * @throws InterruptedException
+     */
+    private void esperarCambios(long espera) throws InterruptedException {
+        WatchService servicio = vigilante;
+
+        if (servicio != null) {
+            try {
+                WatchKey clave = servicio.poll(espera, TimeUnit.MILLISECONDS);
+                if (clave != null) {
+                    clave.pollEvents();
+                    clave.reset();
+                }
+            } catch (ClosedWatchServiceException e) {
+                // Se ha cerrado el seguidor mientras esperaba.
+            }
+        } else {
+            Thread.sleep(espera);
+        }
+    }
+
+    /**
+     * Indica si el archivo se ha reescrito desde la última lectura, en cuyo
+     * caso el offset ya no apunta a un dato suyo.
+     *
+     * @param archivo Archivo que se sigue.
+     * @param atributos Atributos actuales del archivo, o null si no existe.
+     * @return true si hay que volver a leer el archivo desde el principio.
+     * @throws IOException
+     */
+    private boolean esReescrito(File archivo, BasicFileAttributes atributos)
+            throws IOException {
+        boolean reescrito = false;
+
+        if (offset > 0) {
+            if (atributos == null || atributos.size() < offset) {
+                reescrito = true;
+
+            } else if (modificacion != null) {
+                if (!Objects.equals(atributos.fileKey(), claveArchivo)) {
+                    reescrito = true;
+                } else if (atributos.size() != pesoLeido
+                        || !atributos.lastModifiedTime().equals(modificacion)) {
+                    // Ha cambiado: solo sigue siendo el mismo si lo ya leído no ha cambiado.
+                    reescrito = huella != IndiceBinario.huellaCola(archivo, offset);
+                }
+            }
+        }
+
+        return reescrito;
+    }
+
+    private static BasicFileAttributes leerAtributos(File archivo) throws IOException {
+        return archivo.exists()
+                ? Files.readAttributes(archivo.toPath(), BasicFileAttributes.class) : null;
+    }
+
+    /**
+     * Lee los datos que se han añadido al archivo desde la última lectura,
+     * hasta un máximo de LOTE_MAXIMO. Los datos que aún se están escribiendo
+     * (incompletos) se dejan para la siguiente.
+     *
+     * @return Datos nuevos en orden. Vacía si no hay ninguno.
+     * @throws IOException
+     */
+    public List<Object> leerNuevos() throws IOException {
+        return leerNuevos(LOTE_MAXIMO);
+    }
+
+    /**
+     * Lee como mucho la cantidad indicada de los datos que se han añadido al
+     * archivo desde la última lectura. Los que no se lean se quedan para la
+     * siguiente, igual que los que aún se están escribiendo (incompletos).
+     *
+     * @param maximo Cantidad máxima de datos que se leerán.
+     * @return Datos nuevos en orden. Vacía si no hay ninguno.
+     * @throws IOException
+     */
+    public synchronized List<Object> leerNuevos(int maximo) throws IOException {
+        if (maximo <= 0) {
+            throw new IllegalArgumentException("El máximo de datos debe ser mayor que 0.");
+        }
+
+        List<Object> nuevos = new ArrayList<>();
+        File archivo = origen.getArchivo();
+        BasicFileAttributes atributos = leerAtributos(archivo);
+        long peso = (atributos != null) ? atributos.size() : 0;
+
+        // Si el archivo se ha reescrito se empieza de nuevo.
+        if (esReescrito(archivo, atributos)) {
+            offset = 0;
+            saltar = 0;
+            ordinal = 0;
+        }
+
+        if (peso > offset) {
+            try (LectorBinario lector = LectorBinario.abrir(archivo, offset)) {
+                for (int i = 0; i < saltar; i++) {
+                    lector.siguiente();
+                }
+                if (lector.posicion() != offset) {
+                    // Ya se habían leído todos los datos del bloque.
+                    offset = lector.posicion();
+                    saltar = 0;
+                }
+
+                /* Tras cada dato se guarda dónde empieza el siguiente: cuando
+                la lectura falla por llegar al final, la siguiente consulta
+                continúa en el dato incompleto. En el formato comprimido la
+                posición es la del bloque mientras queden datos suyos, así que
+                se cuentan los que ya se han leído de él; la lectura solo falla
+                al empezar un bloque. */
+                while (nuevos.size() < maximo) {
+                    nuevos.add(lector.siguiente());
+                    ordinal++;
+
+                    long posicion = lector.posicion();
+                    if (posicion == offset) {
+                        saltar++;
+                    } else {
+                        offset = posicion;
+                        saltar = 0;
+                    }
+                }
+
+            } catch (EOFException e) {
+                // No hay más datos completos por ahora.
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Clase no encontrada.", e);
+            }
+        }
+
+        recordarEstado(atributos);
+
+        return nuevos;
+    }
+
+    /**
+     * Guarda el estado del archivo tras una lectura, para saber en la
+     * siguiente si se ha reescrito.
+     *
+     * @param atributos Atributos del archivo al empezar la lectura, o null si
+     * no existe.
+     * @throws IOException
+     */
+    private void recordarEstado(BasicFileAttributes atributos) throws IOException {
+        if (atributos != null) {
+            huella = IndiceBinario.huellaCola(origen.getArchivo(), offset);
+            pesoLeido = atributos.size();
+            modificacion = atributos.lastModifiedTime();
+            claveArchivo = atributos.fileKey();
+        }
+    }
+
+    /**
+     * Empieza a entregar los datos nuevos del archivo, en orden y desde un
+     * hilo aparte, hasta que se llame a close(). Los errores de lectura se
+     * muestran por consola y se vuelve a intentar tras una espera.
+     *
+     * @param accion Acción que recibirá cada dato nuevo.
+     */
+    public synchronized void seguir(Consumer<Object> accion) {
+        if (hilo != null) {
+            throw new IllegalStateException("El seguidor ya se está ejecutando.");
+        }
+
+        hilo = new Thread(() -> {
+            try {
+                while (!cerrado) {
+                    accion.accept(siguiente(0));
+                }
+            } catch (InterruptedException e) {
+                // Se ha cerrado el seguidor.
+            }
+        }, "seguidor-" + origen.getNombre());
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * Empieza a entregar los datos nuevos del archivo en una cola. Cada
+     * consulta lee como mucho tantos datos como caben en la cola, y si la
+     * cola se llena la lectura del archivo se detiene hasta que se consuman
+     * datos, así que en memoria nunca hay más del doble de la capacidad.
+     *
+     * @param capacidad Cantidad máxima de datos que puede haber en la cola.
+     * @return Cola en la que se irán dejando los datos nuevos.
+     */
+    public BlockingQueue<Object> seguirEnCola(int capacidad) {
+        BlockingQueue<Object> cola = new ArrayBlockingQueue<>(capacidad);
+        tamanhoLote = Math.min(capacidad, LOTE_MAXIMO);
+
+        seguir(dato -> {
+            try {
+                cola.put(dato);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        return cola;
+    }
+
+    /**
+     * Devuelve el siguiente dato del archivo, esperando a que se escriba si
+     * aún no existe. Mientras espera consulta el archivo con esperas que
+     * empiezan en ESPERA_MINIMA y se duplican hasta la espera máxima, aunque
+     * con WatchService se despierta en cuanto el archivo cambia.
+     *
+     * @param tiempoMaximo Milisegundos máximos de espera. Con 0 espera hasta
+     * que haya un dato.
+     * @return Siguiente dato, o null si no se ha escrito ninguno en ese
+     * tiempo.
+     * @throws InterruptedException
+     */
+    public Object siguiente(long tiempoMaximo) throws InterruptedException {
+        long limite = System.currentTimeMillis() + tiempoMaximo;
+        long espera = ESPERA_MINIMA;
+        Object dato = null;
+
+        while (dato == null && !cerrado) {
+            synchronized (this) {
+                if (pendientes.isEmpty()) {
+                    try {
+                        pendientes.addAll(leerNuevos(tamanhoLote));
+                    } catch (IOException e) {
+                        System.out.println("Error al leer el archivo.");
+                    }
+                }
+                dato = pendientes.poll();
+            }
+
+            if (dato == null) {
+                long restante = limite - System.currentTimeMillis();
+                if (tiempoMaximo > 0 && restante <= 0) {
+                    break;
+                }
+
+                esperarCambios((tiempoMaximo > 0) ? Math.min(espera, restante) : espera);
+                espera = Math.min(espera * 2, esperaMaxima);
+            }
+        }
+
+        if (cerrado && dato == null) {
+            throw new InterruptedException("El seguidor está cerrado.");
+        }
+
+        return dato;
+    }
+
+    // GETTERS =================================================================
+    /**
+     * @return Cantidad de datos del archivo que ya se han leído, incluidos los
+     * que aún no se han entregado.
+     */
+    public synchronized long getOrdinal() {
+        return ordinal;
+    }
+}
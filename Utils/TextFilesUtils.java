@@ -4,15 +4,32 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  *
@@ -26,9 +43,18 @@ public class TextFilesUtils {
      */
     private final String SIMBOLOS_PROHIBIDOS_REGEX = "^(?!\\s*$)[^\\\\/:?\"<>|]+$";
     private final String SIMBOLOS_PROHIBIDOS_RUTA_REGEX = "^(?!\\s*$)[^:?\"<>|]+$";
+    /**
+     * Bytes del buffer con el que se escribe el archivo al reescribirlo
+     * entero.
+     */
+    static final int PESO_BUFFER_ESCRITURA = 256 * 1024;
 
     private boolean adjuntar;
     private File archivo;
+    /**
+     * Índice con el byte en que empieza cada línea del archivo.
+     */
+    private IndiceLineas indiceLineas;
     private String ruta;
 
     // CONSTRUCTORES ===========================================================
@@ -39,6 +65,7 @@ public class TextFilesUtils {
         }
 
         this.archivo = new File(ruta);
+        this.indiceLineas = new IndiceLineas(archivo);
         this.ruta = ruta;
         this.adjuntar = true;
     }
@@ -52,6 +79,7 @@ public class TextFilesUtils {
         }
 
         this.archivo = file;
+        this.indiceLineas = new IndiceLineas(archivo);
         this.adjuntar = true;
     }
 
@@ -62,29 +90,214 @@ public class TextFilesUtils {
      * @return true si el archivo ha sido borrado; false en caso contrario.
      */
     public boolean borrar() {
+        indiceLineas.vaciar();
         return archivo.delete();
     }
 
+    /**
+     * Devuelve un Stream con las líneas del archivo que cumplen la condición,
+     * junto con su número de línea. Las líneas se leen de una en una a medida
+     * que se consume el Stream, así que el archivo nunca está entero en
+     * memoria y se deja de leer en cuanto se tiene lo que se busca (por
+     * ejemplo con findFirst() o limit()). Debe usarse en un
+     * try-with-resources para que el archivo se cierre.
+     *
+     * @param condicion Condición que deben cumplir las líneas, por ejemplo
+     * Pattern.compile(regex).asPredicate().
+     * @return Stream con las líneas que cumplen la condición.
+     * @throws IOException
+     */
+    public Stream<LineaTexto> buscarLineas(Predicate<String> condicion) throws IOException {
+        Stream<LineaTexto> encontradas;
+
+        if (existe()) {
+            BufferedReader in = new BufferedReader(new FileReader(archivo));
+
+            encontradas = StreamSupport.stream(new Spliterators.AbstractSpliterator<LineaTexto>(
+                    Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+
+                private long numLinea;
+
+                @Override
+                public boolean tryAdvance(Consumer<? super LineaTexto> accion) {
+                    boolean encontrada = false;
+
+                    try {
+                        String linea;
+                        while (!encontrada && (linea = in.readLine()) != null) {
+                            numLinea++;
+                            if (condicion.test(linea)) {
+                                accion.accept(new LineaTexto(numLinea, linea));
+                                encontrada = true;
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+
+                    return encontrada;
+                }
+            }, false).onClose(() -> {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+        } else {
+            encontradas = Stream.empty();
+        }
+
+        return encontradas;
+    }
+
+    /**
+     * Devuelve un Stream con las primeras líneas del archivo que contienen la
+     * cadena indicada, leyéndolas a medida que se consume. Debe usarse en un
+     * try-with-resources para que el archivo se cierre.
+     *
+     * @param busqueda La cadena que se buscará.
+     * @param maxResultados Cantidad máxima de líneas que se devolverán.
+     * @return Stream con las líneas que contienen la búsqueda.
+     * @throws IOException
+     */
+    public Stream<LineaTexto> buscarLineas(String busqueda, long maxResultados)
+            throws IOException {
+        return buscarLineas(linea -> linea.contains(busqueda)).limit(maxResultados);
+    }
+
+    /**
+     * Busca las líneas del archivo que contienen la cadena indicada y se las
+     * pasa una a una a la acción según se encuentran, sin guardarlas. La
+     * búsqueda termina al llegar al máximo de resultados o cuando la acción
+     * devuelve false.
+     *
+     * @param busqueda La cadena que se buscará.
+     * @param maxResultados Cantidad máxima de líneas que se pasarán a la
+     * acción.
+     * @param accion Acción que recibirá cada línea encontrada. Devuelve true
+     * para seguir buscando y false para terminar.
+     * @return Cantidad de líneas pasadas a la acción.
+     */
+    public long buscarLineas(String busqueda, long maxResultados,
+            Predicate<LineaTexto> accion) {
+        long numResultados = 0;
+
+        try (Stream<LineaTexto> encontradas = buscarLineas(busqueda, maxResultados)) {
+            Iterator<LineaTexto> iterador = encontradas.iterator();
+            boolean seguir = true;
+
+            while (seguir && iterador.hasNext()) {
+                numResultados++;
+                seguir = accion.test(iterador.next());
+            }
+
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Error al leer el archivo.");
+        }
+
+        return numResultados;
+    }
+
+    /**
+     * Busca las líneas del archivo que contienen la cadena indicada usando
+     * todos los hilos del ForkJoinPool común. El archivo se divide en rangos
+     * de bytes que empiezan y terminan en un salto de línea, así que ninguna
+     * línea (ni ninguna coincidencia) queda partida entre dos rangos. Cada
+     * rango se busca por bytes en un hilo con el algoritmo
+     * Boyer-Moore-Horspool, y al juntar los resultados los números de línea
+     * de cada rango se desplazan con los saltos de línea de los anteriores.
+     *
+     * Si la cadena está vacía, contiene saltos de línea o la codificación del
+     * archivo no permite buscar por bytes, se busca leyendo el archivo línea a
+     * línea como buscarLineas().
+     *
+     * @param busqueda La cadena que se buscará.
+     * @return Array con las líneas que contienen la búsqueda y su número de
+     * línea, en el orden del archivo.
+     */
+    public LineaTexto[] buscarLineasEnParalelo(String busqueda) {
+        List<LineaTexto> encontradas = new ArrayList<>();
+        Charset charset = Charset.defaultCharset();
+
+        if (!existe()) {
+            System.out.println("Error. El archivo no existe.");
+
+        } else if (busqueda.isEmpty() || busqueda.indexOf('\n') != -1
+                || busqueda.indexOf('\r') != -1 || !BuscadorBytes.admite(charset, busqueda)) {
+            buscarLineas(busqueda, Long.MAX_VALUE, encontradas::add);
+
+        } else {
+            BuscadorBytes buscador = new BuscadorBytes(busqueda.getBytes(charset));
+
+            try (FileChannel canal = FileChannel.open(archivo.toPath(),
+                    StandardOpenOption.READ)) {
+                long[] limites = BuscadorBytes.dividirEnLineas(canal, numRangosParalelos(canal));
+
+                List<BuscadorBytes.Tramo> tramos = IntStream.range(0, limites.length - 1)
+                        .parallel()
+                        .mapToObj(i -> {
+                            try {
+                                return buscador.buscarLineas(canal, limites[i], limites[i + 1],
+                                        charset);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        })
+                        .collect(Collectors.toList());
+
+                // Las líneas de cada rango se numeran a continuación de las de los anteriores.
+                long lineasAnteriores = 0;
+                for (BuscadorBytes.Tramo tramo : tramos) {
+                    for (int i = 0; i < tramo.textos.size(); i++) {
+                        encontradas.add(new LineaTexto(
+                                lineasAnteriores + tramo.saltosPrevios[i] + 1,
+                                tramo.textos.get(i)));
+                    }
+                    lineasAnteriores += tramo.numSaltos;
+                }
+
+            } catch (IOException | UncheckedIOException e) {
+                System.out.println("Error al leer el archivo.");
+            }
+        }
+
+        return encontradas.toArray(new LineaTexto[0]);
+    }
+
     /**
      * Este método busca las lineas del archivo que contengan la cadena pasada
-     * como parámetro y devuleve un array con las mismas.
+     * como parámetro y devuleve un array con las mismas. El archivo se lee
+     * línea a línea, así que solo se guardan en memoria las encontradas.
      *
      * @param busqueda La cadena que se buscará.
      * @return String[] con las líneas del texto que contengan la búsqueda.
      */
     public String[] buscarLineasPorTexto(String busqueda) {
-        String[] lineas = leerLineasTexto();
         ArrayList<String> ocurrencias = new ArrayList<>();
 
-        for (String texto : lineas) {
-            if (texto.contains(busqueda)) {
-                ocurrencias.add(texto);
-            }
+        if (!existe()) {
+            System.out.println("Error. El archivo no existe.");
         }
+        buscarLineas(busqueda, Long.MAX_VALUE, linea -> ocurrencias.add(linea.getTexto()));
 
         return ocurrencias.toArray(new String[0]);
     }
 
+    /**
+     * Versión de buscarLineasPorTexto() que reparte la búsqueda entre todos
+     * los hilos del ForkJoinPool común, como buscarLineasEnParalelo().
+     *
+     * @param busqueda La cadena que se buscará.
+     * @return String[] con las líneas del texto que contengan la búsqueda.
+     */
+    public String[] buscarLineasPorTextoEnParalelo(String busqueda) {
+        return Arrays.stream(buscarLineasEnParalelo(busqueda))
+                .map(LineaTexto::getTexto)
+                .toArray(String[]::new);
+    }
+
     /**
      * Cuenta el número de ocurrencias de una cadena en el texto pasado como
      * parámetro.
@@ -106,13 +319,89 @@ public class TextFilesUtils {
     }
 
     /**
-     * Cuenta las ocurrencias de una cadena en todo el texto del fichero.
+     * Cuenta las ocurrencias de una cadena en todo el texto del fichero. La
+     * cadena se codifica una vez y se busca directamente en los bytes del
+     * archivo proyectado en memoria con el algoritmo Boyer-Moore-Horspool,
+     * sin decodificar el archivo a texto. Si la cadena contiene saltos de
+     * línea (que en el archivo pueden ser "\r\n") o la codificación del
+     * archivo no permite buscar por bytes, se busca en el texto leído.
      *
      * @param busqueda La cadena de la que se buscarán ocurrencias.
-     * @return Número de ocurrencias.
+     * @return Número de ocurrencias. Con una cadena vacía, 0.
      */
     public int contarOcurrencias(String busqueda) {
-        return contarOcurrencias(busqueda, leerTexto());
+        long ocurrencias = 0;
+        Charset charset = Charset.defaultCharset();
+
+        if (busqueda.isEmpty()) {
+            ocurrencias = 0;
+
+        } else if (busqueda.indexOf('\n') != -1 || busqueda.indexOf('\r') != -1
+                || !BuscadorBytes.admite(charset, busqueda)) {
+            ocurrencias = contarOcurrencias(busqueda, leerTexto());
+
+        } else if (existe()) {
+            BuscadorBytes buscador = new BuscadorBytes(busqueda.getBytes(charset));
+
+            try (FileChannel canal = FileChannel.open(archivo.toPath(),
+                    StandardOpenOption.READ)) {
+                ocurrencias = buscador.contar(canal);
+
+            } catch (IOException e) {
+                System.out.println("Error al leer el archivo.");
+            }
+
+        } else {
+            System.out.println("Error. El archivo no existe.");
+        }
+
+        return (int) Math.min(ocurrencias, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Versión de contarOcurrencias() que reparte el archivo entre todos los
+     * hilos del ForkJoinPool común. Como la cadena no puede contener saltos de
+     * línea y los rangos se cortan tras un salto de línea, ninguna ocurrencia
+     * queda partida entre dos rangos y basta con sumar las de cada uno.
+     *
+     * @param busqueda La cadena de la que se buscarán ocurrencias.
+     * @return Número de ocurrencias. Con una cadena vacía, 0.
+     */
+    public int contarOcurrenciasEnParalelo(String busqueda) {
+        long ocurrencias = 0;
+        Charset charset = Charset.defaultCharset();
+
+        if (busqueda.isEmpty() || busqueda.indexOf('\n') != -1
+                || busqueda.indexOf('\r') != -1 || !BuscadorBytes.admite(charset, busqueda)) {
+            ocurrencias = contarOcurrencias(busqueda);
+
+        } else if (existe()) {
+            BuscadorBytes buscador = new BuscadorBytes(busqueda.getBytes(charset));
+
+            try (FileChannel canal = FileChannel.open(archivo.toPath(),
+                    StandardOpenOption.READ)) {
+                long[] limites = BuscadorBytes.dividirEnLineas(canal, numRangosParalelos(canal));
+
+                ocurrencias = IntStream.range(0, limites.length - 1)
+                        .parallel()
+                        .mapToLong(i -> {
+                            try {
+                                return buscador.contar(canal, limites[i], limites[i + 1]);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        })
+                        .sum();
+
+            } catch (IOException | UncheckedIOException e) {
+                System.out.println("Error al leer el archivo.");
+            }
+
+        } else {
+            System.out.println("Error. El archivo no existe.");
+        }
+
+        return (int) Math.min(ocurrencias, Integer.MAX_VALUE);
     }
 
     /**
@@ -160,6 +449,66 @@ public class TextFilesUtils {
         return copiar(genPathCopy(ruta));
     }
 
+    /**
+     * Crea un EscritorRegistro que mantiene el archivo abierto para añadirle
+     * líneas como registro de una aplicación, volcándolas cada 64 KB o cada
+     * segundo.
+     *
+     * @return EscritorRegistro sobre este archivo.
+     * @throws IOException
+     */
+    public EscritorRegistro crearEscritorRegistro() throws IOException {
+        return new EscritorRegistro(this);
+    }
+
+    /**
+     * Crea un EscritorRegistro con la política de volcado indicada y,
+     * opcionalmente, un hilo escritor con su propia cola.
+     *
+     * @param tamanhoBuffer Bytes que se acumularán antes de volcarlos.
+     * @param intervaloVolcado Milisegundos máximos que pasarán las líneas en
+     * el buffer. Con 0 solo se vuelca por tamaño o a petición.
+     * @param capacidadCola Líneas que pueden esperar en la cola del hilo
+     * escritor. Con 0 se escribe desde el hilo que llama.
+     * @return EscritorRegistro sobre este archivo.
+     * @throws IOException
+     */
+    public EscritorRegistro crearEscritorRegistro(int tamanhoBuffer, long intervaloVolcado,
+            int capacidadCola) throws IOException {
+        return new EscritorRegistro(this, tamanhoBuffer, intervaloVolcado, capacidadCola);
+    }
+
+    /**
+     * Aplica a la vez todos los cambios de la edición recorriendo el archivo
+     * una sola vez. Las líneas se leen de una en una y el resultado se escribe
+     * en un temporal que sustituye al archivo original con un movimiento
+     * atómico, así que la memoria usada no depende del tamaño del archivo.
+     *
+     * @param edicion Cambios que se aplicarán.
+     * @return true si la edición se completó, false en caso contrario. Si
+     * falla, el archivo original queda intacto.
+     */
+    public boolean editar(EdicionLineas edicion) {
+        boolean edicionOk = false;
+
+        if (!existe()) {
+            System.out.println("Error. El archivo no existe.");
+
+        } else if (edicion.isVacia()) {
+            // Sin cambios no hace falta reescribir el archivo.
+            edicionOk = true;
+
+        } else {
+            edicionOk = reescribirEnTemporal(out -> {
+                try (BufferedReader in = new BufferedReader(new FileReader(archivo))) {
+                    edicion.aplicar(in, out);
+                }
+            });
+        }
+
+        return edicionOk;
+    }
+
     /**
      * Elimina la linea indicada como parámetro del archivo.
      *
@@ -167,13 +516,17 @@ public class TextFilesUtils {
      * @return true si la eliminación fue exitosa, false si no lo fue.
      */
     public boolean eliminarLinea(int linea) {
-        ArrayList<String> lineas = new ArrayList<>(Arrays.asList(leerLineasTexto()));
+        boolean eliminacionOk;
+
+        // Si la línea que se va a eliminar está entre el número de líneas existente...
+        if (linea > 0 && linea <= numLineas()) {
+            eliminacionOk = editar(new EdicionLineas().eliminar(linea));
 
-        if (linea > 0 && linea < numLineas()) {
-            lineas.remove(linea - 1); // Ajustar a la linea indicada
+        } else {
+            eliminacionOk = false;
         }
 
-        return reescribirArchivo(lineas.toArray(new String[0]));
+        return eliminacionOk;
     }
 
     /**
@@ -185,21 +538,17 @@ public class TextFilesUtils {
      * @return true si la eliminación fue exitosa, false si no lo fue.
      */
     public boolean eliminarVariasLinea(Integer[] indexes) {
-        ArrayList<String> lineas = new ArrayList<>(Arrays.asList(leerLineasTexto()));
-
-        // Ordenando el array de indices y revirtiendolo...
-        Collections.sort(Arrays.asList(indexes));
-        Collections.reverse(Arrays.asList(indexes));
+        EdicionLineas edicion = new EdicionLineas();
+        int numLineas = numLineas();
 
-        // eliminando las líneas desde el final del archivo.
+        // Los números se refieren al archivo original, así que el orden no importa.
         for (int index : indexes) {
-            if (index > 0 && index < numLineas()) {
-                lineas.remove(index - 1); // Ajustar a la linea indicada
+            if (index > 0 && index <= numLineas) {
+                edicion.eliminar(index);
             }
-
         }
 
-        return reescribirArchivo(lineas.toArray(new String[0]));
+        return editar(edicion);
     }
 
     /**
@@ -213,6 +562,11 @@ public class TextFilesUtils {
     public boolean escribirLinea(String texto) {
         boolean escrituraOk = true;
 
+        // Si se sobreescribe el archivo el índice de líneas deja de servir.
+        if (!adjuntar) {
+            indiceLineas.vaciar();
+        }
+
         try (BufferedWriter out = new BufferedWriter(new FileWriter(archivo, adjuntar))) {
             out.write(texto);
             out.newLine(); // Salto de línea.
@@ -225,28 +579,82 @@ public class TextFilesUtils {
     }
 
     /**
-     * Escribe en el archivo varias líneas de texto.
+     * Escribe en el archivo todas las líneas indicadas abriéndolo una sola vez,
+     * con un buffer grande, en la codificación por defecto del sistema. Las
+     * líneas se van tomando a medida que se escriben, así que pueden venir de
+     * una colección o de cualquier otro origen sin necesidad de juntarlas
+     * antes en un array. Si el archivo no existe se creará.
      *
-     * @param lineas array de String con las líneas que se escribirán en el
-     * archivo.
+     * @param lineas Líneas que se escribirán en el archivo.
      * @return true => La escritura se realizó correctamente.<br>
      * false => Ha ocurrido un error. Puede que la escritura no se realizara.
      */
-    public boolean escribirVariasLineas(String[] lineas) {
+    public boolean escribirLineas(Iterable<String> lineas) {
+        return escribirLineas(lineas, Charset.defaultCharset());
+    }
+
+    /**
+     * Escribe en el archivo todas las líneas indicadas abriéndolo una sola
+     * vez, como escribirLineas(lineas), en la codificación indicada.
+     *
+     * @param lineas Líneas que se escribirán en el archivo.
+     * @param charset Codificación con la que se escribirán.
+     * @return true => La escritura se realizó correctamente.<br>
+     * false => Ha ocurrido un error. Puede que la escritura no se realizara.
+     */
+    public boolean escribirLineas(Iterable<String> lineas, Charset charset) {
         boolean escrituraOk = true;
 
-        for (String linea : lineas) {
-            /* El if hará la escritura de la linea y a la vez comprobará que ha
-            salido bien. De no ser así se frenará el bucle y se devolverá un false.*/
-            if (!escribirLinea(linea)) {
-                escrituraOk = false;
-                break;
+        // Si se sobreescribe el archivo el índice de líneas deja de servir.
+        if (!adjuntar) {
+            indiceLineas.vaciar();
+        }
+
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(archivo, adjuntar), charset), PESO_BUFFER_ESCRITURA)) {
+            for (String linea : lineas) {
+                out.write(linea);
+                out.newLine(); // Salto de línea.
             }
+
+        } catch (IOException | UncheckedIOException e) {
+            escrituraOk = false;
         }
 
         return escrituraOk;
     }
 
+    /**
+     * Escribe en el archivo las líneas de un Stream abriéndolo una sola vez,
+     * como escribirLineas(lineas). El Stream se consume y se cierra.
+     *
+     * @param lineas Stream con las líneas que se escribirán en el archivo.
+     * @return true => La escritura se realizó correctamente.<br>
+     * false => Ha ocurrido un error. Puede que la escritura no se realizara.
+     */
+    public boolean escribirLineas(Stream<String> lineas) {
+        boolean escrituraOk;
+
+        try (Stream<String> flujo = lineas) {
+            escrituraOk = escribirLineas(flujo::iterator);
+        }
+
+        return escrituraOk;
+    }
+
+    /**
+     * Escribe en el archivo varias líneas de texto. El archivo se abre una
+     * sola vez para todas ellas.
+     *
+     * @param lineas array de String con las líneas que se escribirán en el
+     * archivo.
+     * @return true => La escritura se realizó correctamente.<br>
+     * false => Ha ocurrido un error. Puede que la escritura no se realizara.
+     */
+    public boolean escribirVariasLineas(String[] lineas) {
+        return escribirLineas(Arrays.asList(lineas));
+    }
+
     /**
      * Comprueba si el archivo indicado en la constante RUTA existe.
      *
@@ -319,18 +727,20 @@ public class TextFilesUtils {
      * contrario.
      */
     public boolean insertarLineaEnPosicion(int posicion, String texto) {
-        ArrayList<String> lineas = new ArrayList<>(Arrays.asList(leerLineasTexto()));
+        EdicionLineas edicion = new EdicionLineas();
 
         // Si la posicion a insertar es correcta...
         if (posicion > 0 && posicion <= numLineas()) {
-            lineas.add(posicion - 1, texto);
+            edicion.insertar(posicion, texto);
         }
 
-        return reescribirArchivo(lineas.toArray(new String[lineas.size()]));
+        return editar(edicion);
     }
 
     /**
      * Devuelve un String con la línea del fichero especificada como parámetro.
+     * La línea se lee directamente de su posición en el archivo gracias al
+     * índice de líneas, sin leer las anteriores.
      *
      * @param numLinea Número de línea que se quiere obtener. De 1 a n.
      * @return
@@ -340,8 +750,14 @@ public class TextFilesUtils {
 
         // Si es numero de linea es correcto...
         if (numLinea > 0 && numLinea <= numLineas()) {
-            String[] lineasTexto = leerLineasTexto();
-            linea = lineasTexto[numLinea - 1];
+            // Un archivo vacío tiene una única línea vacía que no está en el índice.
+            if (numLinea <= indiceLineas.getNumLineas()) {
+                try {
+                    linea = indiceLineas.leerLinea(numLinea - 1, Charset.defaultCharset());
+                } catch (IOException e) {
+                    System.out.println("Error al leer el archivo.");
+                }
+            }
 
         } else {
             System.out.println("La línea seleccionada debe ser entre 1 y "
@@ -397,12 +813,42 @@ public class TextFilesUtils {
     }
 
     /**
-     * Devuelve el número de líneas que conforman el archivo.
+     * Devuelve el número de líneas que conforman el archivo. Se obtiene del
+     * índice de líneas, que solo lee el archivo entero la primera vez y
+     * después solo las líneas que se le añadan.
      *
      * @return número de líneas del archivo.
      */
     public int numLineas() {
-        return leerLineasTexto().length;
+        int lineas = 1;
+
+        if (existe()) {
+            try {
+                indiceLineas.sincronizar();
+                /* Igual que en leerLineasTexto, las líneas vacías del final no
+                cuentan y un archivo vacío tiene una línea. */
+                if (indiceLineas.getNumLineas() > 0) {
+                    lineas = indiceLineas.getNumLineasConTexto();
+                }
+            } catch (IOException e) {
+                System.out.println("Error al leer el archivo.");
+            }
+        } else {
+            System.out.println("Error. El archivo no existe.");
+        }
+
+        return lineas;
+    }
+
+    /**
+     * Calcula en cuántos rangos se divide el archivo para recorrerlo en
+     * paralelo: unos cuantos por hilo para que el reparto quede equilibrado,
+     * y como mínimo los necesarios para que ningún rango supere la ventana que
+     * se proyecta de una vez en memoria.
+     */
+    private int numRangosParalelos(FileChannel canal) throws IOException {
+        long porVentanas = canal.size() / BuscadorBytes.PESO_VENTANA + 1;
+        return (int) Math.max(ForkJoinPool.getCommonPoolParallelism() * 4L, porVentanas);
     }
 
     /**
@@ -413,64 +859,27 @@ public class TextFilesUtils {
      * algun error.
      */
     public boolean ordenar() {
+        return ordenar(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    /**
+     * Ordena las líneas del archivo y lo reescribe. Las líneas se comparan
+     * palabra a palabra: las palabras que son números se comparan como
+     * números y las demás con la colación indicada. Cada línea se separa en
+     * palabras una sola vez y las claves resultantes se ordenan en paralelo.
+     *
+     * @param colacion Comparador de las palabras, por ejemplo
+     * Collator.getInstance(new Locale("es")) para seguir el orden alfabético
+     * del español.
+     * @return true si todo se completó correctamente y false si ha ocurrido
+     * algun error.
+     */
+    public boolean ordenar(Comparator<? super String> colacion) {
         boolean result = true;
         try {
             String[] lineas = leerLineasTexto();
 
-            Arrays.sort(lineas, new Comparator<String>() {
-                @Override
-                public int compare(String o1, String o2) {
-                    Integer igualdad = null;
-
-                    // Usar una expresión regular para encontrar números en las cadenas.
-                    Pattern pattern = Pattern.compile("\\d+");
-                    Matcher matcher1;
-                    Matcher matcher2;
-
-                    // Separando las lineas a comparar en palabras.
-                    String[] palabras1 = o1.split("\\s+");
-                    String[] palabras2 = o2.split("\\s+");
-                    int minLength = Math.min(palabras1.length, palabras2.length);
-
-                    // Comprobando palabras de ambas frases hasta encontrar un par diferente.
-                    for (int i = 0; i < minLength && igualdad == null; i++) {
-                        matcher1 = pattern.matcher(palabras1[i]);
-                        matcher2 = pattern.matcher(palabras2[i]);
-
-                        // Si las palabras son diferentes...
-                        if (!palabras1[i].equalsIgnoreCase(palabras2[i])) {
-                            // Si ambas son números...
-                            if (matcher1.find() && matcher2.find()) {
-                                int num1 = Integer.valueOf(palabras1[i]);
-                                int num2 = Integer.valueOf(palabras2[i]);
-
-                                // Se comparan los números.
-                                igualdad = Integer.compare(num1, num2);
-
-                            } else {
-                                // Si NO son 2 números se comparan normalmente.
-                                igualdad = palabras1[i].compareToIgnoreCase(palabras2[i]);
-                            }
-
-                            // Si NO hay diferencias hasta el final de la línea más corta...
-                        } else if (i == minLength - 1) {
-                            if (palabras1.length < palabras2.length) {
-                                // Si la primera linea es la mas corta...
-                                igualdad = -1;
-
-                            } else if (palabras1.length > palabras2.length) {
-                                // Si la segunda linea es la mas corta...
-                                igualdad = 1;
-
-                            } else { // Si las 2 líneas son identicas...
-                                igualdad = 0;
-                            }
-                        }
-                    }
-
-                    return igualdad;
-                }
-            });
+            new ComparadorNatural(colacion).ordenar(lineas, 0, lineas.length);
 
             // Reescribiendo el archivo con las lineas ordenadas.
             reescribirArchivo(lineas);
@@ -483,6 +892,58 @@ public class TextFilesUtils {
         return result;
     }
 
+    /**
+     * Ordena las líneas del archivo igual que ordenar(), pero sin cargarlo
+     * entero en memoria. Si las líneas no caben en la memoria indicada se
+     * ordenan por tramos en paralelo, se vuelcan a archivos temporales y
+     * después se mezclan, por lo que se pueden ordenar archivos mucho mayores
+     * que la memoria disponible. El resultado se escribe en un temporal que
+     * sustituye al archivo original solo cuando está completo.
+     *
+     * @param memoriaMaxima Bytes de memoria (aproximados) que pueden ocupar
+     * las líneas que se ordenan a la vez.
+     * @return true si la ordenación se completó, false en caso contrario. Si
+     * falla, el archivo original queda intacto.
+     */
+    public boolean ordenar(long memoriaMaxima) {
+        return ordenar(String.CASE_INSENSITIVE_ORDER, memoriaMaxima);
+    }
+
+    /**
+     * Ordena las líneas del archivo con la colación indicada, como
+     * ordenar(colacion), sin cargarlo entero en memoria, como
+     * ordenar(memoriaMaxima).
+     *
+     * @param colacion Comparador de las palabras que no son números.
+     * @param memoriaMaxima Bytes de memoria (aproximados) que pueden ocupar
+     * las líneas que se ordenan a la vez.
+     * @return true si la ordenación se completó, false en caso contrario. Si
+     * falla, el archivo original queda intacto.
+     */
+    public boolean ordenar(Comparator<? super String> colacion, long memoriaMaxima) {
+        if (memoriaMaxima <= 0) {
+            throw new IllegalArgumentException("La memoria debe ser mayor que cero.");
+        }
+
+        boolean ordenacionOk = false;
+
+        if (existe()) {
+            OrdenacionLineas ordenacion = new OrdenacionLineas(new ComparadorNatural(colacion),
+                    memoriaMaxima, archivo.getAbsoluteFile().getParentFile(), getNombre());
+
+            ordenacionOk = reescribirEnTemporal(out -> {
+                try (BufferedReader in = new BufferedReader(new FileReader(archivo))) {
+                    ordenacion.ordenar(in, out);
+                }
+            });
+
+        } else {
+            System.out.println("Error. El archivo no existe.");
+        }
+
+        return ordenacionOk;
+    }
+
     /**
      * Calcula el tamaño del fichero.
      *
@@ -505,9 +966,7 @@ public class TextFilesUtils {
 
         // Si la linea que se va a reemplazar está entre el número de lineas existente...
         if (numLinea > 0 && numLinea <= numLineas()) {
-            String[] lineas = leerLineasTexto();
-            lineas[numLinea - 1] = nuevaLinea;
-            resultOK = reescribirArchivo(lineas);
+            resultOK = editar(new EdicionLineas().reemplazar(numLinea, nuevaLinea));
 
         } else {
             resultOK = false;
@@ -532,6 +991,51 @@ public class TextFilesUtils {
         return escribirVariasLineas(lineas);
     }
 
+    /**
+     * Reescribe el archivo entero a través de un temporal en su misma carpeta,
+     * que se fuerza a disco y se mueve sobre el original con un movimiento
+     * atómico. Si algo falla antes del movimiento el archivo original queda
+     * intacto.
+     *
+     * @param generador Escribe las nuevas líneas en el temporal.
+     * @return true si la reescritura se completó, false en caso contrario.
+     */
+    private boolean reescribirEnTemporal(GeneradorLineas generador) {
+        boolean reescrituraOk = true;
+        File temporal = null;
+
+        try {
+            temporal = File.createTempFile(getNombre() + ".nuevo.", ".tmp",
+                    archivo.getAbsoluteFile().getParentFile());
+
+            try (FileOutputStream salida = new FileOutputStream(temporal);
+                    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(salida,
+                            Charset.defaultCharset()), PESO_BUFFER_ESCRITURA)) {
+                generador.escribirEn(out);
+                out.flush();
+                salida.getFD().sync();
+            }
+
+            try {
+                Files.move(temporal.toPath(), archivo.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporal.toPath(), archivo.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            indiceLineas.vaciar();
+
+        } catch (IOException | RuntimeException e) {
+            if (temporal != null) {
+                temporal.delete();
+            }
+            reescrituraOk = false;
+        }
+
+        return reescrituraOk;
+    }
+
     /**
      * Este método cambia el nombre del archivo por uno nuevo pasado como
      * parámetro.
@@ -557,6 +1061,7 @@ public class TextFilesUtils {
             borrar();
             ruta = nuevaRuta;
             archivo = new File(nuevaRuta);
+            indiceLineas = new IndiceLineas(archivo);
             renombreOk = escribirVariasLineas(lineas);
 
         } else {
@@ -617,4 +1122,13 @@ public class TextFilesUtils {
         this.adjuntar = adjuntar;
     }
 
+    // CLASES INTERNAS =========================================================
+    /**
+     * Escribe en un BufferedWriter las líneas con las que se reescribirá el
+     * archivo.
+     */
+    private interface GeneradorLineas {
+
+        void escribirEn(BufferedWriter out) throws IOException;
+    }
 }